@@ -21,6 +21,9 @@
 #include <unistd.h>
 #include <stdio.h>
 
+/* Upper bound on the number of packets moved per batched call */
+#define MAX_BATCH_PACKETS 64
+
 #ifdef __cplusplus
 extern "C" {
 #endif
@@ -83,6 +86,109 @@ jint Java_edu_uci_calit2_antmonitor_lib_vpn_TunNativeInterface_write
     return bytesWritten;
 }
 
+/* Read up to maxPackets packets from tun, one packet per slot of the given buffer */
+jint Java_edu_uci_calit2_antmonitor_lib_vpn_TunNativeInterface_pollReadBatch
+(JNIEnv *env, jobject thisObj, jint fd, jlong timeout, jobject buffer, jint slotSize,
+ jintArray lengths, jint maxPackets) {
+    int ERROR_VALUE = -1;
+    int TIMEOUT_VALUE = 0;
+
+    char *buf = (char*) env->GetDirectBufferAddress(buffer);
+    long capacity = (long) env->GetDirectBufferCapacity(buffer);
+
+    // Sanity check
+    if (maxPackets > MAX_BATCH_PACKETS) {
+        maxPackets = MAX_BATCH_PACKETS;
+    }
+    if (buf == NULL || slotSize <= 0 || maxPackets <= 0 ||
+            (long) slotSize * maxPackets > capacity ||
+            env->GetArrayLength(lengths) < maxPackets) {
+        return ERROR_VALUE;
+    }
+
+    // Prepare the poll structure
+    struct pollfd arrayfds[1];
+    arrayfds[0].fd = (int) fd;
+    arrayfds[0].events = POLLIN;
+
+    // Only the first poll waits, after that we only take what is already queued
+    long pollTimeout = (long) timeout;
+    int count = 0;
+    jint readLengths[MAX_BATCH_PACKETS];
+
+    while (count < maxPackets) {
+        int retval = poll(arrayfds, 1, pollTimeout);
+        pollTimeout = 0;
+
+        if (retval == -1) { // error
+            if (count == 0)
+                return ERROR_VALUE;
+            break;
+        } else if (retval == 0) { // timeout or nothing else queued
+            break;
+        }
+
+        if (!(arrayfds[0].revents & POLLIN)) {
+            // other events Error (POLLERR), Hangup (POLLHUP), Invalid request (POLLNVAL)
+            if (count == 0)
+                return ERROR_VALUE;
+            break;
+        }
+
+        int bytesRead = read((int) fd, buf + (long) count * slotSize, (size_t) slotSize);
+        if (bytesRead < 0) {
+            if (count == 0)
+                return ERROR_VALUE;
+            break;
+        }
+        if (bytesRead == 0)
+            break;
+
+        readLengths[count] = bytesRead;
+        count++;
+    }
+
+    if (count == 0)
+        return TIMEOUT_VALUE;
+
+    env->SetIntArrayRegion(lengths, 0, count, readLengths);
+    return count;
+}
+
+/* Write packets to tun, one packet per slot of the given buffer.
+ * Note that each write() on a tun fd is one packet, so we cannot merge them into one writev(). */
+jint Java_edu_uci_calit2_antmonitor_lib_vpn_TunNativeInterface_writeBatch
+(JNIEnv *env, jobject thisObj, jint fd, jobject buffer, jint slotSize,
+ jintArray lengths, jint count) {
+    int ERROR_VALUE = -1;
+
+    char *buf = (char*) env->GetDirectBufferAddress(buffer);
+    long capacity = (long) env->GetDirectBufferCapacity(buffer);
+
+    // Sanity check
+    if (buf == NULL || count < 0 || (long) slotSize * count > capacity ||
+            env->GetArrayLength(lengths) < count) {
+        return ERROR_VALUE;
+    }
+
+    jint *packetLengths = env->GetIntArrayElements(lengths, NULL);
+    int written = 0;
+    int i;
+    for (i = 0; i < count; i++) {
+        if (packetLengths[i] <= 0)
+            continue;
+
+        if (write((int) fd, buf + (long) i * slotSize, (size_t) packetLengths[i]) < 0) {
+            written = (written == 0) ? ERROR_VALUE : written;
+            break;
+        }
+        written++;
+    }
+    env->ReleaseIntArrayElements(lengths, packetLengths, JNI_ABORT);
+
+    return written;
+}
+
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,112 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.logging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.uci.calit2.antmonitor.lib.logging.PacketProcessor.TrafficType;
+import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
+
+/**
+ * Decides how many bytes of each packet a {@link PacketConsumer} gets, before the packet is
+ * queued for it. Only those bytes are copied and kept in the {@link PacketLogQueue}, so a
+ * consumer that only needs headers does not hold on to whole packets. The default
+ * implementation uses a snap length per remote port, or a default one. Children can override
+ * {@link #getSnapLength(byte[], PacketAnnotation)}, e.g. to use a snap length per app based
+ * on what their {@link edu.uci.calit2.antmonitor.lib.vpn.PacketFilter} put in the
+ * {@link PacketAnnotation}.
+ */
+public class CapturePolicy {
+    /** Snap length that keeps nothing: the packet is not queued at all */
+    public static final int SNAP_NONE = 0;
+
+    /** Snap length that keeps the IP and transport headers */
+    public static final int SNAP_HEADERS = -1;
+
+    /** Snap length that keeps the whole packet */
+    public static final int SNAP_FULL = Integer.MAX_VALUE;
+
+    /** Indicates whether packets are outgoing or incoming */
+    protected final TrafficType mTrafficType;
+
+    private final int mDefaultSnapLength;
+
+    private final Map<Integer, Integer> mPortSnapLengths = new ConcurrentHashMap<>();
+
+    /**
+     * @param trafficType indicates whether this policy applies to outgoing or incoming packets
+     * @param defaultSnapLength snap length of packets of ports without a snap length of their
+     *                          own: a number of bytes, or one of {@link #SNAP_NONE},
+     *                          {@link #SNAP_HEADERS} and {@link #SNAP_FULL}
+     */
+    public CapturePolicy(TrafficType trafficType, int defaultSnapLength) {
+        mTrafficType = trafficType;
+        mDefaultSnapLength = defaultSnapLength;
+    }
+
+    /**
+     * @param port port of the server, i.e. the destination port of outgoing packets and the
+     *             source port of incoming packets
+     * @param snapLength snap length of packets of the port, as in the constructor
+     */
+    public void setPortSnapLength(int port, int snapLength) {
+        mPortSnapLengths.put(port, snapLength);
+    }
+
+    public void clearPortSnapLengths() {
+        mPortSnapLengths.clear();
+    }
+
+    /**
+     * Called for each packet before it is queued, on the thread forwarding it. Implementations
+     * should be light so as not to slow down network throughput.
+     * @param packet the IP datagram. The array may be larger than the packet.
+     * @param annotation the annotation the {@link edu.uci.calit2.antmonitor.lib.vpn.PacketFilter}
+     *                   returned for the packet
+     * @return the snap length of the packet: a number of bytes, or one of {@link #SNAP_NONE},
+     * {@link #SNAP_HEADERS} and {@link #SNAP_FULL}
+     */
+    protected int getSnapLength(byte[] packet, PacketAnnotation annotation) {
+        if (mPortSnapLengths.isEmpty())
+            return mDefaultSnapLength;
+
+        int port = mTrafficType == TrafficType.OUTGOING_PACKETS ?
+                IpDatagram.readDestinationPort(packet) : IpDatagram.readSourcePort(packet);
+        Integer snapLength = mPortSnapLengths.get(port);
+        return snapLength != null ? snapLength : mDefaultSnapLength;
+    }
+
+    /**
+     * @param length length of the packet
+     * @return number of bytes of the packet to queue, at most {@code length}. Zero if the
+     * packet should not be queued, including when it could not be parsed.
+     */
+    final int getCaptureLength(byte[] packet, int length, PacketAnnotation annotation) {
+        try {
+            int snapLength = getSnapLength(packet, annotation);
+            if (snapLength == SNAP_HEADERS)
+                snapLength = PacketProcessor.getHeadersSize(packet,
+                        IpDatagram.readProtocol(packet));
+            return Math.max(0, Math.min(snapLength, length));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // Unknown protocol or malformed packet
+            return SNAP_NONE;
+        }
+    }
+}
@@ -52,6 +52,11 @@ class DumperFileStateManager {
         files = newFiles;
     }
 
+    /** @return {@code true} if both directions are logged to the same file */
+    public synchronized boolean isInterleaved() {
+        return files.first == files.second;
+    }
+
     /** Get the file for the specified {@link TrafficType} and create a new one if
      * size limit was reached.
      * @param type
@@ -91,12 +96,21 @@ class DumperFileStateManager {
         return file;
     }
 
+    /**
+     * Writes the packets gathered so far for the specified {@link TrafficType} to disk
+     * @param type
+     */
+    public synchronized void flush(TrafficType type) {
+        getFileForType(type).flush();
+    }
+
     /** Marks the two files as complete and clean-up any abandoned stream files (due to crash) */
     private synchronized void endFiles() {
         files.first.renameAndEndFile(TrafficLogFiles.getCompletedFileName(
                 files.first.getFile()));
-        files.second.renameAndEndFile(TrafficLogFiles.getCompletedFileName(
-                files.second.getFile()));
+        if (!isInterleaved())
+            files.second.renameAndEndFile(TrafficLogFiles.getCompletedFileName(
+                    files.second.getFile()));
 
         // Rename any remaining "active" files - they were left this way due to a crash or etc.
         File folder = mContext.getFilesDir();
@@ -116,7 +130,7 @@ class DumperFileStateManager {
         if (files.first.isFileEmpty())
             files.first.getFile().delete();
 
-        if (files.second.isFileEmpty())
+        if (!isInterleaved() && files.second.isFileEmpty())
             files.second.getFile().delete();
     }
 }
@@ -72,6 +72,17 @@ public class PacketConsumer {
         // do nothing
     }
 
+    /**
+     * Called when this consumer is about to receive packets. The returned policy is applied to
+     * packets before they are queued for this consumer, so that only the bytes it needs are
+     * copied and kept while it catches up. The default implementation returns {@code null},
+     * which queues whole packets.
+     * @return the {@link CapturePolicy} of this consumer, or {@code null}
+     */
+    protected CapturePolicy getCapturePolicy() {
+        return null;
+    }
+
     /**
      * Gets called when the VPN connection is being torn down. Use this method to perform any
      * clean-up needed with any logged files and etc.
@@ -107,7 +118,7 @@ public class PacketConsumer {
      * @throws IllegalArgumentException if the protocol is unknown
      */
     protected int getFullPacketSize(byte[] packet, short protocol, int destinationPort) {
-        return PacketProcessor.getInstance(mContext).getFullPacketSize(packet, protocol, destinationPort);
+        return PacketProcessor.getFullPacketSize(packet, protocol, destinationPort);
     }
 
     /**
@@ -117,7 +128,7 @@ public class PacketConsumer {
      * @return the the length of the header(s). If protocol is ICMP, full packet size is returned.
      * @throws IllegalArgumentException if the protocol is unknown */
     protected int getHeadersSize(byte[] packet, short protocol) {
-        return PacketProcessor.getInstance(mContext).getHeadersSize(packet, protocol);
+        return PacketProcessor.getHeadersSize(packet, protocol);
     }
 
     /**
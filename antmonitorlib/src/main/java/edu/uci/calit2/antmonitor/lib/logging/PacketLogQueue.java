@@ -17,47 +17,285 @@
  */
 package edu.uci.calit2.antmonitor.lib.logging;
 
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
+import edu.uci.calit2.antmonitor.lib.util.PacketBuffer;
 import edu.uci.calit2.antmonitor.lib.util.PacketDumpInfo;
 
 /**
- * This class simply controls access to shared packet dumps using a
- * {@link java.util.concurrent.ArrayBlockingQueue} to synchronize access.
+ * This class controls access to shared packet dumps using a pre-allocated ring buffer.
+ * Putting a dump never waits for the consumer: when the buffer is full, dumps are dropped
+ * according to the {@link OverflowPolicy}, so that slow logging cannot stall forwarding.
+ * Dropped dumps are counted and their pooled buffers released. Packets can be truncated by a
+ * {@link CapturePolicy} as they are put, so that only the bytes the consumer needs are copied.
  *
  * @author Simon Langhoff, Janus Varmarken
  */
 public class PacketLogQueue {
-    private ArrayBlockingQueue<PacketDumpInfo> queue = new ArrayBlockingQueue<PacketDumpInfo>(35000);
+    /** What to do with dumps when the consumer falls behind */
+    public enum OverflowPolicy {
+        /** Drop the dump being put while the buffer is full */
+        DROP_NEWEST,
+
+        /** Drop the oldest dump in the buffer to make room for the one being put */
+        DROP_OLDEST,
+
+        /**
+         * While the buffer is backpressured, keep only one dump in {@link #SAMPLE_RATE}.
+         * When the buffer is full, drop the dump being put.
+         */
+        SAMPLE
+    }
+
+    /** Default number of dumps the buffer holds */
+    public static final int DEFAULT_CAPACITY = 35000;
+
+    /** One dump in this many is kept by {@link OverflowPolicy#SAMPLE} under backpressure */
+    public static final int SAMPLE_RATE = 8;
+
+    /**
+     * Most dumps in the buffer for a pooled packet to be queued without being copied. Beyond
+     * that, packets are copied into arrays of their own length, so that a consumer that falls
+     * behind does not hold on to pooled buffers, which are much larger than most packets.
+     */
+    public static final int ZERO_COPY_LIMIT = 32;
 
     private final long timeout = 1000l;
 
+    private final PacketDumpInfo[] mRing;
+
+    /** Index of the oldest dump */
+    private int mHead;
+    private int mSize;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    private volatile OverflowPolicy mPolicy = OverflowPolicy.DROP_NEWEST;
+
+    private volatile CapturePolicy mCapturePolicy;
+
+    /** Backpressure starts when the buffer is this full, and stops when it is half empty */
+    private final int mBackpressureHigh;
+    private final int mBackpressureLow;
+    private volatile boolean mBackpressured;
+
+    // Guarded by mLock
+    private long mDropCount;
+    private int mHighWaterMark;
+    private int mSampleCounter;
+
+    public PacketLogQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** @param capacity number of dumps the buffer holds */
+    public PacketLogQueue(int capacity) {
+        mRing = new PacketDumpInfo[capacity];
+        mBackpressureHigh = capacity * 3 / 4;
+        mBackpressureLow = capacity / 2;
+    }
+
+    /** @param policy what to do with dumps when the buffer is full. The default is
+     * {@link OverflowPolicy#DROP_NEWEST}. */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        mPolicy = policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    /** @param policy policy truncating packets as they are put, or {@code null} to put whole
+     * packets */
+    public void setCapturePolicy(CapturePolicy policy) {
+        mCapturePolicy = policy;
+    }
+
+    /**
+     * Inserts the packet into the buffer, as much of it as the {@link CapturePolicy} keeps.
+     * Never waits for the consumer.
+     * @param packet the packet. It is not copied unless the policy truncates it.
+     * @param packetAnnot annotation created by a
+     * {@link edu.uci.calit2.antmonitor.lib.vpn.PacketFilter} for the packet
+     * @return {@code true} if the packet was inserted, {@code false} if the policy skipped it
+     * or it was dropped
+     */
+    public boolean put(byte[] packet, PacketAnnotation packetAnnot) {
+        CapturePolicy policy = mCapturePolicy;
+        if (policy == null)
+            return put(new PacketDumpInfo(packet, packetAnnot));
+
+        int length = packet.length;
+        int captureLength = policy.getCaptureLength(packet, length, packetAnnot);
+        if (captureLength == CapturePolicy.SNAP_NONE)
+            return false;
+        if (captureLength == length)
+            return put(new PacketDumpInfo(packet, packetAnnot));
+
+        return put(new PacketDumpInfo(packet, IpDatagram.readDatagramLength(packet),
+                captureLength, packetAnnot));
+    }
+
+    /**
+     * Inserts the packet into the buffer, as much of it as the {@link CapturePolicy} keeps.
+     * Never waits for the consumer.
+     * @param buffer holds the packet. It is retained if the whole packet is kept while the
+     *               buffer holds fewer than {@link #ZERO_COPY_LIMIT} dumps, and the packet is
+     *               copied otherwise, so the caller may release it when this method returns.
+     * @param packetAnnot annotation created by a
+     * {@link edu.uci.calit2.antmonitor.lib.vpn.PacketFilter} for the packet
+     * @return {@code true} if the packet was inserted, {@code false} if the policy skipped it
+     * or it was dropped
+     */
+    public boolean put(PacketBuffer buffer, PacketAnnotation packetAnnot) {
+        CapturePolicy policy = mCapturePolicy;
+        int length = buffer.length();
+        int captureLength = policy == null ? length :
+                policy.getCaptureLength(buffer.array(), length, packetAnnot);
+        if (captureLength == CapturePolicy.SNAP_NONE)
+            return false;
+        if (captureLength == length && getSize() < ZERO_COPY_LIMIT)
+            return put(new PacketDumpInfo(buffer, packetAnnot));
+
+        return put(new PacketDumpInfo(buffer.array(), length, captureLength, packetAnnot));
+    }
+
     /**
-     * Simple inserts the supplied dump into the buffer. Blocks if queue is full.
+     * Inserts the supplied dump into the buffer, or drops a dump if the buffer is full.
+     * Never waits for the consumer.
      * @param dump A {@link PacketDumpInfo} containing the information to be inserted into the buffer.
+     * @return {@code true} if the dump was inserted, {@code false} if it was dropped
      */
-    public void put(PacketDumpInfo dump) {
+    public boolean put(PacketDumpInfo dump) {
+        PacketDumpInfo dropped = null;
+        mLock.lock();
         try {
-            queue.put(dump);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            OverflowPolicy policy = mPolicy;
+            if (policy == OverflowPolicy.SAMPLE && mBackpressured &&
+                    ++mSampleCounter % SAMPLE_RATE != 0) {
+                dropped = dump;
+            } else if (mSize == mRing.length) {
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    dropped = mRing[mHead];
+                    mRing[mHead] = null;
+                    mHead = (mHead + 1) % mRing.length;
+                    mSize--;
+                } else {
+                    dropped = dump;
+                }
+            }
+
+            if (dropped != null)
+                mDropCount++;
+
+            if (dropped != dump) {
+                mRing[(mHead + mSize) % mRing.length] = dump;
+                mSize++;
+                if (mSize > mHighWaterMark)
+                    mHighWaterMark = mSize;
+                if (mSize >= mBackpressureHigh)
+                    mBackpressured = true;
+                mNotEmpty.signal();
+            }
+        } finally {
+            mLock.unlock();
         }
+
+        // Let the pooled buffer be re-used
+        if (dropped != null)
+            dropped.release();
+        return dropped != dump;
     }
 
     /**
-     * Queries the {@link java.util.concurrent.ArrayBlockingQueue} for a packet dump.
+     * Queries the buffer for a packet dump.
      * This is a blocking call which returns when a packet dump is available from the buffer or the {@code timeout} is exceeded
      * @return a {@link PacketDumpInfo} from the buffer or null if {@code timeout} is exceeded.
      * @throws java.lang.InterruptedException if interrupted while waiting.
      */
     public PacketDumpInfo get() throws InterruptedException {
-        return queue.poll(timeout, TimeUnit.MILLISECONDS);
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mSize == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return poll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Guarded by mLock
+    private PacketDumpInfo poll() {
+        if (mSize == 0)
+            return null;
+
+        PacketDumpInfo dump = mRing[mHead];
+        mRing[mHead] = null;
+        mHead = (mHead + 1) % mRing.length;
+        mSize--;
+        if (mSize <= mBackpressureLow)
+            mBackpressured = false;
+        return dump;
     }
 
     public int getSize(){
-        return queue.size();
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** @return number of dumps dropped since the queue was created */
+    public long getDropCount() {
+        mLock.lock();
+        try {
+            return mDropCount;
+        } finally {
+            mLock.unlock();
+        }
     }
 
-    public void clear() { queue.clear(); }
+    /** @return most dumps the buffer held at once since the queue was created */
+    public int getHighWaterMark() {
+        mLock.lock();
+        try {
+            return mHighWaterMark;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} while the consumer is falling behind: from when the buffer is three
+     * quarters full until it is half empty again
+     */
+    public boolean isBackpressured() {
+        return mBackpressured;
+    }
+
+    /** Empties the queue, releasing any pooled buffers held by the queued dumps */
+    public void clear() {
+        PacketDumpInfo dump;
+        while (true) {
+            mLock.lock();
+            try {
+                dump = poll();
+            } finally {
+                mLock.unlock();
+            }
+            if (dump == null)
+                break;
+            dump.release();
+        }
+    }
 }
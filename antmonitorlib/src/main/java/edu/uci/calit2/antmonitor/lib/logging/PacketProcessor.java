@@ -188,8 +188,36 @@ public class PacketProcessor {
             comment = "";
 
         PcapngFile file = mStateManager.getExistingFile(trafficDirection);
-        file.appendEnhancedPacketBlock(packet.getTimestamp(), packet.getCaptureLength(),
-                packet.getOriginalLength(), packet.getDump(), comment);
+        if (mStateManager.isInterleaved()) {
+            // Refer to the app by ID
+            file.appendAppPacketBlock(TrafficLogFiles.getInterfaceID(trafficDirection),
+                    packet.getTimestamp(), packet.getCaptureLength(), packet.getOriginalLength(),
+                    packet.getDump(), comment);
+        } else {
+            file.appendEnhancedPacketBlock(packet.getTimestamp(), packet.getCaptureLength(),
+                    packet.getOriginalLength(), packet.getDump(), comment);
+        }
+    }
+
+    /**
+     * Writes the packets logged so far in the given direction to disk. Log files are flushed
+     * as packets are logged, so this is called when no packets arrive for a while. Does nothing
+     * if no packets were logged.
+     * @param trafficDirection indicating whether to flush incoming or outgoing packets.
+     */
+    public static void flush(TrafficType trafficDirection) {
+        PacketProcessor instance;
+        synchronized (PacketProcessor.class) {
+            instance = processor;
+        }
+        if (instance == null)
+            return;
+
+        // Lock on the instance, as the other logging methods lock on the instance
+        synchronized (instance) {
+            if (mStateManager != null)
+                mStateManager.flush(trafficDirection);
+        }
     }
 
     /**
@@ -202,9 +230,10 @@ public class PacketProcessor {
      * Otherwise the length of the headers is returned.
      * @throws IllegalArgumentException if the protocol is unknown
      */
-    public int getFullPacketSize(byte[] packet, short protocol, int destinationPort)
+    public static int getFullPacketSize(byte[] packet, short protocol, int destinationPort)
         throws IllegalArgumentException {
-        int fullLength = packet.length;
+        // Packet may be backed by a pooled buffer that is larger than the packet itself
+        int fullLength = IpDatagram.readDatagramLength(packet);
 
         // If ICMP, UDP, or HTTP/HTTPS (based on port), then dump full packet
         if (protocol ==  Protocol.ICMP.getProtocolNumber() ||
@@ -229,12 +258,12 @@ public class PacketProcessor {
      * @param protocol the protocol
      * @return the the length of the header(s). If protocol is ICMP, full packet size is returned.
      * @throws IllegalArgumentException if the protocol is unknown */
-    public int getHeadersSize(byte[] packet, short protocol)
+    public static int getHeadersSize(byte[] packet, short protocol)
         throws IllegalArgumentException {
 
         // Check if ICMP, otherwise assume it is either TCP or UDP.
         if (protocol == Protocol.ICMP.getProtocolNumber()) {
-            return packet.length;
+            return IpDatagram.readDatagramLength(packet);
         }
 
         byte headerLength = IpDatagram.readIPHeaderLength(packet);
@@ -42,6 +42,7 @@ public class PacketQueueReader implements Runnable {
     public PacketQueueReader(PacketLogQueue packetQueue, PacketConsumer consumer) {
         this.mPacketQueue = packetQueue;
         this.mConsumer = consumer;
+        mPacketQueue.setCapturePolicy(consumer.getCapturePolicy());
         TAG = getClass().getName() + "-" + consumer.mTrafficType;
     }
 
@@ -58,7 +59,15 @@ public class PacketQueueReader implements Runnable {
                 // Poll the queue (blocking call)
                 PacketDumpInfo dump = mPacketQueue.get();
                 if(dump != null){
-                    mConsumer.consumePacket(dump);
+                    try {
+                        mConsumer.consumePacket(dump);
+                    } finally {
+                        // Consumers are done with the packet - let the buffer be re-used
+                        dump.release();
+                    }
+                } else {
+                    // No packets for a while - write what was logged so far to disk
+                    PacketProcessor.flush(mConsumer.mTrafficType);
                 }
             } catch (InterruptedException e) {
                 break;
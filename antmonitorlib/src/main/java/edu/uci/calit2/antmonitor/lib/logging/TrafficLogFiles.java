@@ -72,6 +72,10 @@ public class TrafficLogFiles {
 
     private static String userID;
 
+    private static volatile boolean interleaved;
+
+    private static volatile boolean compressed;
+
 
     /**
      * Gets an array containing the completed log files, i.e. all log files except the two currently used for logging.
@@ -99,6 +103,38 @@ public class TrafficLogFiles {
 
     static synchronized void setUserID(String id) { userID = id; }
 
+    /**
+     * Logs both directions of the traffic in one file, in which packets refer to their app by
+     * ID, instead of in one file per direction, in which each packet carries the name of its
+     * app. Takes effect on the next file set.
+     * @param enabled pass {@code true} to log to one file, and {@code false} otherwise.
+     *                The default is {@code false}.
+     */
+    public static void setInterleavedEnabled(boolean enabled) { interleaved = enabled; }
+
+    /**
+     * Compresses log files as they are written, so that they take less storage and upload
+     * faster. Compressed files are gzip streams, named with a ".gz" suffix, which most tools
+     * read as is. Only available from Android 4.4 on; ignored before. Takes effect on the next
+     * file set.
+     * @param enabled pass {@code true} to compress log files, and {@code false} otherwise.
+     *                The default is {@code false}.
+     */
+    public static void setCompressionEnabled(boolean enabled) { compressed = enabled; }
+
+    /** @return {@code true} if new log files are compressed */
+    private static boolean isCompressed() {
+        return compressed && PcapngFile.isCompressionSupported();
+    }
+
+    /**
+     * @param type direction of the traffic
+     * @return ID of the interface of the given direction in a file holding both directions
+     */
+    static int getInterfaceID(PacketProcessor.TrafficType type) {
+        return type == PacketProcessor.TrafficType.INCOMING_PACKETS ? 0 : 1;
+    }
+
     /**
      * Factory for creating a new set of stream files of the PCAPNG format, i.e. files to which
      * current network traffic can be written (streamed).
@@ -106,7 +142,7 @@ public class TrafficLogFiles {
      *                Required in order to access various info about the application.
      * @return A {@link android.util.Pair} of {@link PcapngFile}s. The
      *      first file of the pair is for inbound traffic, and the second file of the pair is for
-     *      outbound traffic.
+     *      outbound traffic. If logging is interleaved, both are the same file.
      */
     static Pair<PcapngFile, PcapngFile> createNewActiveFileSet(Context context) {
         Calendar cal = Calendar.getInstance(Locale.getDefault());
@@ -125,13 +161,21 @@ public class TrafficLogFiles {
                 cal.get(Calendar.SECOND) + "-" +
                 cal.get(Calendar.MILLISECOND);
 
+        boolean compressed = isCompressed();
+        String extension = compressed ? ".pcapng.gz" : ".pcapng";
+
+        if (interleaved) {
+            PcapngFile file = createFile(baseFilePathName + extension, context, true, compressed);
+            return new Pair<PcapngFile, PcapngFile>(file, file);
+        }
+
         PcapngFile incFile = createFile(baseFilePathName +
                 PacketProcessor.TrafficType.INCOMING_PACKETS.getTrafficTypeString() +
-                ".pcapng", context);
+                extension, context, false, compressed);
 
         PcapngFile outFile = createFile(baseFilePathName +
                 PacketProcessor.TrafficType.OUTGOING_PACKETS.getTrafficTypeString() +
-                ".pcapng", context);
+                extension, context, false, compressed);
 
         return new Pair<PcapngFile, PcapngFile>(incFile, outFile);
     }
@@ -166,7 +210,13 @@ public class TrafficLogFiles {
     }
 
 
-    private static PcapngFile createFile(String filePathName, Context context){
+    /**
+     * @param interleaved pass {@code true} to describe an interface for each direction, as
+     *                    numbered by {@link #getInterfaceID(PacketProcessor.TrafficType)}
+     * @param compressed pass {@code true} to compress the file
+     */
+    private static PcapngFile createFile(String filePathName, Context context,
+                                         boolean interleaved, boolean compressed){
         File file = new File(filePathName);
         // Create the file.
         boolean fileCreated = false;
@@ -226,7 +276,17 @@ public class TrafficLogFiles {
             ifDescription = "N/A";
         }
         try {
-            pcapFile = new PcapngFile(file, headerComment, hardwareInfo, osInfo, appInfo, ifName, ifDescription, ifIPAddr, ifMacAddr, speed, ifTimezone, ifFilter, tsOffset, tsResolution);
+            if (interleaved) {
+                pcapFile = new PcapngFile(file, headerComment, hardwareInfo, osInfo, appInfo, ifName,
+                        ifDescription + " (" + PacketProcessor.TrafficType.INCOMING_PACKETS.getTrafficTypeString() + ")",
+                        ifIPAddr, ifMacAddr, speed, ifTimezone, ifFilter, tsOffset, tsResolution,
+                        compressed);
+                pcapFile.addInterface(ifName,
+                        ifDescription + " (" + PacketProcessor.TrafficType.OUTGOING_PACKETS.getTrafficTypeString() + ")",
+                        ifIPAddr, ifMacAddr, speed, ifTimezone, ifFilter, tsOffset, tsResolution);
+            } else {
+                pcapFile = new PcapngFile(file, headerComment, hardwareInfo, osInfo, appInfo, ifName, ifDescription, ifIPAddr, ifMacAddr, speed, ifTimezone, ifFilter, tsOffset, tsResolution, compressed);
+            }
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,360 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.util;
+
+/**
+ * Parser of DNS messages (RFC 1035) that works in place over the array holding the message.
+ * Records are visited one at a time with {@link #nextRecord()}, in the order of the
+ * sections of the message. Names, which may be compressed, are referred to by their offset
+ * in the array: they can be compared with {@link #nameEquals(int, int)} without creating any
+ * object, and are only turned into strings by {@link #readName(int)}.
+ * <p>
+ * An instance can be reused for many messages, but must not be shared between threads.
+ * </p>
+ */
+public class DNSMessage {
+
+    public static final int HEADER_LENGTH = 12;
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_OPT = 41;
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_NXDOMAIN = 3;
+
+    public static final int SECTION_QUESTION = 0;
+    public static final int SECTION_ANSWER = 1;
+    public static final int SECTION_AUTHORITY = 2;
+    public static final int SECTION_ADDITIONAL = 3;
+
+    /** Longest name, as the number of bytes of its uncompressed form (RFC 1035 2.3.4) */
+    private static final int MAX_NAME_LENGTH = 255;
+
+    /** Length of the type, class, TTL and rdata length fields of a resource record */
+    private static final int RR_FIXED_LENGTH = 10;
+
+    private byte[] mMessage;
+    private int mOffset;
+    private int mEnd;
+
+    /** Number of records in each section */
+    private final int[] mCounts = new int[4];
+
+    /** Section of the current record, and its index within the section */
+    private int mSection;
+    private int mIndex;
+
+    /** Offset of the record after the current one */
+    private int mNext;
+
+    // Fields of the current record
+    private int mNameOffset;
+    private int mType;
+    private int mRecordClass;
+    private int mTTLOffset;
+    private int mRDataOffset;
+    private int mRDataLength;
+
+    /**
+     * Starts parsing a message. The header is read right away, records are read by
+     * {@link #nextRecord()}.
+     * @param message array containing the DNS message. It is not copied.
+     * @param offset offset of the message in {@code message}
+     * @param length length of the message
+     * @return {@code false} if the message is too short to be a DNS message
+     */
+    public boolean parse(byte[] message, int offset, int length) {
+        mMessage = message;
+        mOffset = offset;
+        mEnd = offset + length;
+        mSection = SECTION_QUESTION;
+        mIndex = -1;
+        mNext = offset + HEADER_LENGTH;
+        mNameOffset = -1;
+
+        if (length < HEADER_LENGTH || mEnd > message.length)
+            return fail();
+
+        for (int section = SECTION_QUESTION; section <= SECTION_ADDITIONAL; section++)
+            mCounts[section] = readShort(offset + 4 + 2 * section);
+        return true;
+    }
+
+    /** @return the transaction ID of the message */
+    public int getId() {
+        return readShort(mOffset);
+    }
+
+    /** @return {@code true} if the message is a response, {@code false} if it is a query */
+    public boolean isResponse() {
+        return (mMessage[mOffset + 2] & 0x80) != 0;
+    }
+
+    /** @return the kind of query, 0 for a standard query */
+    public int getOpcode() {
+        return (mMessage[mOffset + 2] >> 3) & 0x0F;
+    }
+
+    /** @return {@code true} if the message was truncated to fit in a datagram */
+    public boolean isTruncated() {
+        return (mMessage[mOffset + 2] & 0x02) != 0;
+    }
+
+    /** @return the response code of the message */
+    public int getRcode() {
+        return mMessage[mOffset + 3] & 0x0F;
+    }
+
+    /** @return number of records in the given section, e.g. {@link #SECTION_ANSWER} */
+    public int getCount(int section) {
+        return mCounts[section];
+    }
+
+    /**
+     * Moves to the next record of the message. Questions come first, followed by the
+     * answer, authority and additional records.
+     * @return {@code true} if there is a next record, {@code false} if all records were read
+     * or the next record is malformed (see {@link #isComplete()})
+     */
+    public boolean nextRecord() {
+        mIndex++;
+        while (mSection <= SECTION_ADDITIONAL && mIndex >= mCounts[mSection]) {
+            mSection++;
+            mIndex = 0;
+        }
+        if (mSection > SECTION_ADDITIONAL)
+            return false;
+
+        int i = skipName(mNext);
+        if (i < 0)
+            return fail();
+
+        mNameOffset = mNext;
+        if (mSection == SECTION_QUESTION) {
+            if (i + 4 > mEnd)
+                return fail();
+
+            mType = readShort(i);
+            mRecordClass = readShort(i + 2);
+            mTTLOffset = -1;
+            mRDataOffset = -1;
+            mRDataLength = 0;
+            mNext = i + 4;
+            return true;
+        }
+
+        if (i + RR_FIXED_LENGTH > mEnd)
+            return fail();
+
+        mType = readShort(i);
+        mRecordClass = readShort(i + 2);
+        mTTLOffset = i + 4;
+        mRDataLength = readShort(i + 8);
+        mRDataOffset = i + RR_FIXED_LENGTH;
+        mNext = mRDataOffset + mRDataLength;
+        if (mNext > mEnd)
+            return fail();
+        return true;
+    }
+
+    /** Stops at a malformed record */
+    private boolean fail() {
+        mNext = -1;
+        mSection = SECTION_ADDITIONAL + 1;
+        return false;
+    }
+
+    /** @return {@code true} if all records were read without finding a malformed one */
+    public boolean isComplete() {
+        return mSection > SECTION_ADDITIONAL && mNext >= 0;
+    }
+
+    /** @return section of the current record */
+    public int getSection() {
+        return mSection;
+    }
+
+    /** @return offset (in the array) of the name of the current record */
+    public int getNameOffset() {
+        return mNameOffset;
+    }
+
+    /** @return offset (in the array) right after the current record */
+    public int getRecordEnd() {
+        return mNext;
+    }
+
+    /** @return type of the current record, e.g. {@link #TYPE_A} */
+    public int getType() {
+        return mType;
+    }
+
+    /** @return class of the current record */
+    public int getRecordClass() {
+        return mRecordClass;
+    }
+
+    /** @return offset (in the array) of the TTL of the current record, -1 for a question */
+    public int getTTLOffset() {
+        return mTTLOffset;
+    }
+
+    /**
+     * @return TTL (in seconds) of the current record. Values with the top bit set count as 0
+     * (RFC 2181 8). 0 for a question.
+     */
+    public long getTTL() {
+        return mTTLOffset < 0 ? 0 : readTTL(mMessage, mTTLOffset);
+    }
+
+    /** @return offset (in the array) of the data of the current record, -1 for a question */
+    public int getRDataOffset() {
+        return mRDataOffset;
+    }
+
+    /** @return length of the data of the current record */
+    public int getRDataLength() {
+        return mRDataLength;
+    }
+
+    /**
+     * @return the TTL at offset {@code i} of {@code message}. Values with the top bit set
+     * count as 0 (RFC 2181 8).
+     */
+    public static long readTTL(byte[] message, int i) {
+        int ttl = (message[i] & 0xFF) << 24 | (message[i + 1] & 0xFF) << 16 |
+                (message[i + 2] & 0xFF) << 8 | (message[i + 3] & 0xFF);
+        return ttl < 0 ? 0 : ttl;
+    }
+
+    private int readShort(int i) {
+        return (mMessage[i] & 0xFF) << 8 | (mMessage[i + 1] & 0xFF);
+    }
+
+    /** @return offset right after the (possibly compressed) name at {@code i}, or -1 */
+    private int skipName(int i) {
+        int length = 0;
+        while (i < mEnd) {
+            int labelLength = mMessage[i] & 0xFF;
+            if (labelLength == 0)
+                return i + 1;
+
+            // A pointer ends the name
+            if ((labelLength & 0xC0) == 0xC0)
+                return i + 2 <= mEnd ? i + 2 : -1;
+            if ((labelLength & 0xC0) != 0)
+                return -1;
+
+            length += labelLength + 1;
+            if (length > MAX_NAME_LENGTH)
+                return -1;
+            i += labelLength + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Follows compression pointers, which may only point backwards, so that they cannot loop
+     * @return offset of the next label at or after {@code i}, or -1 if the name is malformed
+     */
+    private int resolve(int i) {
+        while (i + 1 < mEnd && (mMessage[i] & 0xC0) == 0xC0) {
+            int target = mOffset + ((mMessage[i] & 0x3F) << 8 | (mMessage[i + 1] & 0xFF));
+            if (target >= i)
+                return -1;
+            i = target;
+        }
+
+        if (i >= mEnd || (mMessage[i] & 0xC0) != 0)
+            return -1;
+        return i;
+    }
+
+    /**
+     * Compares two names of the message, ignoring case as DNS does
+     * @param a offset of a name, e.g. {@link #getNameOffset()}
+     * @param b offset of another name
+     * @return {@code true} if both names are well-formed and equal
+     */
+    public boolean nameEquals(int a, int b) {
+        int length = 0;
+        while (true) {
+            a = resolve(a);
+            b = resolve(b);
+            if (a < 0 || b < 0)
+                return false;
+
+            int labelLength = mMessage[a] & 0xFF;
+            if (labelLength != (mMessage[b] & 0xFF) || a + labelLength >= mEnd ||
+                    b + labelLength >= mEnd)
+                return false;
+            if (labelLength == 0)
+                return true;
+
+            length += labelLength + 1;
+            if (length > MAX_NAME_LENGTH)
+                return false;
+
+            for (int i = 1; i <= labelLength; i++) {
+                if (toLowerCase(mMessage[a + i]) != toLowerCase(mMessage[b + i]))
+                    return false;
+            }
+            a += labelLength + 1;
+            b += labelLength + 1;
+        }
+    }
+
+    /**
+     * @param nameOffset offset of a name, e.g. {@link #getNameOffset()}
+     * @return the name in dotted form, lower-cased as names are case-insensitive, e.g.
+     * www.google.com. {@code ""} for the root, {@code null} if the name is malformed.
+     */
+    public String readName(int nameOffset) {
+        char[] name = null;
+        int length = 0;
+        int i = nameOffset;
+        while (true) {
+            i = resolve(i);
+            if (i < 0)
+                return null;
+
+            int labelLength = mMessage[i] & 0xFF;
+            if (labelLength == 0)
+                break;
+            if (i + labelLength >= mEnd || length + labelLength + 1 > MAX_NAME_LENGTH)
+                return null;
+
+            if (name == null)
+                name = new char[MAX_NAME_LENGTH];
+            if (length > 0)
+                name[length++] = '.';
+            for (int j = 1; j <= labelLength; j++)
+                name[length++] = (char) toLowerCase(mMessage[i + j]);
+            i += labelLength + 1;
+        }
+        return length == 0 ? "" : new String(name, 0, length);
+    }
+
+    private static int toLowerCase(byte b) {
+        int c = b & 0xFF;
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
@@ -40,6 +40,7 @@ public class IpDatagram {
     public static final int IP_HEADER_PSEUDO_LENGTH = 12; // in bytes
     public static final int IP_HEADER_DEFAULT_LENGTH = 20; // in bytes
     public static final int TCP_HEADER_DEFAULT_LENGTH = 20;
+    public static final int TCP_HEADER_MAX_LENGTH = 60; // in bytes, with all options
     public static final int UDP_HEADER_DEFAULT_LENGTH = 8; // in bytes
     public static final int DNSPort = 53;
 
@@ -0,0 +1,107 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted packet buffer handed out by a {@link PacketBufferPool}.
+ * <p>
+ * The backing array is usually larger than the packet it currently holds, so callers must
+ * use {@link #length()} instead of {@code array().length}. Every component that keeps a
+ * reference past the call that handed it the buffer (e.g. a queue of data waiting to be
+ * written to the network, or a queue of packets waiting to be logged) must call
+ * {@link #retain()} and later {@link #release()}. When the last reference is released the
+ * buffer goes back to its pool.
+ * </p>
+ */
+public final class PacketBuffer {
+    /** Pool that owns this buffer, or {@code null} if the buffer is not pooled */
+    private final PacketBufferPool mPool;
+
+    private final byte[] mData;
+
+    private int mLength;
+
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    PacketBuffer(PacketBufferPool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+    }
+
+    /**
+     * Wraps an existing packet in a buffer that does not belong to any pool. Releasing such a
+     * buffer simply drops it.
+     * @param packet the packet to wrap
+     * @return a buffer holding {@code packet} with a reference count of one
+     */
+    public static PacketBuffer wrap(byte[] packet) {
+        PacketBuffer buffer = new PacketBuffer(packet);
+        buffer.mRefCount.set(1);
+        return buffer;
+    }
+
+    private PacketBuffer(byte[] packet) {
+        mPool = null;
+        mData = packet;
+        mLength = packet.length;
+    }
+
+    /** @return the backing array. Only the first {@link #length()} bytes are valid. */
+    public byte[] array() { return mData; }
+
+    /** @return the number of valid bytes in {@link #array()} */
+    public int length() { return mLength; }
+
+    /** @param length the number of valid bytes in {@link #array()} */
+    public void setLength(int length) { mLength = length; }
+
+    /** @return the maximum number of bytes this buffer can hold */
+    public int capacity() { return mData.length; }
+
+    /**
+     * Takes an additional reference to this buffer
+     * @return this buffer, for convenience
+     */
+    public PacketBuffer retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops a reference to this buffer. When no references remain the buffer is returned to its
+     * pool and must no longer be accessed.
+     */
+    public void release() {
+        int refs = mRefCount.decrementAndGet();
+        if (refs == 0) {
+            if (mPool != null)
+                mPool.recycle(this);
+        } else if (refs < 0) {
+            // Double release - do not hand the same buffer out twice
+            mRefCount.set(0);
+        }
+    }
+
+    /** Called by the pool when the buffer is handed out */
+    void reset() {
+        mLength = 0;
+        mRefCount.set(1);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of pre-allocated {@link PacketBuffer}s. All buffers are allocated up-front, so
+ * that reading packets in a steady state does not create garbage. If the pool runs dry (e.g.
+ * because many packets wait to be written to the network), {@link #acquire()} falls back to
+ * allocating a temporary buffer that is simply dropped once released.
+ */
+public class PacketBufferPool {
+    private final ArrayBlockingQueue<PacketBuffer> mFreeBuffers;
+
+    private final int mBufferSize;
+
+    /** Number of times a buffer had to be allocated because the pool was empty */
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param numBuffers the number of buffers to pre-allocate
+     * @param bufferSize the size (in bytes) of each buffer. Must fit the largest packet.
+     */
+    public PacketBufferPool(int numBuffers, int bufferSize) {
+        mBufferSize = bufferSize;
+        mFreeBuffers = new ArrayBlockingQueue<>(numBuffers);
+        for (int i = 0; i < numBuffers; i++)
+            mFreeBuffers.offer(new PacketBuffer(this, bufferSize));
+    }
+
+    /**
+     * Retrieves a buffer from the pool. The returned buffer has a reference count of one and
+     * must be released by the caller once it is done with it.
+     * @return an empty buffer
+     */
+    public PacketBuffer acquire() {
+        PacketBuffer buffer = mFreeBuffers.poll();
+        if (buffer == null) {
+            mMisses.incrementAndGet();
+            buffer = new PacketBuffer(null, mBufferSize);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /** Puts a buffer whose reference count dropped to zero back into the pool */
+    void recycle(PacketBuffer buffer) {
+        mFreeBuffers.offer(buffer);
+    }
+
+    /** @return the number of buffers currently available in the pool */
+    public int getAvailable() { return mFreeBuffers.size(); }
+
+    /** @return the number of times the pool was empty and a buffer had to be allocated */
+    public long getMisses() { return mMisses.get(); }
+
+    /** @return the size (in bytes) of the buffers handed out by this pool */
+    public int getBufferSize() { return mBufferSize; }
+}
@@ -39,6 +39,9 @@ public class PacketDumpInfo {
      * the corresponding packet ({@link #dump}) was allowed through by the filter. */
     private final PacketAnnotation packetAnnotation;
 
+    /** The pooled buffer backing {@link #dump}, if any */
+    private final PacketBuffer buffer;
+
     /**
      * @param dump A packet in binary format
      * @param packetAnnotation the annotation returned by a
@@ -52,8 +55,62 @@ public class PacketDumpInfo {
         this.timestamp = System.currentTimeMillis();
         captureLength = dump.length;
         this.packetAnnotation = packetAnnotation;
+        this.buffer = null;
     }
 
+    /**
+     * Creates a dump holding a copy of the start of a packet
+     * @param packet A packet in binary format
+     * @param originalLength length of the packet
+     * @param captureLength number of bytes of the packet to copy
+     * @param packetAnnotation the annotation returned by a
+     * {@link edu.uci.calit2.antmonitor.lib.vpn.PacketFilter} when the packet dump was allowed
+     *                         through by the filter.
+     */
+    public PacketDumpInfo(byte[] packet, int originalLength, int captureLength,
+                          PacketAnnotation packetAnnotation) {
+        this.dump = new byte[captureLength];
+        System.arraycopy(packet, 0, dump, 0, captureLength);
+        this.originalLength = originalLength;
+        this.timestamp = System.currentTimeMillis();
+        this.captureLength = captureLength;
+        this.packetAnnotation = packetAnnotation;
+        this.buffer = null;
+    }
+
+    /**
+     * Creates a dump backed by a pooled buffer without copying the packet. A reference to
+     * {@code buffer} is retained until {@link #release()} is called, so the caller may release
+     * its own reference right away.
+     * @param buffer a buffer holding the packet
+     * @param packetAnnotation the annotation returned by a
+     * {@link edu.uci.calit2.antmonitor.lib.vpn.PacketFilter} when the packet dump was allowed
+     *                         through by the filter.
+     */
+    public PacketDumpInfo(PacketBuffer buffer, PacketAnnotation packetAnnotation) {
+        this.buffer = buffer.retain();
+        this.dump = buffer.array();
+        this.originalLength = buffer.length();
+        this.timestamp = System.currentTimeMillis();
+        captureLength = buffer.length();
+        this.packetAnnotation = packetAnnotation;
+    }
+
+    /**
+     * Lets go of the pooled buffer backing this dump, if any. Called by the
+     * {@link edu.uci.calit2.antmonitor.lib.logging.PacketQueueReader} once
+     * {@link edu.uci.calit2.antmonitor.lib.logging.PacketConsumer#consumePacket(PacketDumpInfo)}
+     * returns, after which the contents of {@link #getDump()} must no longer be accessed.
+     */
+    public void release() {
+        if (buffer != null)
+            buffer.release();
+    }
+
+    /**
+     * @return the array holding the packet. The array may be larger than the packet, so use
+     * {@link #getOriginalLength()} and {@link #getCaptureLength()} rather than its length.
+     */
     public byte[] getDump() {
         return dump;
     }
@@ -17,15 +17,21 @@
  */
 package edu.uci.calit2.antmonitor.lib.util;
 
-import java.io.BufferedOutputStream;
+import android.annotation.TargetApi;
+import android.os.Build;
+
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * Represents a single PCAPNG file.
@@ -39,26 +45,102 @@ import java.util.concurrent.locks.ReentrantLock;
  * The underlying write buffer for the file associated with an instance of this class is guarded by a lock to ensure
  * thread safety when modifying the associated file.
  * </p>
+ * <p>
+ * Blocks are gathered in a buffer and written to the file together, once the buffer is full or
+ * {@link #FLUSH_INTERVAL} has passed since the last write, rather than with one write per packet.
+ * Since the interval is only checked as blocks are appended, the writer should call
+ * {@link #flush()} when it has nothing to append for a while. The section length of the SHB is
+ * updated in the file on each such write.
+ * </p>
+ * <p>
+ * Packets can also refer to their app by a compact ID rather than a comment, see
+ * {@link #appendAppPacketBlock(int, long, int, int, byte[], String)}. Together with
+ * {@link #addInterface(String, String, String, String, long, int, String, long, byte)}, this lets both directions
+ * of the traffic share one file.
+ * </p>
+ * <p>
+ * The file can also be written compressed, as a gzip stream. Each write of the buffer ends with a sync flush, so
+ * that all blocks written so far can be read back even if the file is never closed, e.g. after a crash. The section
+ * length of the SHB is left unspecified in compressed files, since it cannot be updated.
+ * </p>
  *
  * @author Simon Langhoff, Janus Varmarken
  */
 public class PcapngFile{
+    /** Size (in bytes) of the buffer blocks are gathered in */
+    public static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Longest time (in milliseconds) blocks are kept in the buffer while blocks are appended.
+     * Otherwise, they are kept until the next {@link #flush()}.
+     */
+    public static final long FLUSH_INTERVAL = 1000;
+
+    /**
+     * Block type of an App Description Block (ADB), in the range reserved for local use. It holds the ID of an app
+     * (32 bits), followed by options {@link #ADB_NAME_OPTION} and {@link #ADB_VERSION_OPTION}.
+     */
+    public static final int ADB_TYPE = 0x80000A01;
+
+    /** ADB option holding the package name of the app */
+    public static final short ADB_NAME_OPTION = 2;
+
+    /** ADB option holding the version number of the app */
+    public static final short ADB_VERSION_OPTION = 3;
+
+    /** EPB option holding the ID of the app of the packet (32 bits), in the range reserved for local use */
+    public static final short EPB_APP_ID_OPTION = (short) 0x8001;
+
     //@GuardedBy("mWriterLock")
-    BufferedOutputStream bos;
+    private final FileChannel channel;
 
-    // Room for biggest possible packet + 5 Ints and 1 Long
-    ByteBuffer data = ByteBuffer.allocate(1024 * 16 + 548).order(ByteOrder.BIG_ENDIAN);
+    //@GuardedBy("mWriterLock")
+    private final ByteBuffer data;
 
-    private File file;
+    /** Level of compression of compressed files, favoring speed as packets are compressed as they are logged */
+    public static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
 
-    private RandomAccessFile raf;
+    /** Compresses the blocks of a compressed file, {@code null} if the file is not compressed */
+    //@GuardedBy("mWriterLock")
+    private final Deflater deflater;
+
+    /** Checksum of the uncompressed blocks, for the gzip trailer */
+    //@GuardedBy("mWriterLock")
+    private final CRC32 crc;
 
-    private int limit;
+    //@GuardedBy("mWriterLock")
+    private byte[] deflated;
+
+    /** Position in the file of the data in the buffer */
+    //@GuardedBy("mWriterLock")
+    private long filePosition;
 
-    private long headersOnlyFileSize;
+    /** Position in the file of the SHB */
+    private final long sectionStart;
+
+    /** Time (from {@link System#nanoTime()}) of the last write to the file */
+    //@GuardedBy("mWriterLock")
+    private long lastFlushTime;
+
+    /** Encoded comment of the last packet, most packets of a flow share it */
+    //@GuardedBy("mWriterLock")
+    private String lastComment;
+    private byte[] lastCommentBytes;
+
+    /** IDs of the apps described in the file so far */
+    //@GuardedBy("mWriterLock")
+    private final Map<String, Integer> appIDs = new HashMap<>();
+
+    //@GuardedBy("mWriterLock")
+    private int interfaceCount;
+
+    //@GuardedBy("mWriterLock")
+    private boolean hasPackets;
+
+    private File file;
 
     /**
-     * Provides mutually exclusive access to {@link #bos}.
+     * Provides mutually exclusive access to {@link #channel} and {@link #data}.
      */
     private final ReentrantLock mWriterLock = new ReentrantLock();
 
@@ -101,10 +183,45 @@ public class PcapngFile{
      */
     public PcapngFile(File file, String headerComment,  String hardwareInfo, String osInfo, String appInfo, String ifName, String ifDescription,
                       String ifIPAddr, String ifMacAddr, long ifSpeed, int ifTimezone, String ifFilter, long tsOffset, byte tsRes) throws FileNotFoundException {
+        this(file, headerComment, hardwareInfo, osInfo, appInfo, ifName, ifDescription, ifIPAddr, ifMacAddr, ifSpeed,
+                ifTimezone, ifFilter, tsOffset, tsRes, false);
+    }
+
+    /**
+     * Same as the other constructor, but the file can be compressed.
+     * @param compressed pass {@code true} to write the file as a gzip stream, and {@code false} to write it as is.
+     *                   Compression is only available from Android 4.4 (API 19) on.
+     * @throws FileNotFoundException If the {@code file} does not exist.
+     * @throws IllegalArgumentException If {@code compressed} is {@code true} on a release older than Android 4.4.
+     */
+    public PcapngFile(File file, String headerComment,  String hardwareInfo, String osInfo, String appInfo, String ifName, String ifDescription,
+                      String ifIPAddr, String ifMacAddr, long ifSpeed, int ifTimezone, String ifFilter, long tsOffset, byte tsRes,
+                      boolean compressed) throws FileNotFoundException {
+        if (compressed && !isCompressionSupported())
+            throw new IllegalArgumentException("Compressed pcapng files need Android 4.4 or later");
 
         this.file = file;
-        bos = new BufferedOutputStream(new FileOutputStream(file, true));
-        raf = new RandomAccessFile(file, "rw");
+        channel = new RandomAccessFile(file, "rw").getChannel();
+
+        // Append to the end of the file
+        sectionStart = file.length();
+        filePosition = sectionStart;
+
+        if (compressed) {
+            // The deflater takes arrays
+            data = ByteBuffer.allocate(BUFFER_SIZE);
+            deflater = new Deflater(COMPRESSION_LEVEL, true);
+            crc = new CRC32();
+            deflated = new byte[BUFFER_SIZE / 4];
+
+            // gzip header: magic, deflate, no flags, no time, no extra flags, unknown OS
+            writeFully(ByteBuffer.wrap(new byte[] {
+                    0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff }));
+        } else {
+            data = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            deflater = null;
+            crc = null;
+        }
 
         // BEGIN SBH OPTIONS //
         byte[] hardwareBytes = hardwareInfo.getBytes();
@@ -131,38 +248,6 @@ public class PcapngFile{
         shbLength = 28 + shbOptionsLength ;
 
 
-        // BEGIN IDB OPTIONS //
-        // Get string bytes
-        byte[] ifNameBytes = ifName.getBytes();
-        byte[] ifDescrBytes = ifDescription.getBytes();
-        byte[] ifIPAddrBytes = ifIPAddr.getBytes();
-        byte[] ifMacAddrBytes = ifMacAddr.getBytes();
-        byte[] ifFilterBytes = ifFilter.getBytes();
-
-        // Create empty byte arrays with a specific padding for each option string to align it with a 32-bit word.
-        byte[] ifNamePadding = new byte[(4 - ifNameBytes.length % 4) % 4];
-        byte[] ifDescrPadding = new byte[(4 - ifDescrBytes.length % 4) % 4];
-        byte[] ifIPAddrPadding = new byte[(4 - ifIPAddrBytes.length % 4) % 4];
-        byte[] ifMacAddrPadding = new byte[(4 - ifMacAddrBytes.length % 4) % 4];
-        byte[] ifFilterPadding = new byte[(4 - ifFilterBytes.length % 4) % 4];
-
-
-        // Calculate the total length of the options
-        int idbOptionsLength = ifNameBytes.length + ifNamePadding.length + 4 + //Options value (variable) + (opt_code / opt_len pair (4))
-                ifDescrBytes.length + ifDescrPadding.length + 4 +
-                ifIPAddrBytes.length + ifIPAddrPadding.length + 4 +
-                ifMacAddrBytes.length + ifMacAddrPadding.length + 4 +
-                ifFilterBytes.length + ifFilterPadding.length + 4 +
-                + (12 * 2) + 8  + 4 + 8; // 12+12 bytes for ifSpeed + ifOffset, 8 bytes for ifTimezone, 8 bytes for tsRes, 4 bytes for endOpt
-
-        // END IDB OPTIONS //
-        // calculate IDB length
-        idbLength = 20 + idbOptionsLength ; // IDB non-option fields length + options length
-
-        // Now we know the size of the IDB + SHB, create buffer.
-        // ByteBuffer data = ByteBuffer.allocate(idbLength + shbLength).order(ByteOrder.BIG_ENDIAN);
-        limit = (idbLength + shbLength);
-
         // Write SHB
         data.putInt(shbType);
         data.putInt(shbLength);
@@ -202,6 +287,71 @@ public class PcapngFile{
 
         data.putInt(shbLength);
 
+        // Write IDB
+        putInterfaceDescriptionBlock(ifName, ifDescription, ifIPAddr, ifMacAddr, ifSpeed, ifTimezone,
+                ifFilter, tsOffset, tsRes);
+
+        // Update Section Length
+        sectionLength = idbLength;
+        interfaceCount = 1;
+
+        flush();
+    }
+
+    /**
+     * Appends an Interface Description Block (IDB) describing another interface, e.g. to keep
+     * the packets of both directions in one file. See the constructor for the parameters.
+     * @return the ID of the interface, to pass to
+     * {@link #appendAppPacketBlock(int, long, int, int, byte[], String)}
+     */
+    public int addInterface(String ifName, String ifDescription, String ifIPAddr, String ifMacAddr,
+                            long ifSpeed, int ifTimezone, String ifFilter, long tsOffset, byte tsRes) {
+        mWriterLock.lock();
+        try {
+            putInterfaceDescriptionBlock(ifName, ifDescription, ifIPAddr, ifMacAddr, ifSpeed,
+                    ifTimezone, ifFilter, tsOffset, tsRes);
+            sectionLength += idbLength;
+            return interfaceCount++;
+        } finally {
+            mWriterLock.unlock();
+        }
+    }
+
+    private void putInterfaceDescriptionBlock(String ifName, String ifDescription, String ifIPAddr,
+                                              String ifMacAddr, long ifSpeed, int ifTimezone,
+                                              String ifFilter, long tsOffset, byte tsRes) {
+        // BEGIN IDB OPTIONS //
+        // Get string bytes
+        byte[] ifNameBytes = ifName.getBytes();
+        byte[] ifDescrBytes = ifDescription.getBytes();
+        byte[] ifIPAddrBytes = ifIPAddr.getBytes();
+        byte[] ifMacAddrBytes = ifMacAddr.getBytes();
+        byte[] ifFilterBytes = ifFilter.getBytes();
+
+        // Create empty byte arrays with a specific padding for each option string to align it with a 32-bit word.
+        byte[] ifNamePadding = new byte[(4 - ifNameBytes.length % 4) % 4];
+        byte[] ifDescrPadding = new byte[(4 - ifDescrBytes.length % 4) % 4];
+        byte[] ifIPAddrPadding = new byte[(4 - ifIPAddrBytes.length % 4) % 4];
+        byte[] ifMacAddrPadding = new byte[(4 - ifMacAddrBytes.length % 4) % 4];
+        byte[] ifFilterPadding = new byte[(4 - ifFilterBytes.length % 4) % 4];
+
+
+        // Calculate the total length of the options
+        int idbOptionsLength = ifNameBytes.length + ifNamePadding.length + 4 + //Options value (variable) + (opt_code / opt_len pair (4))
+                ifDescrBytes.length + ifDescrPadding.length + 4 +
+                ifIPAddrBytes.length + ifIPAddrPadding.length + 4 +
+                ifMacAddrBytes.length + ifMacAddrPadding.length + 4 +
+                ifFilterBytes.length + ifFilterPadding.length + 4 +
+                + (12 * 2) + 8  + 4 + 8; // 12+12 bytes for ifSpeed + ifOffset, 8 bytes for ifTimezone, 8 bytes for tsRes, 4 bytes for endOpt
+
+        // END IDB OPTIONS //
+        // calculate IDB length
+        idbLength = 20 + idbOptionsLength ; // IDB non-option fields length + options length
+
+        // Make room in the buffer, e.g. for an interface added after packets were appended
+        if (idbLength > data.remaining())
+            flush();
+
         // Write IDB
         data.putInt(idbType);
         data.putInt(idbLength);
@@ -260,17 +410,12 @@ public class PcapngFile{
 
         // Write length
         data.putInt(idbLength);
-
-        // Update Section Length
-        sectionLength = idbLength;
-
-        writeToFile(data);
-
-        headersOnlyFileSize = file.length();
     }
 
     /**
      * Create an Enhanced Packet Block (EPB) and append it to the current file. This method also updates the section length 32 bit word of the previous SHB with the added length of this packet block.
+     * The packet is recorded on interface 0; use {@link #appendAppPacketBlock(int, long, int, int, byte[], String)}
+     * for packets of interfaces added with {@link #addInterface(String, String, String, String, long, int, String, long, byte)}.
      * @param timestamp The timestamp for when the packet was captured. This should adhere to the format specified in the IDB.
      * @param capturedLength The number of bytes captured from the packet. (padding not included).
      * @param originalLength The length of the original packet as it was sent on the wire.
@@ -278,75 +423,250 @@ public class PcapngFile{
      * @param comment a comment about the packet captured. An example hereof could the name of the application from which the packet was intercepted.
      */
     public void appendEnhancedPacketBlock(long timestamp, int capturedLength, int originalLength, byte[] packet, String comment){
-        int interfaceID = 0; // TODO: right now only one interface is supported
+        int interfaceID = 0; // The interface described in the constructor
 
-        byte[] packetDataPadding = new byte[(4 - capturedLength % 4) % 4]; // padding for packet
+        mWriterLock.lock();
+        try {
+            if (!comment.equals(lastComment)) {
+                lastComment = comment;
+                lastCommentBytes = comment.getBytes();
+            }
+            putEnhancedPacketBlock(interfaceID, timestamp, capturedLength, originalLength, packet,
+                    lastCommentBytes, 0);
+        } finally {
+            mWriterLock.unlock();
+        }
+    }
 
-        byte[] commentBytes = comment.getBytes();
+    /**
+     * Create an Enhanced Packet Block (EPB) that refers to the app of the packet by ID, and append it to the current
+     * file. The first packet of each app is preceded by an App Description Block (ADB) that maps the ID to the app.
+     * @param interfaceID ID of the interface the packet was captured on, 0 or one returned by
+     *                    {@link #addInterface(String, String, String, String, long, int, String, long, byte)}
+     * @param timestamp The timestamp for when the packet was captured. This should adhere to the format specified in the IDB.
+     * @param capturedLength The number of bytes captured from the packet. (padding not included).
+     * @param originalLength The length of the original packet as it was sent on the wire.
+     * @param packet The packet
+     * @param app name of the application from which the packet was intercepted, optionally followed by "#" and its
+     *            version number
+     */
+    public void appendAppPacketBlock(int interfaceID, long timestamp, int capturedLength, int originalLength,
+                                     byte[] packet, String app){
+        mWriterLock.lock();
+        try {
+            Integer appID = appIDs.get(app);
+            if (appID == null) {
+                appID = appIDs.size();
+                appIDs.put(app, appID);
+                putAppDescriptionBlock(appID, app);
+            }
+            putEnhancedPacketBlock(interfaceID, timestamp, capturedLength, originalLength, packet,
+                    null, appID);
+        } finally {
+            mWriterLock.unlock();
+        }
+    }
 
-        // Create empty byte arrays with a specific padding for each option string to align it with a 32-bit word.
-        byte[] commentPadding = new byte[(4 - commentBytes.length % 4) % 4];
+    private void putAppDescriptionBlock(int appID, String app) {
+        int separator = app.indexOf('#');
+        byte[] nameBytes = (separator < 0 ? app : app.substring(0, separator)).getBytes();
+        byte[] versionBytes = separator < 0 ? null : app.substring(separator + 1).getBytes();
 
-        int idbOptionsLength = 4 + commentBytes.length + commentPadding.length + 4; // 4 bytes for comment option header + 4 bytes for end_opt.
+        // Padding for each option string to align it with a 32-bit word.
+        int namePadding = (4 - nameBytes.length % 4) % 4;
+        int versionPadding = versionBytes == null ? 0 : (4 - versionBytes.length % 4) % 4;
 
-        //Calculate total length
-        int epbLength = 32 + capturedLength + packetDataPadding.length + idbOptionsLength;
+        int adbOptionsLength = 4 + nameBytes.length + namePadding + 4; // 4 bytes for name option header + 4 bytes for end_opt.
+        if (versionBytes != null)
+            adbOptionsLength += 4 + versionBytes.length + versionPadding;
 
-//        ByteBuffer data = ByteBuffer.allocate(epbLength).order(ByteOrder.BIG_ENDIAN);
-        data.position(0);
-        limit = epbLength;
+        int adbLength = 16 + adbOptionsLength;
 
-        // Write EPB
-        data.putInt(0x00000006); //blocktype
-        data.putInt(epbLength);
-        data.putInt(interfaceID);
-        data.putLong(timestamp);
-        data.putInt(capturedLength);
-        data.putInt(originalLength);
-        data.put(packet, 0, capturedLength);
-        data.put(packetDataPadding);
+        // Make room in the buffer
+        if (adbLength > data.remaining())
+            flush();
 
+        data.putInt(ADB_TYPE);
+        data.putInt(adbLength);
+        data.putInt(appID);
 
-        // Write Options
-        // TODO: add comment to each packet?
-        data.putShort((short)1); // Comment
-        data.putShort((short) commentBytes.length); // comment length without padding
-        data.put(commentBytes);
-        data.put(commentPadding);
+        data.putShort(ADB_NAME_OPTION); // package name
+        data.putShort((short) nameBytes.length);
+        data.put(nameBytes);
+        putPadding(data, namePadding);
 
+        if (versionBytes != null) {
+            data.putShort(ADB_VERSION_OPTION); // version number
+            data.putShort((short) versionBytes.length);
+            data.put(versionBytes);
+            putPadding(data, versionPadding);
+        }
 
         // END OPTIONS
         data.putShort((short) 0); // opt_endofopt
         data.putShort((short) 0); // opt_length == 0
 
-        data.putInt(epbLength);
+        data.putInt(adbLength);
+
+        sectionLength += adbLength;
+    }
+
+    /**
+     * Writes an EPB to the buffer
+     * @param commentBytes comment of the packet, or {@code null} to refer to the app by ID instead
+     */
+    private void putEnhancedPacketBlock(int interfaceID, long timestamp, int capturedLength, int originalLength,
+                                        byte[] packet, byte[] commentBytes, int appID) {
+        // Padding for the packet and the comment, to align them with a 32-bit word.
+        int packetDataPadding = (4 - capturedLength % 4) % 4;
+        int commentPadding = commentBytes == null ? 0 : (4 - commentBytes.length % 4) % 4;
+
+        int idbOptionsLength = commentBytes == null ? 4 + 4 + 4 : // 4 bytes for the app ID option header + 4 bytes for the ID
+                4 + commentBytes.length + commentPadding + 4; // 4 bytes for comment option header + 4 bytes for end_opt.
+
+        //Calculate total length
+        int epbLength = 32 + capturedLength + packetDataPadding + idbOptionsLength;
+
+        // Make room in the buffer. A block bigger than the buffer gets a buffer of its own.
+        ByteBuffer block = data;
+        if (epbLength > data.remaining()) {
+            flush();
+            if (epbLength > data.capacity())
+                block = ByteBuffer.allocate(epbLength);
+        }
+
+        // Write EPB
+        block.putInt(0x00000006); //blocktype
+        block.putInt(epbLength);
+        block.putInt(interfaceID);
+        block.putLong(timestamp);
+        block.putInt(capturedLength);
+        block.putInt(originalLength);
+        block.put(packet, 0, capturedLength);
+        putPadding(block, packetDataPadding);
+
+
+        // Write Options
+        if (commentBytes != null) {
+            block.putShort((short)1); // Comment
+            block.putShort((short) commentBytes.length); // comment length without padding
+            block.put(commentBytes);
+            putPadding(block, commentPadding);
+        } else {
+            block.putShort(EPB_APP_ID_OPTION);
+            block.putShort((short) 4);
+            block.putInt(appID);
+        }
+
+
+        // END OPTIONS
+        block.putShort((short) 0); // opt_endofopt
+        block.putShort((short) 0); // opt_length == 0
+
+        block.putInt(epbLength);
 
         // Update section length
         sectionLength = epbLength + sectionLength;
+        hasPackets = true;
+
+        if (block != data) {
+            block.flip();
+            write(block);
+            overwriteSectionLength(sectionLength);
+        } else if (System.nanoTime() - lastFlushTime > FLUSH_INTERVAL * 1000000) {
+            flush();
+        }
+    }
 
-        // Write to file
-        writeToFile(data);
+    private static void putPadding(ByteBuffer block, int length) {
+        for (int i = 0; i < length; i++)
+            block.put((byte) 0);
     }
 
     private void overwriteSectionLength(long sectionLength){
+        // A compressed file cannot be updated
+        if (deflater != null)
+            return;
+
         // Update the section length block with the new length.
         // Note: with this approach we cannot merge multiple section header blocks into one pcapfile,
         // then extra care would be needed to correctly override the section length for the correct SHB
+        ByteBuffer length = ByteBuffer.allocate(8);
+        length.putLong(0, sectionLength);
         try {
-            raf.seek(16);
-            raf.writeLong(sectionLength);
+            while (length.hasRemaining())
+                channel.write(length, sectionStart + 16 + length.position());
         }catch (IOException ioe){
             ioe.printStackTrace();
         }
     }
 
-    private void writeToFile(ByteBuffer data){
-        mWriterLock.lock();
+    /** Writes all of {@code block} at the end of the file */
+    private void writeFully(ByteBuffer block) {
         try {
-            bos.write(data.array(), 0, limit);
-            bos.flush();
+            while (block.hasRemaining())
+                filePosition += channel.write(block, filePosition);
         } catch (IOException e) {
             e.printStackTrace();
+        }
+    }
+
+    /** @return {@code true} if files can be compressed, which needs Android 4.4 (API 19) or later */
+    public static boolean isCompressionSupported() {
+        // Sync flushes of the deflater need API 19
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /** Writes {@code block} to the file, compressed if the file is */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void write(ByteBuffer block) {
+        if (deflater == null) {
+            writeFully(block);
+            return;
+        }
+
+        crc.update(block.array(), block.arrayOffset() + block.position(), block.remaining());
+        deflater.setInput(block.array(), block.arrayOffset() + block.position(), block.remaining());
+        block.position(block.limit());
+
+        // Sync flush, so that everything written so far can be decompressed
+        int length;
+        do {
+            length = deflater.deflate(deflated, 0, deflated.length, Deflater.SYNC_FLUSH);
+            writeFully(ByteBuffer.wrap(deflated, 0, length));
+        } while (length == deflated.length);
+    }
+
+    /** Ends the gzip stream of a compressed file */
+    private void finishCompression() {
+        deflater.finish();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(deflated);
+            writeFully(ByteBuffer.wrap(deflated, 0, length));
+        }
+
+        // gzip trailer: checksum and length of the uncompressed data
+        ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt((int) deflater.getBytesRead());
+        trailer.flip();
+        writeFully(trailer);
+        deflater.end();
+    }
+
+    /**
+     * Writes the blocks gathered so far to the file, and updates the section length in the file.
+     */
+    public void flush() {
+        mWriterLock.lock();
+        try {
+            if (data.position() > 0) {
+                data.flip();
+                write(data);
+                data.clear();
+                overwriteSectionLength(sectionLength);
+            }
+            lastFlushTime = System.nanoTime();
         } finally {
             mWriterLock.unlock();
         }
@@ -361,17 +681,17 @@ public class PcapngFile{
     }
 
     /**
-     * Closes the underlying {@link FileOutputStream} and renames the file to that of the specified file
+     * Writes the blocks gathered so far, closes the underlying {@link FileChannel} and renames the file to that of the specified file
      * @param newFile a file containing the name/path of the final file.
      */
     public void renameAndEndFile(File newFile){
-        overwriteSectionLength(sectionLength);
-
         mWriterLock.lock();
+        flush();
+        if (deflater != null)
+            finishCompression();
         file.renameTo(newFile);
         try {
-            bos.flush();
-            bos.close();
+            channel.close();
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -381,11 +701,16 @@ public class PcapngFile{
 
     /**
      * Determines whether or not this file contains any packets.
-     * In case there is only a SHB and IDB defined (or none), this will return true
+     * In case there is only a SHB and IDBs defined (or none), this will return true
      * @return True if no EHB blocks has been appended. Otherwise false.
      */
     public boolean isFileEmpty(){
-        return file.length() <= this.headersOnlyFileSize;
+        mWriterLock.lock();
+        try {
+            return !hasPackets;
+        } finally {
+            mWriterLock.unlock();
+        }
     }
 
     public long getSectionLength(){
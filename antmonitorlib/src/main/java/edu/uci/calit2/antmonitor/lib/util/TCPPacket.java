@@ -219,6 +219,22 @@ public class TCPPacket {
         return extractTCPv4AckNumber(packet, 0);
     }
 
+    /**
+     * Extract the (unscaled) window size advertised by a TCPv4 packet
+     * @param packet
+     * @param offset Offset into the packet
+     * @return
+     */
+    public static int extractTCPv4Window(byte[] packet, int offset) {
+        // Window is bytes 15,16 after IP header
+        int ipHeaderLen = IpDatagram.extractIPv4HeaderLength(packet, offset);
+        return ((packet[offset+ipHeaderLen+14] & 0xFF) << 8) | (packet[offset+ipHeaderLen+15] & 0xFF);
+    }
+
+    public static int extractTCPv4Window(byte[] packet) {
+        return extractTCPv4Window(packet, 0);
+    }
+
     /**
      * Extract TCPv4 header length in byte of a given TCP packet
      * @param packet
@@ -243,7 +259,138 @@ public class TCPPacket {
         return extractTCPv4HeaderLength(packet, 0);
     }
 
+    /** TCP option kinds (RFC 793, RFC 2018, RFC 7323) */
+    public static final int OPTION_END = 0;
+    public static final int OPTION_NOP = 1;
+    public static final int OPTION_MSS = 2;
+    public static final int OPTION_WINDOW_SCALE = 3;
+    public static final int OPTION_SACK_PERMITTED = 4;
+    public static final int OPTION_TIMESTAMPS = 8;
+
+    /** Largest shift count allowed by the Window Scale option */
+    public static final int MAX_WINDOW_SCALE = 14;
+
+    /**
+     * Find a TCP option of a TCPv4 packet
+     * @param packet
+     * @param offset Offset into the packet
+     * @param kind kind of the option to find
+     * @param length expected length of the option, including its kind and length bytes
+     * @return the index of the option's kind byte in the packet, or -1 if the packet
+     * does not have a well-formed option of this kind
+     */
+    public static int findTCPv4Option(byte[] packet, int offset, int kind, int length) {
+        int ipHeaderLen = IpDatagram.extractIPv4HeaderLength(packet, offset);
+        int optionsStart = offset + ipHeaderLen + IpDatagram.TCP_HEADER_DEFAULT_LENGTH;
+        int optionsEnd = offset + ipHeaderLen + extractTCPv4HeaderLength(packet, offset);
+
+        int i = optionsStart;
+        while (i < optionsEnd) {
+            int currentKind = packet[i] & 0xFF;
+            if (currentKind == OPTION_END)
+                break;
+            if (currentKind == OPTION_NOP) {
+                i++;
+                continue;
+            }
+            if (i + 1 >= optionsEnd)
+                break;
+
+            int len = packet[i+1] & 0xFF;
+            if (len < 2 || i + len > optionsEnd)
+                break;
+
+            if (currentKind == kind)
+                return len == length ? i : -1;
+
+            i += len;
+        }
+        return -1;
+    }
+
+    /**
+     * Extract the shift count of the Window Scale option (RFC 7323) of a TCPv4 packet
+     * @param packet
+     * @param offset Offset into the packet
+     * @return the shift count (at most 14), or -1 if the packet does not have the option
+     */
+    public static int extractTCPv4WindowScale(byte[] packet, int offset) {
+        int i = findTCPv4Option(packet, offset, OPTION_WINDOW_SCALE, 3);
+        if (i < 0)
+            return -1;
+
+        return Math.min(packet[i+2] & 0xFF, MAX_WINDOW_SCALE);
+    }
+
+    public static int extractTCPv4WindowScale(byte[] packet) {
+        return extractTCPv4WindowScale(packet, 0);
+    }
+
+    /**
+     * Extract the Maximum Segment Size option of a TCPv4 packet
+     * @param packet
+     * @param offset Offset into the packet
+     * @return the MSS, or -1 if the packet does not have the option
+     */
+    public static int extractTCPv4MSS(byte[] packet, int offset) {
+        int i = findTCPv4Option(packet, offset, OPTION_MSS, 4);
+        if (i < 0)
+            return -1;
+
+        return ((packet[i+2] & 0xFF) << 8) | (packet[i+3] & 0xFF);
+    }
+
+    public static int extractTCPv4MSS(byte[] packet) {
+        return extractTCPv4MSS(packet, 0);
+    }
+
+    /**
+     * @param packet
+     * @param offset Offset into the packet
+     * @return {@code true} if the TCPv4 packet has the SACK-Permitted option (RFC 2018)
+     */
+    public static boolean isSackPermitted(byte[] packet, int offset) {
+        return findTCPv4Option(packet, offset, OPTION_SACK_PERMITTED, 2) >= 0;
+    }
+
+    public static boolean isSackPermitted(byte[] packet) {
+        return isSackPermitted(packet, 0);
+    }
+
+    /**
+     * Extract the TSval field of the Timestamps option (RFC 7323) of a TCPv4 packet
+     * @param packet
+     * @param offset Offset into the packet
+     * @return TSval, or -1 if the packet does not have the option
+     */
+    public static long extractTCPv4Timestamp(byte[] packet, int offset) {
+        int i = findTCPv4Option(packet, offset, OPTION_TIMESTAMPS, 10);
+        if (i < 0)
+            return -1;
+
+        return (    (packet[i+2] << 24 & 0x00000000FF000000L)
+                | (packet[i+3] << 16 & 0x0000000000FF0000L)
+                | (packet[i+4] <<  8 & 0x000000000000FF00L)
+                | (packet[i+5]       & 0x00000000000000FFL)   );
+    }
+
+    public static long extractTCPv4Timestamp(byte[] packet) {
+        return extractTCPv4Timestamp(packet, 0);
+    }
+
     public static boolean isClientHello(byte[] packet, int dataOffset) {
+        return isClientHello(packet, dataOffset, packet.length - dataOffset);
+    }
+
+    /**
+     * Checks if the given TCP payload starts with a TLS Client Hello message
+     * @param packet array containing the TCP payload
+     * @param dataOffset offset of the payload within {@code packet}
+     * @param dataLength length of the payload. Bytes of {@code packet} that come after the
+     *                   payload are ignored.
+     * @return {@code true} if the payload is a Client Hello, {@code false} otherwise
+     */
+    public static boolean isClientHello(byte[] packet, int dataOffset, int dataLength) {
         /* Following guide from https://github.com/dlundquist/sniproxy/blob/master/src/tls.c */
 
         final int TLS_HEADER_LEN = 5;
@@ -252,7 +399,8 @@ public class TCPPacket {
         final byte HANDSHAKE_TYPE__CLIENT_HELLO = 1;
         final byte TLS_VERSION_MAJOR = 0x03;
 
-        final int dataLen = packet.length - dataOffset;
+        final int dataLen = dataLength;
+        final int end = dataOffset + dataLength;
 
         if (dataLen < TLS_HEADER_LEN) {
             //Log.e(TAG, "Invalid TLS Packet. Less than TLS Header Length");
@@ -260,7 +408,7 @@ public class TCPPacket {
             return false;
         }
 
-        if (index < packet.length) {
+        if (index < end) {
             byte contentType = packet[index];
             byte tlsVersionMajor = packet[index+1];
             byte tlsMinorMajor = packet[index+2];
@@ -281,7 +429,7 @@ public class TCPPacket {
                 index += TLS_HEADER_LEN;
 
                 // start of handshake
-                if (index < packet.length) {
+                if (index < end) {
                     byte handshakeType = packet[index];
                     return handshakeType == HANDSHAKE_TYPE__CLIENT_HELLO;
                 }
@@ -296,6 +444,20 @@ public class TCPPacket {
     }
 
     public static String extractServerNameFromClientHello(byte[] packet, int dataOffset) {
+        return extractServerNameFromClientHello(packet, dataOffset, packet.length - dataOffset);
+    }
+
+    /**
+     * Extracts the SNI host name from a TLS Client Hello message
+     * @param packet array containing the TCP payload
+     * @param dataOffset offset of the payload within {@code packet}
+     * @param dataLength length of the payload. Bytes of {@code packet} that come after the
+     *                   payload are ignored.
+     * @return the server name, or {@code null} if none was found
+     */
+    public static String extractServerNameFromClientHello(byte[] packet, int dataOffset,
+                                                          int dataLength) {
+        final int end = dataOffset + dataLength;
         String serverName = null;
         int index = dataOffset;
         // skip content type, version, length
@@ -312,21 +474,21 @@ public class TCPPacket {
         // skip time (4) and random bytes (28)
         index += 32;
 
-        if (index >= packet.length) return serverName;
+        if (index >= end) return serverName;
         //skip session id length:
         int sessionIdLength = (packet[index] & 0x000000FF);
         index += sessionIdLength + 1;
 
-        if (index+1 >= packet.length) return serverName;
+        if (index+1 >= end) return serverName;
         int cyberSuitesLength = ((packet[index] << 8 & 0x0000FF00) | (packet[index+1] & 0x000000FF));
         index += cyberSuitesLength + 2;
 
-        if (index >= packet.length) return serverName;
+        if (index >= end) return serverName;
         int compressionMethodLength = (packet[index] & 0x000000FF);
         index += compressionMethodLength + 1;
 
         // sometimes, a client hello can have no extensions
-        if (index+1 >= packet.length) return serverName;
+        if (index+1 >= end) return serverName;
         // read in extensions length that will tell how big the entire extensions list is
         int extensionsLength = ((packet[index] << 8 & 0x0000FF00) | (packet[index+1] & 0x000000FF));
 
@@ -337,19 +499,19 @@ public class TCPPacket {
         final int SERVER_NAME = 0;
 
         // loop through every extension and find the server name
-        while(extensionsCounter < extensionsLength && index < packet.length) {
+        while(extensionsCounter < extensionsLength && index < end) {
 
-            if (index+1 >= packet.length) break;
+            if (index+1 >= end) break;
 
             int extensionType = ((packet[index] << 8 & 0x0000FF00) | (packet[index+1] & 0x000000FF));
             index+= 2;
 
-            if (index+1 >= packet.length) break;
+            if (index+1 >= end) break;
 
             int extLength = ((packet[index] << 8 & 0x0000FF00) | (packet[index+1] & 0x000000FF));
             index+= 2;
 
-            if (index+extLength >= packet.length) break;
+            if (index+extLength >= end) break;
 
             if (extensionType == SERVER_NAME) {
                 // read in server name and return
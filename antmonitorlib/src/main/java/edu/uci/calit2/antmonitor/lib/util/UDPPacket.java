@@ -90,88 +90,49 @@ public class UDPPacket {
      * @return transaction ID (TXID) of the given DNS packet
      */
     public static int extractUDPv4Txid(byte[] packet) {
+        return extractUDPv4Txid(packet, 0);
+    }
+
+    /**
+     * Extracts the transaction ID (TXID) of the given DNS packet
+     * @param packet containing a DNS request/response
+     * @param offset offset of the DNS message (i.e. the UDP payload) within {@code packet}
+     * @return transaction ID (TXID) of the given DNS packet
+     */
+    public static int extractUDPv4Txid(byte[] packet, int offset) {
         // TXID resides in the first 2 bytes of data
-        return ((packet[0] << 8 & 0x0000FF00) | (packet[1] & 0x000000FF));
+        return ((packet[offset] << 8 & 0x0000FF00) | (packet[offset+1] & 0x000000FF));
     }
 
     /**
      * Parses the provided DNS data packet and fills out provided map with mappings of IP
-     * address to host names. E.g., 216.58.193.196 -> www.google.com
+     * address to host names. E.g., 216.58.193.196 -> www.google.com. Each IPv4 address
+     * answered is mapped to the name that was asked for, even if it was reached through
+     * CNAME records.
      * @param ipToHostMap the map to add entries to
      * @param packet packet containing DNS data
      */
     public static void mapIPtoHostName(Map<String, String> ipToHostMap, byte[] packet) {
         // See RFC 1035 for a reference on how this parsing works:
         // https://tools.ietf.org/html/rfc1035#section-4.1.3
-        //Log.d("NS", "flags " + packet[2] + " " + packet[3]);
-
-        // TODO: check flags for a correct standard response
-
-        int numQuestions = ((packet[4] << 8 & 0x0000FF00) | (packet[5] & 0x000000FF));
-        //Log.d("NS", "qs: " + numQuestions);
-
-        int numAnswers = ((packet[6] << 8 & 0x0000FF00) | (packet[7] & 0x000000FF));
-        //Log.d("NS", "an: " + numAnswers);
-
-        if (numQuestions != 1 || numAnswers == 0)
+        DNSMessage message = new DNSMessage();
+        if (!message.parse(packet, 0, packet.length) || !message.isResponse() ||
+                message.getCount(DNSMessage.SECTION_QUESTION) != 1 ||
+                message.getCount(DNSMessage.SECTION_ANSWER) == 0 || !message.nextRecord())
             return;
 
-        // 8, 9, 10, 11 are additional info we skip
-        // TODO: assumng 1 question for now
-        StringBuilder name = new StringBuilder();
-        int i = 12;
-        while (packet[i] != 0 && i < packet.length) {
-            int labelLen = packet[i] & 0x000000FF;
-            int position = i;
-            i++;
-            while (i <= position + labelLen) {
-                name.append((char) (packet[i] & 0xFF));
-                i++;
-            }
-            name.append(".");
-        }
-        // Get rid of trailing "."
-        String finalName = name.length() != 0 ? name.substring(0, name.length() - 1) : null;
-
-        // Skip name and type, +1 for being AT start of answer
-        i += 5;
-
-        // Now parse the answers:
-        for (int answer = 0; answer < numAnswers; answer++) {
-            byte mask = (byte) 0b11000000; // 192 as an unsigned int, -64 as signed int
-            int and = ((int) mask) & ((int) packet[i]);
-            if (and != -64) {
-                return; //TODO: deal with non-compressed names
-            }
-
-            // Skip the offset of compressed name
-            i += 2;
-
-            // get Answer type
-            int answerTypeCode = ((packet[i++] << 8 & 0x0000FF00) | (packet[i++] & 0x000000FF));
-
-            // Skip answer CLASS (2) and TTL (4)
-            i += 6;
-
-            // get the rdata length
-            int answerRDataLength = ((packet[i++] << 8 & 0x0000FF00) | (packet[i++] & 0x000000FF));
-
-            if (answerTypeCode != 1 || answerRDataLength != 4) {
-                /* Skip past answers that:
-                 *      - are not of type is A (value 1, host address) Section-3.2.2 of RFC 1035
-                 *      - do not have data of length 4 since we only deal with IPv4 for now
-                 */
+        String name = message.readName(message.getNameOffset());
+        if (name == null)
+            return;
 
-                // Skip past this answer's RDATA for the next iteration:
-                i += answerRDataLength;
+        while (message.nextRecord() && message.getSection() == DNSMessage.SECTION_ANSWER) {
+            // Only deal with A records (host address, RFC 1035 3.2.2) of IPv4 addresses
+            if (message.getType() != DNSMessage.TYPE_A || message.getRDataLength() != 4)
                 continue;
-            }
 
-            // read in IP!!
-            String ipAddr = IpDatagram.ipv4addressBytesToString(packet[i++], packet[i++],
-                                                                packet[i++], packet[i++]);
-            //Log.d("NS", "adding: " + ipAddr + " -> " + finalName);
-            ipToHostMap.put(ipAddr, finalName);
+            int i = message.getRDataOffset();
+            ipToHostMap.put(IpDatagram.ipv4addressBytesToString(packet[i], packet[i + 1],
+                    packet[i + 2], packet[i + 3]), name);
         }
     }
 
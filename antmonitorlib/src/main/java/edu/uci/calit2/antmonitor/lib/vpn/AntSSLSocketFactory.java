@@ -34,6 +34,7 @@ import org.sandrob.bouncycastle.x509.extension.SubjectKeyIdentifierStructure;
 import org.sandrop.webscarab.plugin.proxy.SiteData;
 import org.sandroproxy.constants.Constants;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -51,16 +52,24 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -81,6 +90,23 @@ class AntSSLSocketFactory {
     private static final long DEFAULT_VALIDITY = 10L * 365L * 24L * 60L * 60L
             * 1000L;
 
+    /** Most contexts kept in memory */
+    private static final int MAX_CACHED_CONTEXTS = 128;
+
+    /** Most host certificates kept in the keystore, and thus on disk */
+    private static final int MAX_STORED_CERTS = 1024;
+
+    /** Age after which a host certificate is made again, e.g. to pick up new alternative
+     * names of the host */
+    private static final long CERT_EXPIRY = 30L * 24L * 60L * 60L * 1000L;
+
+    /** Delay (in milliseconds) before the keystore is saved after a change, so that the
+     * certificates of a burst of new hosts are saved at once */
+    private static final long SAVE_DELAY = 10 * 1000;
+
+    /** Most key pairs generated ahead of time, for each algorithm */
+    private static final int KEY_POOL_SIZE = 8;
+
     private static final String TAG = AntSSLSocketFactory.class.getSimpleName();
 
     private static Logger _logger = Logger
@@ -121,7 +147,28 @@ class AntSSLSocketFactory {
 
     private boolean reuseKeys = false;
 
-    private Map<String, SSLContext> contextCache = new ConcurrentHashMap<>();
+    /** Contexts by key, least recently used first */
+    private final Map<String, SSLContext> contextCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, SSLContext>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SSLContext> eldest) {
+                    return size() > MAX_CACHED_CONTEXTS;
+                }
+            });
+
+    /** Expiry times of the certificates in {@link #keystoreCert} by alias, least recently
+     * used first. Guarded by {@link #keystoreCert}, as are {@link #serials}. */
+    private final LinkedHashMap<String, Long> storedCerts = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** {@code true} while a save of {@link #keystoreCert} is scheduled */
+    private final AtomicBoolean savePending = new AtomicBoolean();
+
+    /** Key pairs for host certificates */
+    private final KeyPairPool rsaKeys = new KeyPairPool("RSA",
+            new RSAKeyGenParameterSpec(1024, RSAKeyGenParameterSpec.F4), KEY_POOL_SIZE);
+    private final KeyPairPool ecKeys = new KeyPairPool("EC",
+            new ECGenParameterSpec("secp256r1"), KEY_POOL_SIZE);
+
     final Map<String, String> domainToContextKey = new ConcurrentHashMap<>();
     Map<String, Set<String>> domainToAltNames = new ConcurrentHashMap<>();
     private Map<String, Object> contextLocks = new ConcurrentHashMap<>();
@@ -213,7 +260,7 @@ class AntSSLSocketFactory {
                 saveKeystore(keystoreCert, filenameCert, passwordCerts);
             }
             is.close();
-            initSerials();
+            initStoredCerts();
         }
     }
 
@@ -233,6 +280,17 @@ class AntSSLSocketFactory {
         reuseKeys = reuse;
     }
 
+    /** @return pool of key pairs of the kind used for new host certificates */
+    private KeyPairPool getKeyPairPool() {
+        return ForwarderManager.SSL_ECDSA_CERTS_ENABLED ? ecKeys : rsaKeys;
+    }
+
+    /** Starts generating key pairs for new host certificates in the background */
+    void fillKeyPairPool() {
+        if (!reuseKeys)
+            getKeyPairPool().start();
+    }
+
     protected String getCertEntry(SiteData hostData) {
         String certEntry = hostData.tcpAddress != null ? hostData.tcpAddress + "_" + hostData.destPort: hostData.name;
         if (hostData.hostName != null) {
@@ -251,8 +309,9 @@ class AntSSLSocketFactory {
                 ForwarderManager.Logg.d(TAG, "Host name that had no contextKey: " + hostData.name);
             }
         }
-        // new context
-        String contextKey = UUID.randomUUID().toString();
+        // new context, named after the domain so that its certificate is found after a restart
+        String contextKey = hostData.name != null && !hostData.name.isEmpty() ?
+                hostData.name : UUID.randomUUID().toString();
 
         Set<String> listAlts = domainToAltNames.get(hostData.name);
         if (listAlts != null) {
@@ -273,6 +332,15 @@ class AntSSLSocketFactory {
      */
     public SSLSocketFactory getSocketFactory(SiteData hostData)
             throws IOException, GeneralSecurityException {
+        return getSSLContext(hostData).getSocketFactory();
+    }
+
+    /**
+     * @return the context holding the certificate forged for the given host, created on the
+     * first request for the host
+     */
+    SSLContext getSSLContext(SiteData hostData)
+            throws IOException, GeneralSecurityException {
         final String certEntry = getContextKey(hostData);
 
         Object lock = contextLocks.get(certEntry);
@@ -282,15 +350,12 @@ class AntSSLSocketFactory {
         }
         synchronized (lock) {
             ForwarderManager.Logg.d(TAG, "locked " + hostData.sourcePort + ": " + hostData.name);
-            SSLContext sslContext = (SSLContext) contextCache.get(certEntry);
+            SSLContext sslContext = contextCache.get(certEntry);
             if (sslContext == null) {
                 X509KeyManager km;
-                boolean inKeyStore;
-                inKeyStore = keystoreCert.containsAlias(certEntry);
-                if (!inKeyStore) {
+                if (!isStored(certEntry)) {
                     km = createKeyMaterial(hostData, certEntry);
                 } else {
-                    // TODO: #200 check if this works with a random UUID - does it use File IO?
                     ForwarderManager.Logg.d(TAG, "loadKeyMaterial " + hostData.sourcePort + ": " + hostData.name);
                     km = loadKeyMaterial(hostData, certEntry);
                     ForwarderManager.Logg.d(TAG, "loadKeyMaterial done" + hostData.sourcePort + ": " + hostData.name);
@@ -330,9 +395,8 @@ class AntSSLSocketFactory {
                 domainToContextKey.put(hostData.name, certEntry);
             }
             ForwarderManager.Logg.d(TAG, "locked done " + hostData.sourcePort + ": " + hostData.name);
-            return sslContext.getSocketFactory();
+            return sslContext;
         }
-
     }
 
     private X509Certificate[] cast(Certificate[] chain) {
@@ -345,17 +409,19 @@ class AntSSLSocketFactory {
 
     private X509KeyManager loadKeyMaterial(SiteData hostData, final String certEntry) throws GeneralSecurityException, IOException {
         X509Certificate[] certs = null;
-        //String certEntry = getCertEntry(hostData);
-        Certificate[] chain = keystoreCert.getCertificateChain(certEntry);
-        if (chain != null) {
-            certs = cast(chain);
-        } else {
-            throw new GeneralSecurityException(
-                    "Internal error: certificate chain for " + hostData.name
-                            + " not found!");
-        }
+        PrivateKey pk;
+        synchronized (keystoreCert) {
+            Certificate[] chain = keystoreCert.getCertificateChain(certEntry);
+            if (chain != null) {
+                certs = cast(chain);
+            } else {
+                throw new GeneralSecurityException(
+                        "Internal error: certificate chain for " + hostData.name
+                                + " not found!");
+            }
 
-        PrivateKey pk = (PrivateKey) keystoreCert.getKey(certEntry, passwordCerts);
+            pk = (PrivateKey) keystoreCert.getKey(certEntry, passwordCerts);
+        }
         if (pk == null) {
             throw new GeneralSecurityException(
                     "Internal error: private key for " + hostData.name + " not found!");
@@ -378,24 +444,48 @@ class AntSSLSocketFactory {
         }
     }
 
-    private void saveKeystoreThread(final KeyStore keystore, final String filename,
-                                    final char[] password) {
-        if (filename == null)
+    /**
+     * Saves the keystore of host certificates in the background, after {@link #SAVE_DELAY} so
+     * that changes made in the meantime are saved along. The file is replaced at once, so that
+     * it is never left half-written.
+     */
+    private void saveCertsLater() {
+        if (filenameCert == null || !savePending.compareAndSet(false, true))
             return;
 
         Runnable r = new Runnable() {
             @Override
             public void run() {
                 try {
-                    OutputStream out = new FileOutputStream(filename);
-                    keystore.store(out, password);
-                    out.close();
+                    Thread.sleep(SAVE_DELAY);
+                } catch (InterruptedException e) {
+                    // Save right away
+                }
+                savePending.set(false);
+
+                File tmpFile = new File(filenameCert + ".tmp");
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    synchronized (keystoreCert) {
+                        keystoreCert.store(bytes, passwordCerts);
+                    }
+
+                    OutputStream out = new FileOutputStream(tmpFile);
+                    try {
+                        bytes.writeTo(out);
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmpFile.renameTo(new File(filenameCert)))
+                        throw new IOException("Could not replace " + filenameCert);
                 } catch (IOException | GeneralSecurityException e) {
                     Log.e(TAG, e.getMessage(), e);
+                    tmpFile.delete();
                 }
             }
         };
-        Thread t = new Thread(r);
+        Thread t = new Thread(r, "KeystoreSaver");
+        t.setPriority(Thread.MIN_PRIORITY);
         t.start();
     }
 
@@ -428,15 +518,104 @@ class AntSSLSocketFactory {
         keystoreCA.setKeyEntry(CA, caKey, passwordCA, caCerts);
     }
 
-    private void initSerials() throws GeneralSecurityException {
+    /**
+     * Indexes the host certificates loaded from disk, from the oldest to the newest, and
+     * drops the expired ones
+     */
+    private void initStoredCerts() throws GeneralSecurityException {
+        final Map<String, X509Certificate> certs = new HashMap<>();
         Enumeration<String> e = keystoreCert.aliases();
         while (e.hasMoreElements()) {
             String alias = (String) e.nextElement();
             X509Certificate cert = (X509Certificate) keystoreCert
                     .getCertificate(alias);
-            BigInteger serial = cert.getSerialNumber();
-            serials.add(serial);
+            if (cert != null)
+                certs.put(alias, cert);
         }
+
+        List<String> aliases = new ArrayList<>(certs.keySet());
+        Collections.sort(aliases, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return certs.get(a).getNotBefore().compareTo(certs.get(b).getNotBefore());
+            }
+        });
+
+        boolean changed = certs.size() != keystoreCert.size();
+        long now = System.currentTimeMillis();
+        for (String alias : aliases) {
+            X509Certificate cert = certs.get(alias);
+            long expiry = getExpiry(cert);
+            if (expiry <= now) {
+                keystoreCert.deleteEntry(alias);
+                changed = true;
+                continue;
+            }
+            storedCerts.put(alias, expiry);
+            serials.add(cert.getSerialNumber());
+        }
+
+        changed |= evictStoredCerts();
+        if (changed)
+            saveCertsLater();
+    }
+
+    /** @return time at which the given host certificate should be made again */
+    private static long getExpiry(X509Certificate cert) {
+        return Math.min(cert.getNotBefore().getTime() + CERT_EXPIRY,
+                cert.getNotAfter().getTime());
+    }
+
+    /**
+     * @return {@code true} if the keystore holds an unexpired certificate under the given
+     * alias. An expired certificate is removed.
+     */
+    private boolean isStored(String alias) throws GeneralSecurityException {
+        synchronized (keystoreCert) {
+            Long expiry = storedCerts.get(alias);
+            if (expiry == null)
+                return false;
+
+            if (expiry > System.currentTimeMillis())
+                return true;
+
+            removeStoredCert(alias);
+        }
+        saveCertsLater();
+        return false;
+    }
+
+    /** Adds a host certificate to the keystore, dropping the least recently used ones */
+    private void storeKeyMaterial(String alias, PrivateKey pk, X509Certificate[] chain)
+            throws GeneralSecurityException {
+        synchronized (keystoreCert) {
+            keystoreCert.setKeyEntry(alias, pk, passwordCerts, chain);
+            storedCerts.put(alias, getExpiry(chain[0]));
+            evictStoredCerts();
+        }
+        saveCertsLater();
+    }
+
+    /** @return {@code true} if certificates were dropped to respect {@link #MAX_STORED_CERTS} */
+    private boolean evictStoredCerts() throws GeneralSecurityException {
+        boolean evicted = false;
+        while (storedCerts.size() > MAX_STORED_CERTS) {
+            removeStoredCert(storedCerts.keySet().iterator().next());
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    /** Removes a host certificate, along with its context and the domains mapped to it */
+    private void removeStoredCert(String alias) throws GeneralSecurityException {
+        X509Certificate cert = (X509Certificate) keystoreCert.getCertificate(alias);
+        if (cert != null)
+            serials.remove(cert.getSerialNumber());
+        keystoreCert.deleteEntry(alias);
+        storedCerts.remove(alias);
+        contextCache.remove(alias);
+        contextLocks.remove(alias);
+        domainToContextKey.values().removeAll(Collections.singleton(alias));
     }
 
     protected X500Principal getSubjectPrincipal(String host) {
@@ -444,11 +623,13 @@ class AntSSLSocketFactory {
     }
 
     protected BigInteger getNextSerialNo() {
-        BigInteger serial = BigInteger.valueOf(System.currentTimeMillis());
-        while (serials.contains(serial))
-            serial.add(BigInteger.ONE);
-        serials.add(serial);
-        return serial;
+        synchronized (keystoreCert) {
+            BigInteger serial = BigInteger.valueOf(System.currentTimeMillis());
+            while (serials.contains(serial))
+                serial = serial.add(BigInteger.ONE);
+            serials.add(serial);
+            return serial;
+        }
     }
 
     private X509KeyManager createKeyMaterial(SiteData hostData, final String certEntry)
@@ -458,9 +639,7 @@ class AntSSLSocketFactory {
         if (reuseKeys) {
             keyPair = new KeyPair(caCerts[0].getPublicKey(), caKey);
         } else {
-            KeyPairGenerator keygen = KeyPairGenerator.getInstance("RSA");
-            keygen.initialize(1024);
-            keyPair = keygen.generateKeyPair();
+            keyPair = getKeyPairPool().take();
         }
 
         X500Principal subject = getSubjectPrincipal(hostData.name);
@@ -474,6 +653,7 @@ class AntSSLSocketFactory {
         certGen.setNotAfter(ends);
         certGen.setSubjectDN(subject);
         certGen.setPublicKey(keyPair.getPublic());
+        // Signed by the CA, whose key is RSA whatever the key of the host
         certGen.setSignatureAlgorithm("SHA256withRSA");
 
         // generate alternative names
@@ -512,12 +692,7 @@ class AntSSLSocketFactory {
         chain[0] = cert;
         PrivateKey pk = keyPair.getPrivate();
 
-        //String certEntry = getCertEntry(hostData);
-
-        keystoreCert.setKeyEntry(certEntry, pk, passwordCerts, chain);
-
-        // TODO: #200 this creates a bunch of allocations. Avoid for now
-        //saveKeystoreThread(keystoreCert, filenameCert, passwordCerts);
+        storeKeyMaterial(certEntry, pk, chain);
 
         return new HostKeyManager(hostData, pk, chain);
     }
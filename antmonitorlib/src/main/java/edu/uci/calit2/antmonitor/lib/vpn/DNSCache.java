@@ -0,0 +1,431 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.uci.calit2.antmonitor.lib.util.DNSMessage;
+
+/**
+ * Cache of DNS answers, keyed by the question they answer. Queries that hit the cache are
+ * answered without going to the network, with the TTLs of the cached records counted down.
+ * Negative answers (NXDOMAIN and NODATA) are cached for the time given by the SOA record of
+ * the zone (RFC 2308). A query that is identical to one already sent upstream is not sent
+ * again: it waits for that query's response instead. Only responses to queries sent upstream
+ * are cached.
+ * All methods are thread-safe.
+ */
+class DNSCache {
+
+    /** Longest time (in seconds) a positive answer is cached, whatever its TTL */
+    private static final long MAX_TTL = 24 * 60 * 60;
+
+    /** Longest time (in seconds) a negative answer is cached */
+    private static final long MAX_NEGATIVE_TTL = 5 * 60;
+
+    /** Time (in milliseconds) after which a query sent upstream is no longer waited for */
+    private static final long PENDING_TIMEOUT = 5 * 1000;
+
+    /** Maximum number of queries sent upstream that others can wait for */
+    private static final int MAX_PENDING = 256;
+
+    /** Maximum number of queries waiting for the same upstream query */
+    private static final int MAX_WAITERS = 16;
+
+    /** A parsed DNS query */
+    static class Query {
+        /** The question, lower-cased, along with the flags that change the answer */
+        final String mKey;
+
+        /** Transaction ID of the query */
+        final int mTxid;
+
+        /** The question section as sent by the app, whose case the answer must match */
+        final byte[] mQuestion;
+
+        private Query(String key, int txid, byte[] question) {
+            mKey = key;
+            mTxid = txid;
+            mQuestion = question;
+        }
+
+        /**
+         * @param message array containing the DNS message
+         * @param offset offset of the message in {@code message}
+         * @param length length of the message
+         * @return the query, or {@code null} if the message is not a standard query with a
+         * single question
+         */
+        static Query parse(byte[] message, int offset, int length) {
+            DNSMessage query = new DNSMessage();
+            if (!query.parse(message, offset, length) || query.isResponse() ||
+                    query.getOpcode() != 0 ||
+                    query.getCount(DNSMessage.SECTION_QUESTION) != 1 ||
+                    query.getCount(DNSMessage.SECTION_ANSWER) != 0 ||
+                    query.getCount(DNSMessage.SECTION_AUTHORITY) != 0 || !query.nextRecord())
+                return null;
+
+            int questionLength = query.getRecordEnd() - offset - DNSMessage.HEADER_LENGTH;
+            boolean edns = query.getCount(DNSMessage.SECTION_ADDITIONAL) != 0;
+
+            byte[] question = new byte[questionLength];
+            System.arraycopy(message, offset + DNSMessage.HEADER_LENGTH, question, 0, questionLength);
+            return new Query(key(message, offset, questionLength, edns), query.getId(), question);
+        }
+    }
+
+    /** A query that waits for the response of an identical query already sent upstream */
+    static class Waiter {
+        final Query mQuery;
+
+        /** Address and port of the app that sent the query */
+        final byte[] mClientIpArray;
+        final int mClientPort;
+
+        /** Address and port of the DNS server the query was sent to */
+        final byte[] mServerIpArray;
+        final int mServerPort;
+
+        /** The answer, filled in when the response arrives */
+        byte[] mAnswer;
+
+        Waiter(Query query, byte[] clientIpArray, int clientPort, byte[] serverIpArray,
+               int serverPort) {
+            mQuery = query;
+            mClientIpArray = clientIpArray;
+            mClientPort = clientPort;
+            mServerIpArray = serverIpArray;
+            mServerPort = serverPort;
+        }
+    }
+
+    /** A cached response */
+    private static class Entry {
+        final byte[] mResponse;
+
+        /** Offsets of the TTL fields of the records in {@link #mResponse} */
+        final int[] mTTLOffsets;
+
+        /** Time (in milliseconds) the response was received */
+        final long mReceivedAt;
+
+        /** Time (in milliseconds) after which the response is stale */
+        final long mExpiresAt;
+
+        Entry(byte[] response, int[] ttlOffsets, long receivedAt, long expiresAt) {
+            mResponse = response;
+            mTTLOffsets = ttlOffsets;
+            mReceivedAt = receivedAt;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    /** A query sent upstream, and the queries waiting for its response */
+    private static class Pending {
+        /** The query sent upstream, followed by the retries of waiters that were sent too */
+        final ArrayList<Waiter> mSent = new ArrayList<>(1);
+
+        /** Time (in milliseconds) the query, or the latest retry of it, was sent */
+        long mSentAt;
+
+        final ArrayList<Waiter> mWaiters = new ArrayList<>(0);
+
+        Pending(Waiter sender, long sentAt) {
+            mSent.add(sender);
+            mSentAt = sentAt;
+        }
+
+        /**
+         * Moves the waiter that {@code retry} is a retry of, if any, to the queries sent upstream
+         * @return {@code true} if {@code retry} repeats a query sent upstream or a waiter:
+         * it comes from the same port with the same transaction ID
+         */
+        boolean removeRetried(Waiter retry) {
+            if (wasSent(retry.mClientPort, retry.mQuery.mTxid))
+                return true;
+
+            for (int i = 0; i < mWaiters.size(); i++) {
+                Waiter waiter = mWaiters.get(i);
+                if (waiter.mClientPort == retry.mClientPort &&
+                        waiter.mQuery.mTxid == retry.mQuery.mTxid) {
+                    mSent.add(mWaiters.remove(i));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** @return {@code true} if a query from the given port with the given ID was sent */
+        boolean wasSent(int clientPort, int txid) {
+            for (Waiter sent : mSent) {
+                if (sent.mClientPort == clientPort && sent.mQuery.mTxid == txid)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /** Cached responses, least recently used first */
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    private final HashMap<String, Pending> mPending = new HashMap<>();
+
+    private long mHits;
+    private long mMisses;
+    private long mCoalesced;
+
+    DNSCache(final int maxEntries) {
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param query the query to answer
+     * @param now current time in milliseconds
+     * @return the cached answer to the query, or {@code null} if there is none
+     */
+    synchronized byte[] getAnswer(Query query, long now) {
+        Entry entry = mEntries.get(query.mKey);
+        if (entry != null && entry.mExpiresAt <= now) {
+            mEntries.remove(query.mKey);
+            entry = null;
+        }
+
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+
+        mHits++;
+        return answer(entry.mResponse, query, entry.mTTLOffsets,
+                (now - entry.mReceivedAt) / 1000);
+    }
+
+    /**
+     * Called for a query that missed the cache, before sending it upstream
+     * @param waiter the query, along with where it comes from
+     * @param now current time in milliseconds
+     * @return {@code true} if an identical query is on its way upstream, in which case the
+     * query must not be sent: it is answered when the other query's response arrives.
+     * {@code false} if the query must be sent, which includes retries (same port and
+     * transaction ID) of a query already on its way, and queries beyond {@link #MAX_WAITERS}.
+     */
+    synchronized boolean coalesce(Waiter waiter, long now) {
+        Pending pending = mPending.get(waiter.mQuery.mKey);
+        if (pending != null && now - pending.mSentAt < PENDING_TIMEOUT) {
+            // An app retrying its query may have lost the query or its response: send it again.
+            // Its response answers the waiters as well.
+            if (pending.removeRetried(waiter)) {
+                pending.mSentAt = now;
+                return false;
+            }
+
+            // Too many waiters: the query goes out on its own, and the waiters keep waiting
+            if (pending.mWaiters.size() >= MAX_WAITERS)
+                return false;
+
+            pending.mWaiters.add(waiter);
+            mCoalesced++;
+            return true;
+        }
+
+        if (mPending.size() >= MAX_PENDING)
+            removeStalePending(now);
+
+        // The query goes upstream. Once the table is full, queries go out on their own.
+        if (mPending.size() < MAX_PENDING)
+            mPending.put(waiter.mQuery.mKey, new Pending(waiter, now));
+        return false;
+    }
+
+    /** Drops the upstream queries that are no longer waited for */
+    private void removeStalePending(long now) {
+        Iterator<Pending> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().mSentAt >= PENDING_TIMEOUT)
+                it.remove();
+        }
+    }
+
+    /**
+     * Called with each DNS response received from the network for a known flow. The response is
+     * only trusted if it answers a query sent upstream from the same port with the same
+     * transaction ID, like the resolver of the app would check. It is then cached if it can be
+     * cached, and answers the queries waiting for it.
+     * @param response the DNS message
+     * @param clientPort port of the app the response is for
+     * @param now current time in milliseconds
+     * @return the queries that waited for this response, with their answers filled in, or
+     * {@code null} if there were none
+     */
+    List<Waiter> onResponse(byte[] response, int clientPort, long now) {
+        DNSMessage message = new DNSMessage();
+        if (!message.parse(response, 0, response.length) || !message.isResponse() ||
+                message.getOpcode() != 0 ||
+                message.getCount(DNSMessage.SECTION_QUESTION) != 1 || !message.nextRecord())
+            return null;
+
+        int questionLength = message.getRecordEnd() - DNSMessage.HEADER_LENGTH;
+        int numAnswers = message.getCount(DNSMessage.SECTION_ANSWER);
+        int[] ttlOffsets = new int[numAnswers + message.getCount(DNSMessage.SECTION_AUTHORITY) +
+                message.getCount(DNSMessage.SECTION_ADDITIONAL)];
+        int numTTLs = 0;
+        boolean edns = false;
+        long minTTL = Long.MAX_VALUE;
+        long negativeTTL = -1;
+
+        // Walk all records, noting where their TTLs are
+        while (message.nextRecord()) {
+            // The TTL field of an OPT record holds flags
+            if (message.getType() == DNSMessage.TYPE_OPT) {
+                edns = true;
+                continue;
+            }
+
+            long ttl = message.getTTL();
+            ttlOffsets[numTTLs++] = message.getTTLOffset();
+            minTTL = Math.min(minTTL, ttl);
+
+            // The TTL of a negative answer is the lower of the SOA's TTL and MINIMUM
+            if (message.getType() == DNSMessage.TYPE_SOA &&
+                    message.getSection() == DNSMessage.SECTION_AUTHORITY &&
+                    message.getRDataLength() >= 4) {
+                negativeTTL = Math.min(ttl, DNSMessage.readTTL(response,
+                        message.getRDataOffset() + message.getRDataLength() - 4));
+            }
+        }
+
+        // Only cache complete successful answers and negative answers
+        long ttl = 0;
+        int rcode = message.getRcode();
+        if (!message.isComplete() || message.isTruncated()) {
+            // Whoever waits for the response still gets it, as is
+            edns = message.getCount(DNSMessage.SECTION_ADDITIONAL) != 0;
+        } else if (rcode == DNSMessage.RCODE_NOERROR && numAnswers > 0) {
+            ttl = Math.min(minTTL, MAX_TTL);
+        } else if (rcode == DNSMessage.RCODE_NXDOMAIN || rcode == DNSMessage.RCODE_NOERROR) {
+            ttl = Math.min(negativeTTL, MAX_NEGATIVE_TTL);
+        }
+
+        Entry entry = null;
+        if (ttl > 0) {
+            entry = new Entry(response, Arrays.copyOf(ttlOffsets, numTTLs), now,
+                    now + ttl * 1000);
+        }
+        return respond(key(response, 0, questionLength, edns), response, clientPort,
+                message.getId(), entry);
+    }
+
+    /**
+     * Caches the entry, if any, and answers the queries waiting for the response, if the
+     * response answers a query sent upstream
+     */
+    private synchronized List<Waiter> respond(String key, byte[] response, int clientPort,
+                                              int txid, Entry entry) {
+        Pending pending = mPending.get(key);
+        if (pending == null || !pending.wasSent(clientPort, txid))
+            return null;
+
+        mPending.remove(key);
+        if (entry != null)
+            mEntries.put(key, entry);
+
+        if (pending.mWaiters.isEmpty())
+            return null;
+
+        for (Waiter waiter : pending.mWaiters)
+            waiter.mAnswer = answer(response, waiter.mQuery, null, 0);
+        return pending.mWaiters;
+    }
+
+    /**
+     * Makes the answer to a query out of a response to an identical query
+     * @param ttlOffsets offsets of the TTLs to count down, or {@code null}
+     * @param elapsed seconds to count the TTLs down by
+     */
+    private static byte[] answer(byte[] response, Query query, int[] ttlOffsets, long elapsed) {
+        byte[] answer = response.clone();
+        answer[0] = (byte) (query.mTxid >> 8);
+        answer[1] = (byte) query.mTxid;
+        System.arraycopy(query.mQuestion, 0, answer, DNSMessage.HEADER_LENGTH, query.mQuestion.length);
+
+        if (ttlOffsets != null && elapsed > 0) {
+            for (int offset : ttlOffsets) {
+                long ttl = Math.max(0, DNSMessage.readTTL(answer, offset) - elapsed);
+                answer[offset] = (byte) (ttl >> 24);
+                answer[offset + 1] = (byte) (ttl >> 16);
+                answer[offset + 2] = (byte) (ttl >> 8);
+                answer[offset + 3] = (byte) ttl;
+            }
+        }
+        return answer;
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mPending.clear();
+        mHits = 0;
+        mMisses = 0;
+        mCoalesced = 0;
+    }
+
+    /** @return number of queries answered from the cache */
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /** @return number of queries not found in the cache */
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /** @return number of queries answered with the response to an identical query */
+    synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * @return the key of the question of the message: its lower-cased name, type and class,
+     * and the flags of the message that change the answer
+     */
+    private static String key(byte[] message, int offset, int questionLength, boolean edns) {
+        char[] key = new char[questionLength + 2];
+        int question = offset + DNSMessage.HEADER_LENGTH;
+        for (int i = 0; i < questionLength; i++) {
+            char c = (char) (message[question + i] & 0xFF);
+            if (c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            key[i] = c;
+        }
+
+        // The RD and CD flags, and whether the sender understands EDNS
+        key[questionLength] = (char) ((message[offset + 2] & 0x01) | (message[offset + 3] & 0x10));
+        key[questionLength + 1] = edns ? '1' : '0';
+        return new String(key);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open-addressing hash table of network flows keyed by primitive longs packed with
+ * {@link #key(int, int, int)}, so that looking up the flow of a packet neither boxes nor
+ * allocates. Each entry remembers the last {@link #tick() tick} in which it was used, so
+ * that idle flows can be evicted with {@link #evictIdle(int, EvictionListener)}.
+ * All methods are thread-safe.
+ */
+class FlowTable<V> {
+
+    /** Notified of flows removed by {@link #evictIdle(int, EvictionListener)} */
+    interface EvictionListener<V> {
+        void onEvicted(long key, V value);
+    }
+
+    /**
+     * Marks an empty slot. Never a valid key, as keys always contain a protocol, or in the
+     * case of {@link ForwarderManager#udpConnectedFlowKey(int, int, int)}, a port.
+     */
+    private static final long EMPTY = 0;
+
+    /** The table grows once it is more than half full, keeping probe sequences short */
+    private static final int MAX_LOAD_PERCENT = 50;
+
+    private long[] mKeys;
+    private Object[] mValues;
+
+    /** Tick in which each entry was last used */
+    private int[] mLastUsed;
+
+    private int mSize;
+
+    /** Current tick of the table's coarse clock */
+    private int mTick;
+
+    /**
+     * @param initialCapacity expected number of flows. The table grows past it if needed.
+     */
+    FlowTable(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 8) * 2 - 1) * 2;
+        allocate(capacity);
+    }
+
+    /**
+     * Packs a flow into a key
+     * @param protocol IP protocol of the flow, e.g. {@link
+     * edu.uci.calit2.antmonitor.lib.util.IpDatagram#TCP}. Must not be 0.
+     * @param ip IPv4 address identifying the flow
+     * @param port port (or any other 16-bit identifier) of the flow
+     */
+    static long key(int protocol, int ip, int port) {
+        return ((long) (protocol & 0xFF) << 48) | ((ip & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+
+    /** @return the IP address packed into {@code key} */
+    static int ip(long key) {
+        return (int) (key >>> 16);
+    }
+
+    /** @return the port packed into {@code key} */
+    static int port(long key) {
+        return (int) (key & 0xFFFF);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mLastUsed = new int[capacity];
+    }
+
+    /** @return the hash of {@code key}, whose low bits give its home slot */
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** @return the slot holding {@code key}, or the empty slot where it would go */
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mKeys[i] != EMPTY && mKeys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @return the value of the flow, or {@code null} if there is none. Marks the flow as
+     * used in the current tick.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized V get(long key) {
+        int i = find(key);
+        if (mKeys[i] == EMPTY)
+            return null;
+
+        mLastUsed[i] = mTick;
+        return (V) mValues[i];
+    }
+
+    /**
+     * Maps a flow to a value
+     * @return the previous value of the flow, or {@code null} if there was none
+     */
+    @SuppressWarnings("unchecked")
+    synchronized V put(long key, V value) {
+        if (key == EMPTY)
+            throw new IllegalArgumentException("Invalid flow key");
+
+        int i = find(key);
+        Object previous = mValues[i];
+        if (mKeys[i] == EMPTY) {
+            if ((mSize + 1) * 100 > mKeys.length * MAX_LOAD_PERCENT) {
+                resize(mKeys.length * 2);
+                i = find(key);
+            }
+            mKeys[i] = key;
+            mSize++;
+        }
+        mValues[i] = value;
+        mLastUsed[i] = mTick;
+        return (V) previous;
+    }
+
+    /**
+     * Removes a flow
+     * @return the value of the flow, or {@code null} if there was none
+     */
+    @SuppressWarnings("unchecked")
+    synchronized V remove(long key) {
+        int i = find(key);
+        if (mKeys[i] == EMPTY)
+            return null;
+
+        Object value = mValues[i];
+        removeSlot(i);
+        return (V) value;
+    }
+
+    /**
+     * Removes a flow only if it is still mapped to {@code value}
+     * @return {@code true} if the flow was removed
+     */
+    synchronized boolean remove(long key, V value) {
+        int i = find(key);
+        if (mKeys[i] == EMPTY || mValues[i] != value)
+            return false;
+
+        removeSlot(i);
+        return true;
+    }
+
+    /** Empties slot {@code i}, shifting back entries of the same probe sequence */
+    private void removeSlot(int i) {
+        int mask = mKeys.length - 1;
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (mKeys[j] == EMPTY)
+                break;
+
+            // Move the entry into the hole unless its home slot lies cyclically in (hole, j]
+            int home = hash(mKeys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                mKeys[hole] = mKeys[j];
+                mValues[hole] = mValues[j];
+                mLastUsed[hole] = mLastUsed[j];
+                hole = j;
+            }
+        }
+        mKeys[hole] = EMPTY;
+        mValues[hole] = null;
+        mSize--;
+    }
+
+    private void resize(int capacity) {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        int[] lastUsed = mLastUsed;
+        allocate(capacity);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == EMPTY)
+                continue;
+
+            int j = find(keys[i]);
+            mKeys[j] = keys[i];
+            mValues[j] = values[i];
+            mLastUsed[j] = lastUsed[i];
+        }
+    }
+
+    /** @return number of flows in the table */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /** @return a snapshot of all values in the table */
+    @SuppressWarnings("unchecked")
+    synchronized List<V> values() {
+        List<V> values = new ArrayList<>(mSize);
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != EMPTY)
+                values.add((V) mValues[i]);
+        }
+        return values;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    /** Advances the coarse clock that stamps used flows */
+    synchronized void tick() {
+        mTick++;
+    }
+
+    /**
+     * Removes flows that were not used in the last {@code idleTicks} ticks
+     * @param idleTicks number of ticks after which a flow is idle
+     * @param listener notified of each evicted flow, outside the table's lock. May be
+     *                 {@code null}.
+     * @return the number of evicted flows
+     */
+    @SuppressWarnings("unchecked")
+    int evictIdle(int idleTicks, EvictionListener<V> listener) {
+        long[] evictedKeys;
+        Object[] evictedValues;
+        int count = 0;
+
+        synchronized (this) {
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i] != EMPTY && mTick - mLastUsed[i] > idleTicks)
+                    count++;
+            }
+            if (count == 0)
+                return 0;
+
+            evictedKeys = new long[count];
+            evictedValues = new Object[count];
+            int n = 0;
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i] != EMPTY && mTick - mLastUsed[i] > idleTicks) {
+                    evictedKeys[n] = mKeys[i];
+                    evictedValues[n] = mValues[i];
+                    n++;
+                }
+            }
+            for (long key : evictedKeys) {
+                removeSlot(find(key));
+            }
+        }
+
+        if (listener != null) {
+            for (int i = 0; i < count; i++) {
+                listener.onEvicted(evictedKeys[i], (V) evictedValues[i]);
+            }
+        }
+        return count;
+    }
+}
@@ -23,6 +23,7 @@ import android.net.VpnService;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
@@ -35,22 +36,28 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.Channel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.uci.calit2.antmonitor.lib.logging.PacketAnnotation;
 import edu.uci.calit2.antmonitor.lib.logging.PacketLogQueue;
 import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
-import edu.uci.calit2.antmonitor.lib.util.PacketDumpInfo;
+import edu.uci.calit2.antmonitor.lib.util.PacketBuffer;
+import edu.uci.calit2.antmonitor.lib.util.PacketBufferPool;
 import edu.uci.calit2.antmonitor.lib.util.TCPPacket;
 import edu.uci.calit2.antmonitor.lib.util.TCPReassemblyInfo;
 import edu.uci.calit2.antmonitor.lib.util.UDPPacket;
@@ -96,10 +103,11 @@ import edu.uci.calit2.antmonitor.lib.vpn.VPNUtils.Tuple;
  *</p>
  *
  * <p>
- * Number of threads: 3
+ * Number of threads: 4 + number of selector threads
  * <ul>
  *     <li>
- *         mSelectorNetIOThread: the main thread that performs polling of network IO.
+ *         mSelectorNetIOThreads: the threads that perform polling of network IO. Each one
+ *          serves the flows whose source port maps to it (see {@link #setNumSelectorThreads(int)}).
  *          It switches between writing/reading data to/from the net (Java socket).
  *          Read data is queued and is later written to TUN by a separate thread.
  *      </li>
@@ -110,9 +118,19 @@ import edu.uci.calit2.antmonitor.lib.vpn.VPNUtils.Tuple;
  *      </li>
  *
  *      <li>
+ *          mWriteToTunThread: writes packets destined to the apps (queued by the other threads)
+ *          to TUN in batches.
+ *      </li>
+ *
+ *      <li>
  *          mForwarderBacklogHandlerThread: a utility thread used to schedule events in a future time.
  *          This is handy to delay the closing of a TCP connection.
  *      </li>
+ *
+ *      <li>
+ *          mTLSHandlerThreads: set up TCP connections that are intercepted by the
+ *          {@link TLSProxyServer}, sharded by source port.
+ *      </li>
  * </ul>
  * </p>
  *
@@ -141,16 +159,19 @@ public class ForwarderManager {
         }
     }
 
-    // These are the 3 threads (described above) of this ForwarderManager
-    /** The main thread that performs polling of network IO.
-     *  It switches between writing/reading data to/from the net (Java socket).
+    // These are the threads (described above) of this ForwarderManager
+    /** The threads that perform polling of network IO, one per {@link SelectorNetIO}.
+     *  They switch between writing/reading data to/from the net (Java socket).
      *  Read data is queued and is later written to TUN by a separate thread. */
-    private static Thread mSelectorNetIOThread;
+    private static Thread[] mSelectorNetIOThreads = new Thread[0];
 
     /** reads packets from TUN (generated by the apps) and queues the data to be
      *          written by mSelectorNetIOThread at a later time. */
     private static Thread mWriteToNetThread;
 
+    /** writes packets queued by {@link #writeDirectToTun(byte[])} to TUN in batches */
+    private static Thread mWriteToTunThread;
+
     /** a utility thread used to schedule events in a future time.
      *          This is handy to delay the closing of a TCP connection. */
     private static HandlerThread mForwarderBacklogHandlerThread;
@@ -158,17 +179,40 @@ public class ForwarderManager {
     /** Handler used by mForwarderBacklogHandlerThread */
     static Handler mForwarderBacklogHandler;
 
-    /** A utility thread used to schedule TLS connections on a separate thread so that the
-     * regular networking thread is not delayed by heavy TLS operations. */
-    private static HandlerThread mTLSHandlerThread;
+    /** Utility threads used to schedule TLS connections on separate threads so that the
+     * regular networking thread is not delayed by heavy TLS operations. Flows are sharded
+     * across them by source port: the setup of one flow runs in order, while different flows
+     * are set up in parallel. */
+    private static HandlerThread[] mTLSHandlerThreads = new HandlerThread[0];
+
+    /** Handlers used to attempt connections to {@link TLSProxyServer}, one per thread */
+    private static Handler[] mTLSHandlers = new Handler[0];
+
+    /** Number of TLS threads, one per core */
+    private static final int NUM_TLS_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
 
-    /** Handler used to attempt connections to {@link TLSProxyServer} */
-    static Handler mTLSHandler;
+    /** Number of TLS setups run, and the total time (in nanoseconds) they waited and ran */
+    private static final AtomicLong mTLSSetups = new AtomicLong();
+    private static final AtomicLong mTLSSetupWaitNanos = new AtomicLong();
+    private static final AtomicLong mTLSSetupRunNanos = new AtomicLong();
 
     static boolean SSL_BUMPING_ENABLED = false;
     static boolean SSL_SNI_ENABLED = true;
+
+    /** {@code true} to forge host certificates with ECDSA P-256 keys instead of RSA keys */
+    static boolean SSL_ECDSA_CERTS_ENABLED = false;
     static boolean KEEP_DNS_CACHE = false;
 
+    /** If {@code true}, DNS queries are answered from {@link #mDNSAnswerCache} when possible */
+    static boolean DNS_ANSWER_CACHE_ENABLED = false;
+
+    /** If {@code true}, each UDP flow is forwarded over a connected channel of its own instead
+     * of the shared {@link #mUDPSocketChannel}. Takes effect on the next start. */
+    static boolean UDP_CONNECTED_CHANNELS = false;
+
+    /** Value of {@link #UDP_CONNECTED_CHANNELS} when the forwarder was last started */
+    private static boolean mUDPConnectedChannels;
+
     /** The VPN service responsible for establishing the VPN tunnel */
     static VpnClient mService;
 
@@ -186,21 +230,23 @@ public class ForwarderManager {
 
     /** Size (in bytes) of the buffer used for writing packets to NET. Should be bigger than TUN SIZE */
     public static final int SOCKET_BYTEBUFFER_WRITE_SIZE = 1024 * 16;
-    private static ByteBuffer mReadSocketBuffer = ByteBuffer.allocateDirect(SOCKET_BYTEBUFFER_READ_SIZE);
-    private static ByteBuffer mWriteSocketBuffer = ByteBuffer.allocateDirect(SOCKET_BYTEBUFFER_WRITE_SIZE);
-
-    /** The threshold represents the difference between {@link TCPForwarder#mSequenceNumberToClient}
-     * and {@link TCPForwarder#mAckNumberToServer}. When this threshold is passed, it means the
-     * client is overwhelmed and may start losing data. We keep this threshold at 2 times the full
-     * read size from a socket. */
-    private static final int SOCKET_READ_THRESHOLD_WITHOUT_ACK = 2 * SOCKET_BYTEBUFFER_READ_SIZE;
-
-    // Used to Read and Write to TUN.
-    // Read from TUN buffer must have size larger than TUN size.
-    // Write to TUN buffer can be arbitrary large (IP fragmentation will be done at the lower layer automatically
-    private static ByteBuffer mWriteTunBuffer = ByteBuffer.allocateDirect(SOCKET_BYTEBUFFER_READ_SIZE +
-            IpDatagram.TCP_HEADER_DEFAULT_LENGTH +
-            IpDatagram.IP_HEADER_DEFAULT_LENGTH);
+
+    /** Maximum number of queued segments written to a TCP channel with one gathering write */
+    private static final int MAX_GATHER_SEGMENTS = 16;
+
+    /** Maximum number of datagrams read from or written to a connected UDP channel at once */
+    private static final int MAX_FLOW_DATAGRAMS = 16;
+
+    /** Address of our TUN interface (192.168.0.2, see {@link VpnClient#mTunInterfaceIP}) */
+    private static final int TUN_SOURCE_IP = 0xC0A80002;
+
+    /** Number of packet buffers pre-allocated for packets read from TUN */
+    private static final int PACKET_BUFFER_POOL_SIZE = 128;
+
+    /** Pool of buffers that hold packets read from TUN. A buffer stays out of the pool until
+     * the packet has been both written to the network and logged (if logging is enabled). */
+    static final PacketBufferPool mPacketBufferPool =
+            new PacketBufferPool(PACKET_BUFFER_POOL_SIZE, SOCKET_BYTEBUFFER_WRITE_SIZE);
 
     // Tun Interface
     static TunNativeInterface mTunInterfaceJni;
@@ -211,37 +257,108 @@ public class ForwarderManager {
     // Used for IP fragmentation Id
     static short mIpIdentification;
 
-    // This queue stores packets read from TUN. It is populated by an external thread that reads data from TUN.
-    private static LinkedBlockingQueue<byte[]> mReadFromTunQueue = new LinkedBlockingQueue<byte[]>();
+    /** Maximum number of packets waiting to be written to TUN */
+    static final int TUN_WRITE_QUEUE_SIZE = 2048;
+
+    /** Longest time (in milliseconds) a TCP segment waits for room in a full TUN write queue */
+    private static final long TUN_WRITE_QUEUE_TIMEOUT = 100;
+
+    // This queue stores packets to be written to TUN. It is drained by mWriteToTunThread.
+    private static final ArrayBlockingQueue<byte[]> mWriteToTunQueue =
+            new ArrayBlockingQueue<byte[]>(TUN_WRITE_QUEUE_SIZE);
 
-    // Map a channel to its outgoing buffer
-    static final Map<Channel, LinkedList<DataWriteToNet>> mWriteToNetMap = new HashMap<Channel, LinkedList<DataWriteToNet>>();
-    // List of Channel that needs to update InterestOps
-    static final LinkedList<ChangeRequest> mChangeRequestQueue = new LinkedList<ChangeRequest>();
+    /** Packets destined to the apps that were dropped, see {@link #getTunWriteDrops()} */
+    static final AtomicLong mTunWriteDrops = new AtomicLong();
+
+    // Outgoing data of the UDP channel. TCP channels keep theirs in TCPForwarder#mWriteQueue.
+    private static final VPNUtils.WriteQueue mUDPWriteQueue = new VPNUtils.WriteQueue();
     // Map a SocketChannel to its TCPForwarder
     static final Map<SocketChannel, TCPForwarder> mSocketChannelToForwarderMap = new ConcurrentHashMap<SocketChannel, TCPForwarder>();
 
-    // Use to map a destination tuple (IP,port) to a source tuple (IP,port)
-    // This map can be used to translate the received udp packet (updating the target tuple of the received packet)
-    final static Map<Tuple, Tuple> mActiveUDPConnectionMap = new ConcurrentHashMap<>();
+    /** Maximum number of UDP flows kept at once */
+    private static final int MAX_UDP_FLOWS = 4096;
+
+    /** Time (in milliseconds) after which an unused UDP flow expires */
+    private static final long UDP_IDLE_TIMEOUT = 60 * 1000;
 
-    /** DNS Caching map */
-    protected final static Map<String, String> mDNScache = new  ConcurrentHashMap<>();
+    /** Time (in milliseconds) after which an unanswered DNS query expires */
+    private static final long DNS_IDLE_TIMEOUT = 10 * 1000;
 
-    /** Set of active TCPForwarders, mapped by source port */
-    public final static Map<Integer, TCPForwarder> mActiveTCPForwarderMap = new ConcurrentHashMap<>();
+    /** Active UDP flows, mapped by {@link #udpFlowKey(int, int)} of their destination. Used to
+     * translate received UDP packets (updating the target tuple of the received packet) */
+    final static UDPNatTable mActiveUDPFlows = new UDPNatTable(MAX_UDP_FLOWS);
+
+    /** UDP flows that have a connected channel of their own, mapped by
+     * {@link #udpConnectedFlowKey(int, int, int)}. Kept apart from {@link #mActiveUDPFlows},
+     * as their keys take all 64 bits and leave no room for a protocol. */
+    final static UDPNatTable mConnectedUDPFlows = new UDPNatTable(MAX_UDP_FLOWS);
+
+    /** Expires idle UDP flows */
+    private static final Runnable mExpireUDPFlows = new Runnable() {
+        @Override
+        public void run() {
+            mActiveUDPFlows.tick();
+            mConnectedUDPFlows.tick();
+            mForwarderBacklogHandler.postDelayed(this, UDPNatTable.TICK_INTERVAL);
+        }
+    };
+
+    /** Maximum number of addresses kept in {@link #mHostnameIndex} */
+    private static final int MAX_HOSTNAME_INDEX_SIZE = 4096;
+
+    /** Host names of the IP addresses seen in DNS responses */
+    final static HostnameIndex mHostnameIndex = new HostnameIndex(MAX_HOSTNAME_INDEX_SIZE);
+
+    /** Maximum number of DNS answers cached */
+    private static final int MAX_DNS_ANSWERS = 1024;
+
+    /** Cached DNS answers, used to answer queries without going to the network */
+    final static DNSCache mDNSAnswerCache = new DNSCache(MAX_DNS_ANSWERS);
+
+    /** Set of active TCPForwarders, mapped by {@link #tcpFlowKey(int)} of their source port */
+    final static FlowTable<TCPForwarder> mActiveTCPForwarders = new FlowTable<>(256);
+
+    /** Interval (in milliseconds) between two ticks of the flow tables' clocks */
+    private static final long FLOW_TICK_INTERVAL = 10 * 1000;
+
+    /** Number of ticks after which a TCP connection without any packet from the app is reset */
+    private static final int TCP_IDLE_TICKS = 6 * 60;
+
+    /** Resets TCP connections evicted for being idle */
+    private static final FlowTable.EvictionListener<TCPForwarder> mIdleTCPForwarderListener =
+            new FlowTable.EvictionListener<TCPForwarder>() {
+                @Override
+                public void onEvicted(long key, TCPForwarder forwarder) {
+                    Logg.d(TAG, forwarder + " idle, resetting");
+                    forwarder.resetAndDestroy();
+                }
+            };
+
+    /** Advances the clock of the TCP flow table and resets idle connections */
+    private static final Runnable mEvictIdleFlows = new Runnable() {
+        @Override
+        public void run() {
+            mActiveTCPForwarders.tick();
+            mActiveTCPForwarders.evictIdle(TCP_IDLE_TICKS, mIdleTCPForwarderListener);
+
+            mForwarderBacklogHandler.postDelayed(this, FLOW_TICK_INTERVAL);
+        }
+    };
 
     /** Set of {@link edu.uci.calit2.antmonitor.lib.util.TCPReassemblyInfo}, mapped by source port */
     final static Map<Integer, TCPReassemblyInfo> mTCPReassemblyMap = new HashMap<>();
 
-    // The single main Selector that poll all sockets
-    static Selector mSocketSelector;
+    /** Number of selector threads to shard flows across. See {@link #setNumSelectorThreads(int)} */
+    static int NUM_SELECTOR_THREADS = 1;
+
+    /** The selectors that poll all sockets, flows are sharded across them by source port */
+    private static SelectorNetIO[] mSelectorNetIOs = new SelectorNetIO[0];
 
     // This map keep track of active threads to clean them up when shutting down
     static final ConcurrentMap<Long, Thread> mActiveThreads = new ConcurrentHashMap<>();
 
     /** Queue to which put packets on for off-line logging of incoming data */
-    private static PacketLogQueue mIncPacketQueue;
+    static PacketLogQueue mIncPacketQueue;
 
     /** Queue to which put packets on for off-line logging of outgoing data */
     private static PacketLogQueue mOutPacketQueue;
@@ -252,67 +369,224 @@ public class ForwarderManager {
     /** Filter that either allows or denies incoming packets */
     public static IncPacketFilter mIncFilter;
 
-    // The runnable of the mSelectorNetIOThread.
-    // It polls all the non-blocking both (single) UDP and TCP sockets for read or write.
-    // At the beginning of the loop, it updates the InterestSet (READ or WRITE)
-    // if there is request (made by mWriteToNetThread)
-    private static Runnable mSelectorNetIO = new Runnable() {
+    /**
+     * Construct a UDP packet to write back to TUN.
+     * @param packetData
+     * @param srcPort
+     * @param srcIpArray
+     * @param dstPort
+     * @param dstIpArray
+     * @return
+     */
+    static byte[] constructUdpIpPacket(byte[] packetData, int srcPort,
+                                               byte[] srcIpArray, int dstPort, byte[] dstIpArray) {
+        // Reconstruct UDP header, then IP header, then inject this to TUN interface
+        // 20 + 8 + data = 44 + data
+        byte[] packetToWrite = new byte[IpDatagram.IP_HEADER_DEFAULT_LENGTH  +
+                IpDatagram.UDP_HEADER_DEFAULT_LENGTH +
+                packetData.length];
+
+        // Last bytes come the data
+        System.arraycopy(packetData, 0, packetToWrite, IpDatagram.IP_HEADER_DEFAULT_LENGTH  + IpDatagram.UDP_HEADER_DEFAULT_LENGTH , packetData.length);
+
+        // First 20 bytes are IP header
+        // First byte: Version 4, IP Header Len = 5: 0b01000101
+        packetToWrite[0] = 0b01000101;
+
+        // Second byte: Differentiated Services: not used
+
+        // 3rd and 4th Byte is total length
+        int totalLen = IpDatagram.IP_HEADER_DEFAULT_LENGTH  + IpDatagram.UDP_HEADER_DEFAULT_LENGTH + packetData.length;
+        packetToWrite[2] = (byte) (totalLen >> 8);
+        packetToWrite[3] = (byte) (totalLen);
 
-        private boolean okToWrite(SelectionKey k, Channel channel) {
-            if (mWriteToNetMap.get(channel) != null &&
-                    mWriteToNetMap.get(channel).size() <= 0) {
+        // 5th and 6th Byte is Identification for fragmentation:
+        mIpIdentification++;
+        if (mIpIdentification == Short.MAX_VALUE) {
+            mIpIdentification = 0;
+        }
+        packetToWrite[4] = (byte) (mIpIdentification >> 8);
+        packetToWrite[5] = (byte) (mIpIdentification);
+
+        // 7th and 8th are Flags and Fragment offset: not used
+
+        // 9th is TTL. Set to 20
+        packetToWrite[8] = (byte) 20;
+
+        // 10th is Protocol: UDP = 17
+        packetToWrite[9] = (byte) 17;
+
+        // 13, 14, 15, 16 are Source IP
+        packetToWrite[12] = srcIpArray[0];
+        packetToWrite[13] = srcIpArray[1];
+        packetToWrite[14] = srcIpArray[2];
+        packetToWrite[15] = srcIpArray[3];
+
+        // 17, 18, 19, 20 are Dest IP
+        packetToWrite[16] = dstIpArray[0];
+        packetToWrite[17] = dstIpArray[1];
+        packetToWrite[18] = dstIpArray[2];
+        packetToWrite[19] = dstIpArray[3];
+
+        // Next 8 bytes are UDP header
+        // Source port
+        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH] = (byte) (srcPort >> 8);
+        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+1] = (byte) (srcPort);
+        // Destination port
+        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+2] = (byte) (dstPort >> 8);
+        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+3] = (byte) (dstPort);
+        // Length field
+        int len = IpDatagram.UDP_HEADER_DEFAULT_LENGTH + packetData.length;
+        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+4] = (byte) (len >> 8);
+        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+5] = (byte) (len);
+        // Checksum field: clear to 0 to disable
+        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+6] = (byte) 0;
+        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+7] = (byte) 0;
+
+        // 11th and 12th are header IP Check sum
+        long checkSum = IpDatagram.calculateIPv4Checksum(packetToWrite, 0, IpDatagram.IP_HEADER_DEFAULT_LENGTH);
+        packetToWrite[10] = (byte) (checkSum >> 8);
+        packetToWrite[11] = (byte) (checkSum);
+
+//		String res = "";
+//		for (int i=0; i<packetToWrite.length; i++) {
+//			res += packetToWrite[i] + " ";
+//		}
+//		Logg.e(TAG, "Constructed packet: " + res);
+
+        return packetToWrite;
+    } // End constructUDPPacket
+
+    /**
+     * Runnable of a selector thread. It polls the non-blocking TCP sockets and connected UDP
+     * sockets (and, for the first selector, the single UDP socket) of its shard for read or write. At the beginning of the
+     * loop, it updates the InterestSet (READ or WRITE) if there is request (made by
+     * mWriteToNetThread). Flows are assigned to a selector by source port, see
+     * {@link #getSelectorNetIO(int)}.
+     */
+    static class SelectorNetIO implements Runnable {
+        /** The Selector that polls all sockets of this shard */
+        final Selector mSocketSelector;
+
+        /** List of Channel that needs to update InterestOps. Consumed by this selector only. */
+        final ConcurrentLinkedQueue<ChangeRequest> mChangeRequestQueue = new ConcurrentLinkedQueue<ChangeRequest>();
+
+        /** Forwarders whose {@link TLSPipe} was signaled. Consumed by this selector only. */
+        private final ConcurrentLinkedQueue<TCPForwarder> mPipeRequestQueue = new ConcurrentLinkedQueue<TCPForwarder>();
+
+        // Buffers used to perform Socket read/write with NIO
+        private final ByteBuffer mReadSocketBuffer = ByteBuffer.allocateDirect(SOCKET_BYTEBUFFER_READ_SIZE);
+        private final ByteBuffer mWriteSocketBuffer = ByteBuffer.allocateDirect(SOCKET_BYTEBUFFER_WRITE_SIZE);
+
+        /** Segments being written to a TCP channel with a single gathering write */
+        private final DataWriteToNet[] mGatherData = new DataWriteToNet[MAX_GATHER_SEGMENTS];
+
+        /** Views of the payloads of {@link #mGatherData} */
+        private final ByteBuffer[] mGatherBuffers = new ByteBuffer[MAX_GATHER_SEGMENTS];
+
+        SelectorNetIO(Selector selector) {
+            mSocketSelector = selector;
+        }
+
+        /** Queues a request to change the interest ops of a channel and wakes up the selector */
+        void requestChange(ChangeRequest request) {
+            mChangeRequestQueue.offer(request);
+            mSocketSelector.wakeup();
+        }
+
+        /** Queues a request to serve the pipe of a forwarder and wakes up the selector */
+        void requestPipe(TCPForwarder forwarder) {
+            mPipeRequestQueue.offer(forwarder);
+            mSocketSelector.wakeup();
+        }
+
+        /**
+         * Sending data is prioritized over reading data: once the queue of a channel is
+         * written, READ interest is restored by the write path.
+         * @return the interest ops to register for the given request
+         */
+        private int getInterestOps(ChangeRequest request) {
+            VPNUtils.WriteQueue writeQueue = getWriteQueue(request.mAttachment);
+            if (request.mSelectionKey == SelectionKey.OP_READ &&
+                    writeQueue != null && !writeQueue.isEmpty()) {
+                return SelectionKey.OP_WRITE;
+            }
+
+            return request.mSelectionKey;
+        }
+
+        /** @return {@code false} if the request asks to write, but there is nothing to write */
+        private boolean okToWrite(ChangeRequest request) {
+            VPNUtils.WriteQueue writeQueue = getWriteQueue(request.mAttachment);
+            if (request.mSelectionKey == SelectionKey.OP_WRITE &&
+                    writeQueue != null && writeQueue.isEmpty()) {
                 return false;
             }
 
             return true;
         }
 
+        /**
+         * @param attachment attachment of a channel's key: either its queue of outgoing data,
+         *                   or the UDP flow that owns the channel
+         * @return the queue of outgoing data of the channel, or {@code null}
+         */
+        private static VPNUtils.WriteQueue getWriteQueue(Object attachment) {
+            if (attachment instanceof VPNUtils.UDPFlow)
+                return ((VPNUtils.UDPFlow) attachment).mWriteQueue;
+            if (attachment instanceof VPNUtils.WriteQueue)
+                return (VPNUtils.WriteQueue) attachment;
+            return null;
+        }
+
         public void run() {
             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
             while (!Thread.currentThread().isInterrupted()) {
 
                 // For a channel, sending data is prioritized over reading data
-                synchronized(mChangeRequestQueue) {
-                    Iterator it = mChangeRequestQueue.iterator();
-                    while (it.hasNext()) {
-                        ChangeRequest request = (ChangeRequest) it.next();
-                        int selectionKey = request.mSelectionKey;
-                        Channel channel = request.mChannel;
-                        Object attachment = request.mAttachment;
-
-                        if (channel instanceof DatagramChannel) {
-                            DatagramChannel dChannel = (DatagramChannel) channel;
-                            try {
-
-                                it.remove();
-                                if (!okToWrite(dChannel.keyFor(mSocketSelector), dChannel))
-                                    continue;
-
-                                dChannel.register(mSocketSelector,  selectionKey, attachment);
-                            } catch (Exception e) {
-                                Logg.e(TAG, "Exception when changing UDP selection key to " +
-                                        selectionKey, e);
+                ChangeRequest request;
+                while ((request = mChangeRequestQueue.poll()) != null) {
+                    int selectionKey = request.mSelectionKey;
+                    Channel channel = request.mChannel;
+                    Object attachment = request.mAttachment;
+
+                    if (channel instanceof DatagramChannel) {
+                        DatagramChannel dChannel = (DatagramChannel) channel;
+                        try {
+                            if (!okToWrite(request))
+                                continue;
+
+                            // Connected channels are closed when their flow expires
+                            if (dChannel.isOpen()) {
+                                dChannel.register(mSocketSelector, getInterestOps(request), attachment);
                             }
-                        } else if (channel instanceof SocketChannel) {
-                            SocketChannel sChannel = (SocketChannel) channel;
-                            try {
-
-                                it.remove();
-                                if (!okToWrite(sChannel.keyFor(mSocketSelector), sChannel))
-                                    continue;
-
-                                //TCPForwarder forwarder = mSocketChannelToForwarderMap.get(sChannel);
-                                //Logg.d(TAG, forwarder + " Registered OP_WRITE " + selectionKey);
-                                if (sChannel.isOpen()) {
-                                    sChannel.register(mSocketSelector, selectionKey, attachment);
-                                }
-                            } catch (Exception e) { //TODO: do anything upon ClosedChannelException ?
-                                TCPForwarder forwarder = mSocketChannelToForwarderMap.get(sChannel);
-                                Logg.e(TAG, forwarder + " Exception when changing TCP selection key to " + selectionKey);
-                                Logg.e(TAG, e.getMessage(), e);
+                        } catch (Exception e) {
+                            Logg.e(TAG, "Exception when changing UDP selection key to " +
+                                    selectionKey, e);
+                        }
+                    } else if (channel instanceof SocketChannel) {
+                        SocketChannel sChannel = (SocketChannel) channel;
+                        try {
+                            if (!okToWrite(request))
+                                continue;
+
+                            //TCPForwarder forwarder = mSocketChannelToForwarderMap.get(sChannel);
+                            //Logg.d(TAG, forwarder + " Registered OP_WRITE " + selectionKey);
+                            if (sChannel.isOpen()) {
+                                sChannel.register(mSocketSelector, getInterestOps(request), attachment);
                             }
+                        } catch (Exception e) { //TODO: do anything upon ClosedChannelException ?
+                            TCPForwarder forwarder = mSocketChannelToForwarderMap.get(sChannel);
+                            Logg.e(TAG, forwarder + " Exception when changing TCP selection key to " + selectionKey);
+                            Logg.e(TAG, e.getMessage(), e);
                         }
-                    } // end for looping over all ChangeRequest
+                    }
+                } // end for looping over all ChangeRequest
+
+                // Pipes are not polled by the selector, they are served when signaled
+                TCPForwarder pipeForwarder;
+                while ((pipeForwarder = mPipeRequestQueue.poll()) != null) {
+                    servePipe(pipeForwarder);
                 }
 
                 // Select sockets
@@ -357,547 +631,643 @@ public class ForwarderManager {
             } // End main while loop
             mActiveThreads.remove(Thread.currentThread().getId());
         }
-    }; // end mSelectorNetIO Runnable
 
-    /**
-     * Call this to initialize the TCP forwarder after the socket finished its connection
-     * @param key
-     */
-    private static void initializeTCPForwarder(SelectionKey key) {
+        /**
+         * Call this to initialize the TCP forwarder after the socket finished its connection
+         * @param key
+         */
+        private void initializeTCPForwarder(SelectionKey key) {
 
-        SocketChannel channel =  (SocketChannel) key.channel();
+            SocketChannel channel =  (SocketChannel) key.channel();
 
-        try {
-            if (!channel.finishConnect()) {
-                Logg.e(TAG, mSocketChannelToForwarderMap.get(channel) + " did not finish connect!");
+            try {
+                if (!channel.finishConnect()) {
+                    Logg.e(TAG, mSocketChannelToForwarderMap.get(channel) + " did not finish connect!");
+                    return;
+                }
+            } catch (Exception e) {
+                Logg.e(TAG,  mSocketChannelToForwarderMap.get(channel) +
+                        " Exception while checking if a TCP Channel Finished its connection!");
                 return;
             }
-        } catch (Exception e) {
-            Logg.e(TAG,  mSocketChannelToForwarderMap.get(channel) +
-                    " Exception while checking if a TCP Channel Finished its connection!");
-            return;
-        }
 
-        TCPForwarder forwarder = mSocketChannelToForwarderMap.get(channel);
+            TCPForwarder forwarder = mSocketChannelToForwarderMap.get(channel);
 
-//		Logg.e(TAG, "Initializing TCP Forwarder: " + forwarder);
-//		Logg.e(TAG, "Key interest: " + key.interestOps());
-//		Logg.e(TAG, "Attachment: " + key.attachment());
+    //		Logg.e(TAG, "Initializing TCP Forwarder: " + forwarder);
+    //		Logg.e(TAG, "Key interest: " + key.interestOps());
+    //		Logg.e(TAG, "Attachment: " + key.attachment());
 
-        if (forwarder != null) {
-            synchronized(forwarder) {
-                byte[] synAckPacketToClient = (byte[]) key.attachment();
-                writeDirectToTun(synAckPacketToClient);
-                //Logg.d(TAG, forwarder + " Sent SYN-ACK. Updating from " + forwarder.mServerState + " to SYN_RECEIVED");
-                forwarder.mSequenceNumberToClient++;
-                forwarder.mServerState = TCPState.SYN_RECEIVED;
-
-                // At this point, new TCP connection is established:
-                mOutFilter.onTCPConnectionOpened(forwarder.mServerIP.toString().substring(1),
-                        forwarder.mSrc.mPort, forwarder.mDst.mPort);
-
-                // De-register OP_CONNECT op, as this may cause the selector to return w/o keys:
-                // http://stackoverflow.com/questions/16386342/android-selector-select-returns-0-immediately
-                // When the client is ready to write, we will register a WRITE
-                try {
-                    channel.register(mSocketSelector, OP_NONE); // 0 for no interest ops
-                } catch (ClosedChannelException e) {
-                    Logg.e(TAG, forwarder + " channel closed while un-registering OP_CONNECT!");
-                    mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
-                    mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, TCPForwarder.DELAY_SEND_FIN_TO_CLIENT);
+            if (forwarder != null) {
+                synchronized(forwarder) {
+                    onTCPConnected(forwarder);
+
+                    // De-register OP_CONNECT op, as this may cause the selector to return w/o keys:
+                    // http://stackoverflow.com/questions/16386342/android-selector-select-returns-0-immediately
+                    // When the client is ready to write, we will register a WRITE
+                    try {
+                        channel.register(mSocketSelector, OP_NONE); // 0 for no interest ops
+                    } catch (ClosedChannelException e) {
+                        Logg.e(TAG, forwarder + " channel closed while un-registering OP_CONNECT!");
+                        mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
+                        mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, TCPForwarder.DELAY_SEND_FIN_TO_CLIENT);
+                    }
                 }
             }
-        }
 
-    }
-
-    /**
-     * Perform a read from a readable socket channel
-     * @param key Contains ready channel
-     */
-    private static void readFromChannel(SelectionKey key) {
-        mReadSocketBuffer.clear();
-
-        if (key.channel() instanceof DatagramChannel) {
-            // Read from a DatagramChannel, perform translation, queue the translated UDP packet to be written back to TUN
-            readFromDatagramChannel(key);
-        } else if (key.channel() instanceof SocketChannel) {
-            // Read from a SocketChannel, queue the data TCP packet to be written back to TUN
-            readFromSocketChannel(key);
         }
-    } // End ReadChannel
 
-    /**
-     * Read from a DatagramChannel, perform translation, queue the translated UDP packet to be written back to TUN
-     * @param key
-     */
-    private static void readFromDatagramChannel(SelectionKey key) {
-        DatagramChannel channel = (DatagramChannel) key.channel();
+        /**
+         * Perform a read from a readable socket channel
+         * @param key Contains ready channel
+         */
+        private void readFromChannel(SelectionKey key) {
+            mReadSocketBuffer.clear();
+
+            if (key.attachment() instanceof VPNUtils.UDPFlow) {
+                // Connected channel of a single UDP flow, which is attached to the key
+                readFromFlowChannel(key, (VPNUtils.UDPFlow) key.attachment());
+            } else if (key.channel() instanceof DatagramChannel) {
+                // Read from a DatagramChannel, perform translation, queue the translated UDP packet to be written back to TUN
+                readFromDatagramChannel(key);
+            } else if (key.channel() instanceof SocketChannel) {
+                // Read from a SocketChannel, queue the data TCP packet to be written back to TUN
+                readFromSocketChannel(key);
+            }
+        } // End ReadChannel
 
-        InetSocketAddress remoteAddress = null;
-        try {
-            remoteAddress = (InetSocketAddress) channel.receive(mReadSocketBuffer); // Need to use receive here instead of read (read is for connected channel)
-        } catch (IOException e) {
-            Logg.e(TAG, "Exception when reading a UDP channel:" + e.getMessage());
-            return;
-        }
+        /**
+         * Read from a DatagramChannel, perform translation, queue the translated UDP packet to be written back to TUN
+         * @param key
+         */
+        private void readFromDatagramChannel(SelectionKey key) {
+            DatagramChannel channel = (DatagramChannel) key.channel();
 
-        if (remoteAddress != null) {
-            int bytesRead = mReadSocketBuffer.position();
-            // Logg.i(TAG, "Read " + bytesRead + " from UDP " + remoteAddress);
-            mReadSocketBuffer.flip();
-/*            if (!mIncFilter.acceptIPDatagram(mReadSocketBuffer))
+            InetSocketAddress remoteAddress = null;
+            try {
+                remoteAddress = (InetSocketAddress) channel.receive(mReadSocketBuffer); // Need to use receive here instead of read (read is for connected channel)
+            } catch (IOException e) {
+                Logg.e(TAG, "Exception when reading a UDP channel:" + e.getMessage());
                 return;
-
-            // Just in case filter modified the buffer position, etc, set it back:
-            mReadSocketBuffer.position(0);
-            mReadSocketBuffer.limit(bytesRead);*/
-
-            byte[] packetData = new byte[bytesRead];
-            if (mReadSocketBuffer.hasArray()) {
-                System.arraycopy(mReadSocketBuffer.array(), mReadSocketBuffer.arrayOffset(), packetData, 0, bytesRead);
-            } else {
-                mReadSocketBuffer.get(packetData, 0, bytesRead);
             }
 
-            int srcPort = remoteAddress.getPort();
-            byte[] srcIpArray = remoteAddress.getAddress().getAddress();
-            int srcIp = IpDatagram.convertIPv4IPArrayToInt(srcIpArray);
+            if (remoteAddress != null) {
+                int bytesRead = mReadSocketBuffer.position();
+                // Logg.i(TAG, "Read " + bytesRead + " from UDP " + remoteAddress);
+                mReadSocketBuffer.flip();
+    /*            if (!mIncFilter.acceptIPDatagram(mReadSocketBuffer))
+                    return;
 
-            Tuple source;
-            if (srcPort == IpDatagram.DNSPort) {
-                int txid = UDPPacket.extractUDPv4Txid(packetData);
-                source = new Tuple(srcIp, srcIpArray, txid);
+                // Just in case filter modified the buffer position, etc, set it back:
+                mReadSocketBuffer.position(0);
+                mReadSocketBuffer.limit(bytesRead);*/
 
-                if (ForwarderManager.KEEP_DNS_CACHE) {
-                    UDPPacket.mapIPtoHostName(mDNScache, packetData);
+                byte[] packetData = new byte[bytesRead];
+                if (mReadSocketBuffer.hasArray()) {
+                    System.arraycopy(mReadSocketBuffer.array(), mReadSocketBuffer.arrayOffset(), packetData, 0, bytesRead);
+                } else {
+                    mReadSocketBuffer.get(packetData, 0, bytesRead);
                 }
 
-            } else
-                source = new Tuple(srcIp, srcIpArray, srcPort);
-
-            Tuple activeUDP = mActiveUDPConnectionMap.get(source);
-            if (activeUDP != null ||
-                    // If no active connection, check if this is a broadcast response:
-                    (activeUDP = mActiveUDPConnectionMap.get(
-                            new VPNUtils.Tuple(VPNUtils.BROADCAST_IP_INT,
-                                    VPNUtils.BROADCAST_IP_ARRAY, srcPort))) != null) {
-                int dstPort = activeUDP.mPort;
-                byte[] dstIpArray = activeUDP.mIpArray;
-                byte[] packetToWrite = constructUdpIpPacket(packetData,
-                        srcPort, srcIpArray, dstPort, dstIpArray);
-
-                writeDirectToTun(packetToWrite);
-            } else {
-                Logg.e(TAG, "Received UDP packet from an unknown host: " + srcIp + ":" + srcPort);
-            }
-        } else {
-            Logg.e(TAG, "Read 0 bytes from the UDP channel");
-        }
-        // End the case of reading from UDP SocketChannel
-        return;
-    }
+                int srcPort = remoteAddress.getPort();
+                byte[] srcIpArray = remoteAddress.getAddress().getAddress();
+                int srcIp = IpDatagram.convertIPv4IPArrayToInt(srcIpArray);
 
-    /**
-     * Read from a SocketChannel, queue the data TCP packet to be written back to TUN
-     * @param key
-     */
-    private static void readFromSocketChannel(SelectionKey key) {
-        SocketChannel channel = (SocketChannel) key.channel();
-        TCPForwarder forwarder = mSocketChannelToForwarderMap.get(channel);
+                long flowKey;
+                boolean isDNS = srcPort == IpDatagram.DNSPort;
+                if (isDNS) {
+                    int txid = UDPPacket.extractUDPv4Txid(packetData);
+                    flowKey = udpFlowKey(srcIp, txid);
 
-        // Sanity check
-        if (forwarder == null) {
-            return;
-        }
+                    if (ForwarderManager.KEEP_DNS_CACHE) {
+                        mHostnameIndex.onResponse(packetData, 0, bytesRead,
+                                SystemClock.elapsedRealtime());
+                    }
 
-        // TODO: we may need to keep track of window size to do this more correctly
-        // Client is now overwhelmed. We need to switch to WRITE mode and let the client catch up with sending ACKs
-/*        if (forwarder.mSequenceNumberToClient - forwarder.mAckNumberToServer > SOCKET_READ_THRESHOLD_WITHOUT_ACK && channel.isOpen()) {
-            Logg.d(TAG, forwarder + ": deregister: seqNum" + forwarder.mSequenceNumberToClient + ", ackNumber: " + forwarder.mAckNumberToServer + " , diff: " + (forwarder.mSequenceNumberToClient - forwarder.mAckNumberToServer));
-            try {
-                channel.register(mSocketSelector, OP_NONE);
-            } catch (ClosedChannelException e) {
-                Logg.e(TAG, forwarder + " Closed channel exception: " + e.getMessage(), e);
+                } else
+                    flowKey = udpFlowKey(srcIp, srcPort);
+
+                VPNUtils.UDPFlow activeUDP = mActiveUDPFlows.get(flowKey);
+                boolean isFlowResponse = activeUDP != null;
+                if (activeUDP != null ||
+                        // If no active connection, check if this is a broadcast response:
+                        (activeUDP = mActiveUDPFlows.get(
+                                udpFlowKey(VPNUtils.BROADCAST_IP_INT, srcPort))) != null) {
+                    int dstPort = activeUDP.mSource.mPort;
+                    byte[] dstIpArray = activeUDP.mSource.mIpArray;
+                    byte[] packetToWrite = constructUdpIpPacket(packetData,
+                            srcPort, srcIpArray, dstPort, dstIpArray);
+
+                    writeDirectToTun(packetToWrite);
+
+                    // Only a response that matched the query of its flow may be cached
+                    if (isDNS && isFlowResponse && DNS_ANSWER_CACHE_ENABLED)
+                        onDNSResponse(packetData, dstPort);
+                } else {
+                    mActiveUDPFlows.onUnknownHost();
+                    Logg.e(TAG, "Received UDP packet from an unknown host: " + srcIp + ":" + srcPort);
+                }
+            } else {
+                Logg.e(TAG, "Read 0 bytes from the UDP channel");
             }
+            // End the case of reading from UDP SocketChannel
             return;
-        }*/
+        }
 
+        /**
+         * Reads the datagrams waiting on the connected channel of a UDP flow and queues them to
+         * be written back to TUN. The flow is known from the key, so no lookup is needed.
+         * @param key
+         * @param flow the flow attached to the key
+         */
+        private void readFromFlowChannel(SelectionKey key, VPNUtils.UDPFlow flow) {
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            int srcPort = flow.mRemoteAddress.getPort();
+            byte[] srcIpArray = flow.mRemoteAddress.getAddress().getAddress();
+
+            // Drain a batch of datagrams rather than going through select for each one
+            for (int i = 0; i < MAX_FLOW_DATAGRAMS; i++) {
+                mReadSocketBuffer.clear();
+                int bytesRead;
+                try {
+                    bytesRead = channel.read(mReadSocketBuffer);
+                } catch (IOException e) {
+                    // E.g. the remote port is unreachable, as reported to connected sockets
+                    Logg.e(TAG, "Exception when reading a UDP flow channel: " + e.getMessage() +
+                            " addr = " + flow.mRemoteAddress);
+                    break;
+                }
 
-        int bytesRead = 0;
-        try {
-            bytesRead = channel.read(mReadSocketBuffer);
-        } catch(IOException e) {
-            Logg.e(TAG, "Exception while reading from TCP socket. Sending FIN to client: " + e.getMessage());
-            try {
-                key.cancel();
-                channel.close();
-            } catch(Exception e1) {
-                Logg.e(TAG, "Exception closing TCP SocketChannel: " + e1.getMessage());
-            }
-            synchronized(forwarder) {
-                //TODO: perhaps only do this if not in TIME_WAIT/CLOSING, but this seems to never happen
-                mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
-                mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, TCPForwarder.DELAY_SEND_FIN_TO_CLIENT);
-            }
-            return;
-        }
+                // Nothing left to read
+                if (bytesRead <= 0)
+                    break;
 
-        if (bytesRead > 0) {
-             //Logg.i(TAG, forwarder + " Bytes read from server: " + bytesRead);
+                mReadSocketBuffer.flip();
+                byte[] packetData = new byte[bytesRead];
+                mReadSocketBuffer.get(packetData, 0, bytesRead);
 
-            // TODO: ensure no duplicates with SSL filter
-            // Set buffer for proper processing by filter
-/*            mReadSocketBuffer.position(0);
-            mReadSocketBuffer.limit(bytesRead);
-            if (!mIncFilter.acceptIPDatagram(mReadSocketBuffer))
-                return;*/
+                if (srcPort == IpDatagram.DNSPort && ForwarderManager.KEEP_DNS_CACHE) {
+                    mHostnameIndex.onResponse(packetData, 0, bytesRead,
+                            SystemClock.elapsedRealtime());
+                }
 
-            // Forward data read to the client
-            synchronized(forwarder) {
-                byte[] packetToClient = forwarder.constructTcpIpPacketToClient(false, true, false,
-                        false, mReadSocketBuffer.array(), mReadSocketBuffer.arrayOffset(), bytesRead);
+                writeDirectToTun(constructUdpIpPacket(packetData, srcPort, srcIpArray,
+                        flow.mSource.mPort, flow.mSource.mIpArray));
 
-                writeDirectToTun(packetToClient);
-                forwarder.mSequenceNumberToClient += bytesRead;
-            }
-        } else if (bytesRead == -1) {
-            Logg.e(TAG, forwarder + " Bytes read from server = -1. Sending FIN to client");
-/*            if (forwarder.mServerState != TCPState.ESTABLISHED && forwarder.mServerState != TCPState.FIN_WAIT_1 &&
-                    forwarder.mServerState != TCPState.CLOSE_WAIT) {
-                Logg.e(TAG, forwarder + " is NOT sending Fin. state = " + forwarder.mServerState);
-                return;
-            }*/
-            try {
-                key.cancel();
-                channel.close();
-            } catch(Exception e1) {
-                Logg.e(TAG, "Exception closing TCP Read Socket 1: " + e1.getMessage());
-            }
-            synchronized(forwarder) {
-                mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
-                mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, TCPForwarder.DELAY_SEND_FIN_TO_CLIENT);
+                if (srcPort == IpDatagram.DNSPort && DNS_ANSWER_CACHE_ENABLED) {
+                    onDNSResponse(packetData, flow.mSource.mPort);
+                }
             }
-            return;
+            mConnectedUDPFlows.touch(flow);
         }
-    }
 
-    /**
-     * Construct a UDP packet to write back to TUN.
-     * @param packetData
-     * @param srcPort
-     * @param srcIpArray
-     * @param dstPort
-     * @param dstIpArray
-     * @return
-     */
-    static byte[] constructUdpIpPacket(byte[] packetData, int srcPort,
-                                               byte[] srcIpArray, int dstPort, byte[] dstIpArray) {
-        // Reconstruct UDP header, then IP header, then inject this to TUN interface
-        // 20 + 8 + data = 44 + data
-        byte[] packetToWrite = new byte[IpDatagram.IP_HEADER_DEFAULT_LENGTH  +
-                IpDatagram.UDP_HEADER_DEFAULT_LENGTH +
-                packetData.length];
+        /**
+         * Read from a SocketChannel, queue the data TCP packet to be written back to TUN
+         * @param key
+         */
+        private void readFromSocketChannel(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            TCPForwarder forwarder = mSocketChannelToForwarderMap.get(channel);
 
-        // Last bytes come the data
-        System.arraycopy(packetData, 0, packetToWrite, IpDatagram.IP_HEADER_DEFAULT_LENGTH  + IpDatagram.UDP_HEADER_DEFAULT_LENGTH , packetData.length);
+            // Sanity check
+            if (forwarder == null) {
+                return;
+            }
 
-        // First 20 bytes are IP header
-        // First byte: Version 4, IP Header Len = 5: 0b01000101
-        packetToWrite[0] = 0b01000101;
+            // Never send more than the client is willing to receive. If its window is full,
+            // stop reading until it acknowledges data (see TCPForwarder#resumeServerRead)
+            long window = forwarder.getClientWindowAvailable();
+            if (window <= 0) {
+                try {
+                    restoreRead(channel, forwarder);
+                } catch (ClosedChannelException e) {
+                    Logg.e(TAG, forwarder + " Closed channel exception: " + e.getMessage(), e);
+                }
+                return;
+            }
+            if (window < mReadSocketBuffer.remaining())
+                mReadSocketBuffer.limit((int) window);
 
-        // Second byte: Differentiated Services: not used
 
-        // 3rd and 4th Byte is total length
-        int totalLen = IpDatagram.IP_HEADER_DEFAULT_LENGTH  + IpDatagram.UDP_HEADER_DEFAULT_LENGTH + packetData.length;
-        packetToWrite[2] = (byte) (totalLen >> 8);
-        packetToWrite[3] = (byte) (totalLen);
+            int bytesRead = 0;
+            try {
+                bytesRead = channel.read(mReadSocketBuffer);
+            } catch(IOException e) {
+                Logg.e(TAG, "Exception while reading from TCP socket. Sending FIN to client: " + e.getMessage());
+                try {
+                    key.cancel();
+                    channel.close();
+                } catch(Exception e1) {
+                    Logg.e(TAG, "Exception closing TCP SocketChannel: " + e1.getMessage());
+                }
+                synchronized(forwarder) {
+                    //TODO: perhaps only do this if not in TIME_WAIT/CLOSING, but this seems to never happen
+                    mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
+                    mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, TCPForwarder.DELAY_SEND_FIN_TO_CLIENT);
+                }
+                return;
+            }
 
-        // 5th and 6th Byte is Identification for fragmentation:
-        mIpIdentification++;
-        if (mIpIdentification == Short.MAX_VALUE) {
-            mIpIdentification = 0;
+            if (bytesRead > 0) {
+                 //Logg.i(TAG, forwarder + " Bytes read from server: " + bytesRead);
+
+                // TODO: ensure no duplicates with SSL filter
+                // Set buffer for proper processing by filter
+    /*            mReadSocketBuffer.position(0);
+                mReadSocketBuffer.limit(bytesRead);
+                if (!mIncFilter.acceptIPDatagram(mReadSocketBuffer))
+                    return;*/
+
+                forwardToClient(forwarder, bytesRead);
+            } else if (bytesRead == -1) {
+                Logg.e(TAG, forwarder + " Bytes read from server = -1. Sending FIN to client");
+    /*            if (forwarder.mServerState != TCPState.ESTABLISHED && forwarder.mServerState != TCPState.FIN_WAIT_1 &&
+                        forwarder.mServerState != TCPState.CLOSE_WAIT) {
+                    Logg.e(TAG, forwarder + " is NOT sending Fin. state = " + forwarder.mServerState);
+                    return;
+                }*/
+                try {
+                    key.cancel();
+                    channel.close();
+                } catch(Exception e1) {
+                    Logg.e(TAG, "Exception closing TCP Read Socket 1: " + e1.getMessage());
+                }
+                synchronized(forwarder) {
+                    mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
+                    mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, TCPForwarder.DELAY_SEND_FIN_TO_CLIENT);
+                }
+                return;
+            }
         }
-        packetToWrite[4] = (byte) (mIpIdentification >> 8);
-        packetToWrite[5] = (byte) (mIpIdentification);
-
-        // 7th and 8th are Flags and Fragment offset: not used
-
-        // 9th is TTL. Set to 20
-        packetToWrite[8] = (byte) 20;
-
-        // 10th is Protocol: UDP = 17
-        packetToWrite[9] = (byte) 17;
 
-        // 13, 14, 15, 16 are Source IP
-        packetToWrite[12] = srcIpArray[0];
-        packetToWrite[13] = srcIpArray[1];
-        packetToWrite[14] = srcIpArray[2];
-        packetToWrite[15] = srcIpArray[3];
-
-        // 17, 18, 19, 20 are Dest IP
-        packetToWrite[16] = dstIpArray[0];
-        packetToWrite[17] = dstIpArray[1];
-        packetToWrite[18] = dstIpArray[2];
-        packetToWrite[19] = dstIpArray[3];
-
-        // Next 8 bytes are UDP header
-        // Source port
-        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH] = (byte) (srcPort >> 8);
-        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+1] = (byte) (srcPort);
-        // Destination port
-        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+2] = (byte) (dstPort >> 8);
-        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+3] = (byte) (dstPort);
-        // Length field
-        int len = IpDatagram.UDP_HEADER_DEFAULT_LENGTH + packetData.length;
-        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+4] = (byte) (len >> 8);
-        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+5] = (byte) (len);
-        // Checksum field: clear to 0 to disable
-        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+6] = (byte) 0;
-        packetToWrite[IpDatagram.IP_HEADER_DEFAULT_LENGTH+7] = (byte) 0;
+        /**
+         * Forwards data read from the server to the client, cut into segments the client
+         * accepts. Each segment is copied straight from the read buffer into its packet.
+         * @param bytesRead number of bytes at the start of the read buffer
+         */
+        private void forwardToClient(TCPForwarder forwarder, int bytesRead) {
+            synchronized(forwarder) {
+                int segmentSize = forwarder.getMaxSegmentSize();
+                for (int offset = 0; offset < bytesRead; offset += segmentSize) {
+                    int len = Math.min(segmentSize, bytesRead - offset);
+                    byte[] packetToClient = forwarder.constructTcpIpPacketToClient(false, true, false,
+                            false, mReadSocketBuffer.array(), mReadSocketBuffer.arrayOffset() + offset, len);
+
+                    writeDirectToTun(packetToClient);
+                    forwarder.mSequenceNumberToClient += len;
+                }
+            }
+        }
 
-        // 11th and 12th are header IP Check sum
-        long checkSum = IpDatagram.calculateIPv4Checksum(packetToWrite, 0, IpDatagram.IP_HEADER_DEFAULT_LENGTH);
-        packetToWrite[10] = (byte) (checkSum >> 8);
-        packetToWrite[11] = (byte) (checkSum);
+        /**
+         * Moves data between a forwarder and its {@link TLSPipe}: data queued by the client
+         * is written to the pipe, and data in the pipe is forwarded to the client as long as
+         * its window allows. Called when the pipe was signaled or the forwarder asked for it.
+         */
+        private void servePipe(TCPForwarder forwarder) {
+            TLSPipe.End pipe = forwarder.mTLSPipe;
+            pipe.clearSignal();
+            if (!pipe.isOpen())
+                return;
 
-//		String res = "";
-//		for (int i=0; i<packetToWrite.length; i++) {
-//			res += packetToWrite[i] + " ";
-//		}
-//		Logg.e(TAG, "Constructed packet: " + res);
+            VPNUtils.WriteQueue dataList = forwarder.mWriteQueue;
+            if (!dataList.isEmpty() && !gatherWrite(pipe, forwarder, dataList, true)) {
+                synchronized (forwarder) {
+                    mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
+                    mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, 0);
+                }
+                return;
+            }
 
-        return packetToWrite;
-    } // End constructUDPPacket
+            // Read at most what the pipe holds, then give other flows a turn
+            for (int read = 0; read < TLSPipe.BUFFER_SIZE; ) {
+                // Never send more than the client is willing to receive. Reading resumes once
+                // it acknowledges data (see TCPForwarder#resumeServerRead)
+                long window = forwarder.getClientWindowAvailable();
+                if (window <= 0) {
+                    if (forwarder.pauseServerRead())
+                        return;
+                    continue;
+                }
 
+                mReadSocketBuffer.clear();
+                if (window < mReadSocketBuffer.remaining())
+                    mReadSocketBuffer.limit((int) window);
 
-    /**
-     * Perform a write to a writable socket channel
-     */
-    private static void writeToChannel(SelectionKey key) {
-        mWriteSocketBuffer.clear();
+                int bytesRead;
+                try {
+                    bytesRead = pipe.read(mReadSocketBuffer);
+                } catch (IOException e) {
+                    return;
+                }
 
-        if (key.channel() instanceof DatagramChannel) {
-            synchronized(mWriteToNetMap) {
-                writeToDatagramChannel(key);
-            }
-        } else if (key.channel() instanceof SocketChannel) {
-            boolean result;
-            synchronized(mWriteToNetMap) {
-                result = writeToSocketChannel(key);
-            }
+                if (bytesRead == 0)
+                    return;
 
-            // If an exception occurred, send FIN to client
-            if (!result) {
-                TCPForwarder forwarder = mSocketChannelToForwarderMap.get(key.channel());
-                if (forwarder != null) {
-                    synchronized (forwarder) {
+                if (bytesRead < 0) {
+                    Logg.e(TAG, forwarder + " Bytes read from proxy = -1. Sending FIN to client");
+                    pipe.close();
+                    synchronized(forwarder) {
                         mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
-                        mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, 0);
+                        mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, TCPForwarder.DELAY_SEND_FIN_TO_CLIENT);
                     }
-                } else
-                    Logg.e(TAG, "forwarder is null, cannot send FIN!");
+                    return;
+                }
+
+                forwardToClient(forwarder, bytesRead);
+                read += bytesRead;
             }
+
+            if (pipe.isReadable())
+                requestPipe(forwarder);
         }
-    }
 
-    /**
-     * Write to a writable DatagramChannel
-     * @param key
-     */
-    private static void writeToDatagramChannel(SelectionKey key) {
-        DatagramChannel channel = (DatagramChannel) key.channel();
-        LinkedList<DataWriteToNet> dataList = mWriteToNetMap.get(channel);
-
-        // Write one UDP datagram at a time, then return to the main select loop
-        if (dataList != null && dataList.size() > 0) {
-            DataWriteToNet writeData = dataList.pollFirst();
-            SocketAddress remoteAddress = writeData.mRemoteAddress;
-            byte[] data = writeData.mData;
-            int offset = writeData.mDataOffset;
-            int len = writeData.mDataLen;
-
-            if (mWriteSocketBuffer.hasArray()) {
-                System.arraycopy(data, offset, mWriteSocketBuffer.array(), mWriteSocketBuffer.arrayOffset(), len);
-                mWriteSocketBuffer.position(0);
-                mWriteSocketBuffer.limit(len);
-            } else {
-                mWriteSocketBuffer.put(data, offset, len);
-                mWriteSocketBuffer.flip();
-            }
+        /**
+         * Perform a write to a writable socket channel
+         */
+        private void writeToChannel(SelectionKey key) {
+            mWriteSocketBuffer.clear();
 
-            try {
-                // Socket not connected, can send with dest ip
-                channel.send(mWriteSocketBuffer, remoteAddress);
-            } catch (IOException e) {
-                Logg.e(TAG, "Exception while writing to UDP channel: " + e.getMessage() +
-                " addr = " + remoteAddress);
+            if (key.attachment() instanceof VPNUtils.UDPFlow) {
+                writeToFlowChannel(key, (VPNUtils.UDPFlow) key.attachment());
+                return;
             }
-            // Logg.i(TAG, "Sent " + data.length + " to UDP " + remoteAddress);
-        }
 
-        // Restore READ interest if all data are written
-        try {
-            if (dataList.size() == 0) {
-                channel.register(mSocketSelector, SelectionKey.OP_READ);
+            // The channel's queue of outgoing data is attached to its key
+            VPNUtils.WriteQueue writeQueue = (VPNUtils.WriteQueue) key.attachment();
+
+            if (key.channel() instanceof DatagramChannel) {
+                writeToDatagramChannel(key, writeQueue);
+            } else if (key.channel() instanceof SocketChannel) {
+                boolean result = writeToSocketChannel(key, writeQueue);
+
+                // If an exception occurred, send FIN to client
+                if (!result) {
+                    TCPForwarder forwarder = mSocketChannelToForwarderMap.get(key.channel());
+                    if (forwarder != null) {
+                        synchronized (forwarder) {
+                            mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
+                            mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, 0);
+                        }
+                    } else
+                        Logg.e(TAG, "forwarder is null, cannot send FIN!");
+                }
             }
-        } catch (ClosedChannelException e) {
-            Logg.e(TAG, "Exception while restoring from WRITE to READ interest set for the UDP Channel: " + e.getMessage());
         }
-    }
 
+        /**
+         * Write to a writable DatagramChannel
+         * @param key
+         * @param dataList data waiting to be written to the channel
+         */
+        private void writeToDatagramChannel(SelectionKey key, VPNUtils.WriteQueue dataList) {
+            DatagramChannel channel = (DatagramChannel) key.channel();
+
+            // Write one UDP datagram at a time, then return to the main select loop
+            if (dataList != null && !dataList.isEmpty()) {
+                DataWriteToNet writeData = dataList.poll();
+                dataList.onWritten(writeData.mDataLen);
+                SocketAddress remoteAddress = writeData.mRemoteAddress;
+                byte[] data = writeData.mData;
+                int offset = writeData.mDataOffset;
+                int len = writeData.mDataLen;
 
-    /**
-     * Write to a writable SocketChannel
-     * @param key
-     * @return {@code true} if everything went well, {@code false} if an exception occured
-     */
-    private static boolean writeToSocketChannel(SelectionKey key) {
-        SocketChannel channel = (SocketChannel) key.channel();
-        LinkedList<DataWriteToNet> dataList = mWriteToNetMap.get(channel);
-        TCPForwarder forwarder = mSocketChannelToForwarderMap.get(channel);
+                if (mWriteSocketBuffer.hasArray()) {
+                    System.arraycopy(data, offset, mWriteSocketBuffer.array(), mWriteSocketBuffer.arrayOffset(), len);
+                    mWriteSocketBuffer.position(0);
+                    mWriteSocketBuffer.limit(len);
+                } else {
+                    mWriteSocketBuffer.put(data, offset, len);
+                    mWriteSocketBuffer.flip();
+                }
+
+                try {
+                    // Socket not connected, can send with dest ip
+                    channel.send(mWriteSocketBuffer, remoteAddress);
+                } catch (IOException e) {
+                    Logg.e(TAG, "Exception while writing to UDP channel: " + e.getMessage() +
+                    " addr = " + remoteAddress);
+                } finally {
+                    writeData.release();
+                }
+                // Logg.i(TAG, "Sent " + data.length + " to UDP " + remoteAddress);
+            }
 
-        // Sanity check
-        if (dataList == null || dataList.size() == 0 || forwarder == null) {
             // Restore READ interest if all data are written
-            // Restore only if READ has not passed threshold. We need to let the client keep up with ACKs.
             try {
-                // Restore only if READ has not passed threshold. We need to let the client keep up with ACKs.
-                if (forwarder.mSequenceNumberToClient - forwarder.mAckNumberToServer < SOCKET_READ_THRESHOLD_WITHOUT_ACK && channel.isOpen()) {
-                    Logg.d(TAG, forwarder + ": Registered to Read 1: seqNum" + forwarder.mSequenceNumberToClient + ", ackNumber: " + forwarder.mAckNumberToServer + " , diff: " + (forwarder.mSequenceNumberToClient - forwarder.mAckNumberToServer));
+                if (dataList == null || dataList.isEmpty()) {
                     channel.register(mSocketSelector, SelectionKey.OP_READ);
                 }
-            } catch (Exception e) {
-                Logg.e(TAG, forwarder +
-                        " Exception while restoring from WRITE to READ interest set for TCP Channel." +
-                        " Sending FIN to client: " + e.getMessage());
-                return false;
+            } catch (ClosedChannelException e) {
+                Logg.e(TAG, "Exception while restoring from WRITE to READ interest set for the UDP Channel: " + e.getMessage());
             }
-
-            return true;
         }
 
-        // Write one data token at a time, write as much as we could, then loop back to the Selector loop
-        while (dataList.size() > 0) {
-            mWriteSocketBuffer.clear();
-            long ackNum = -1;
+        /**
+         * Writes a batch of the datagrams queued for the connected channel of a UDP flow. Each
+         * datagram is sent straight out of its packet buffer.
+         * @param key
+         * @param flow the flow attached to the key
+         */
+        private void writeToFlowChannel(SelectionKey key, VPNUtils.UDPFlow flow) {
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            VPNUtils.WriteQueue dataList = flow.mWriteQueue;
+
+            // Hold the queue's monitor so that the datagrams are not released under our feet
+            synchronized (dataList) {
+                for (int i = 0; i < MAX_FLOW_DATAGRAMS; i++) {
+                    DataWriteToNet writeData = dataList.peek();
+                    if (writeData == null)
+                        break;
 
-            DataWriteToNet current = dataList.peekFirst();
-            // Note that mDataLen is less than TUN size;
-            if (current.mDataLen <= mWriteSocketBuffer.remaining()) {
-                dataList.poll();
-
-                ackNum = current.mAckNum;
-
-                if (channel.socket().getPort() == TLSProxyServer.port) {
-                    // We are only going to touch elements of forwarder that are read/written by
-                    // this thread and the TLSProxyForwarder thread. Therefore, there is no
-                    // need to synchronize on forwarder (that would cause deadlock with Network IO
-                    // thread - see TCPForwarder line ~546 - forwardData)
-                    synchronized (mTCPReassemblyMap) {
-                        TCPReassemblyInfo tcpInfo = mTCPReassemblyMap.get(forwarder.mSrc.mPort);
-                        // First TCP segment, memorize its SEQ+ACK
-                        if (tcpInfo == null) {
-                            tcpInfo = new TCPReassemblyInfo(
-                                    IpDatagram.readDestinationIP(current.mData),
-                                    forwarder.mSrc.mPort, forwarder.mDst.mPort,
-                                    TCPPacket.extractTCPv4AckNumber(current.mData),
-                                    TCPPacket.extractTCPv4SequenceNumber(current.mData),
-                                    current.mDataLen);
-                            mTCPReassemblyMap.put(forwarder.mSrc.mPort, tcpInfo);
-                        } else {
-                            // Subsequent TCP segment, add up data length:
-                            tcpInfo.addToDataLen(current.mDataLen);
-                        }
+                    try {
+                        // Nothing is sent while the socket buffer is full, retry when writable
+                        if (channel.write(writeData.asByteBuffer()) == 0 && writeData.mDataLen > 0)
+                            break;
+                    } catch (IOException e) {
+                        Logg.e(TAG, "Exception while writing to UDP channel: " + e.getMessage() +
+                                " addr = " + flow.mRemoteAddress);
                     }
-                }
 
-                if (mWriteSocketBuffer.hasArray()) {
-                    System.arraycopy(current.mData, current.mDataOffset,
-                            mWriteSocketBuffer.array(), mWriteSocketBuffer.arrayOffset() + mWriteSocketBuffer.position(), current.mDataLen);
-                    mWriteSocketBuffer.position(mWriteSocketBuffer.position() + current.mDataLen);
-                } else {
-                    mWriteSocketBuffer.put(current.mData, current.mDataOffset, current.mDataLen);
+                    dataList.poll();
+                    dataList.onWritten(writeData.mDataLen);
+                    writeData.release();
                 }
             }
 
-            mWriteSocketBuffer.flip();
+            // Restore READ interest if all data are written. The flow stays attached to the key.
+            if (dataList.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
 
-            try {
-                // int bytesWritten = 0;
-                // bytesWritten = channel.write(mWriteBuffer);
-                // Logg.i(TAG, "Bytes written to server " + bytesWritten);
-                channel.write(mWriteSocketBuffer);
-            } catch (Exception e) {
-                Logg.e(TAG, "Exception while forwarding data to server. Sending FIN to client:" + e.getMessage());
 
-                // Ack data and return, perhaps ack not needed even
-                /*synchronized(forwarder) {
-                    mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
-                    mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, 0);
-                }*/
-                return false;
+        /**
+         * Records a segment that is about to be written to the {@link TLSProxyServer}, so that
+         * decrypted data can be mapped back to its TCP segments
+         */
+        private void addToReassemblyInfo(TCPForwarder forwarder, DataWriteToNet current) {
+            // We are only going to touch elements of forwarder that are read/written by
+            // this thread and the TLSProxyServer thread. Therefore, there is no
+            // need to synchronize on forwarder (that would cause deadlock with Network IO
+            // thread - see TCPForwarder line ~546 - forwardData)
+            synchronized (mTCPReassemblyMap) {
+                TCPReassemblyInfo tcpInfo = mTCPReassemblyMap.get(forwarder.mSrc.mPort);
+                // First TCP segment, memorize its SEQ+ACK
+                if (tcpInfo == null) {
+                    tcpInfo = new TCPReassemblyInfo(
+                            IpDatagram.readDestinationIP(current.mData),
+                            forwarder.mSrc.mPort, forwarder.mDst.mPort,
+                            TCPPacket.extractTCPv4AckNumber(current.mData),
+                            TCPPacket.extractTCPv4SequenceNumber(current.mData),
+                            current.mDataLen);
+                    mTCPReassemblyMap.put(forwarder.mSrc.mPort, tcpInfo);
+                } else {
+                    // Subsequent TCP segment, add up data length:
+                    tcpInfo.addToDataLen(current.mDataLen);
+                }
             }
+        }
 
-            if (ackNum > 0) {
-                // Perform this on a separate thread not to block IO thread
-                final TCPForwarder finalForwarder = forwarder;
-                final long finalAck = ackNum;
-                mForwarderBacklogHandler.post(new Runnable() {
-                    public void run() {
-                        finalForwarder.mAckNumberToClient = finalAck;
-                        byte[] packetToClient = finalForwarder.constructTcpIpPacketToClient(false, true, false, false, null, 0, 0);
-                        writeDirectToTun(packetToClient);
-                    }
-                });
+        /**
+         * Registers READ interest for a TCP channel if the client has room in its receive
+         * window. Otherwise, clears all interest until the client acknowledges data.
+         */
+        private void restoreRead(SocketChannel channel, TCPForwarder forwarder)
+                throws ClosedChannelException {
+            if (!channel.isOpen())
+                return;
 
+            if (forwarder.getClientWindowAvailable() > 0 || !forwarder.pauseServerRead()) {
+                channel.register(mSocketSelector, SelectionKey.OP_READ);
+            } else {
+                //Logg.d(TAG, forwarder + ": Client window full. Not reading from server");
+                channel.register(mSocketSelector, OP_NONE);
             }
+        }
 
-            // Put the remaining data back
-            if (mWriteSocketBuffer.remaining() > 0) {
-                byte[] remainingData = new byte[mWriteSocketBuffer.remaining()];
+        /**
+         * Write to a writable SocketChannel
+         * @param key
+         * @param dataList data waiting to be written to the channel
+         * @return {@code true} if everything went well, {@code false} if an exception occured
+         */
+        private boolean writeToSocketChannel(SelectionKey key, VPNUtils.WriteQueue dataList) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            TCPForwarder forwarder = mSocketChannelToForwarderMap.get(channel);
 
-                if (mWriteSocketBuffer.hasArray()) {
-                    System.arraycopy(mWriteSocketBuffer.array(), mWriteSocketBuffer.arrayOffset() + mWriteSocketBuffer.position(),
-                            remainingData, 0, mWriteSocketBuffer.remaining());
-                } else {
-                    mWriteSocketBuffer.get(remainingData);
+            // Sanity check
+            if (forwarder == null)
+                return true;
+
+            if (dataList == null || dataList.isEmpty()) {
+                // Restore READ interest if all data are written
+                try {
+                    restoreRead(channel, forwarder);
+                } catch (Exception e) {
+                    Logg.e(TAG, forwarder +
+                            " Exception while restoring from WRITE to READ interest set for TCP Channel." +
+                            " Sending FIN to client: " + e.getMessage());
+                    return false;
                 }
 
-                DataWriteToNet dataWriteToNet = new DataWriteToNet(null, -1, remainingData, 0, remainingData.length);
-                dataList.offerFirst(dataWriteToNet);
-                break;
+                return true;
             }
-        }
 
-        // Restore READ interest if all data are written
-        try {
-            if (dataList.size() == 0 ) {
-                // Restore only if READ has not passed threshold. We need to let the client keep up with ACKs.
-                if (forwarder.mSequenceNumberToClient - forwarder.mAckNumberToServer < SOCKET_READ_THRESHOLD_WITHOUT_ACK && channel.isOpen()) {
-                    //Logg.d(TAG, forwarder + ": Registered to Read 2: seqNum" + forwarder.mSequenceNumberToClient + ", ackNumber: " + forwarder.mAckNumberToServer + " , diff: " + (forwarder.mSequenceNumberToClient - forwarder.mAckNumberToServer));
-                    channel.register(mSocketSelector, SelectionKey.OP_READ);
-                } else {
-                    Logg.d(TAG, forwarder + ": Client overloaded. not switching to OP_READ: seqNum" + forwarder.mSequenceNumberToClient + ", ackNumber: " + forwarder.mAckNumberToServer + " , diff: " + (forwarder.mSequenceNumberToClient - forwarder.mAckNumberToServer));
+            if (!gatherWrite(channel, forwarder, dataList, false))
+                return false;
+
+            // Restore READ interest if all data are written
+            try {
+                if (dataList.isEmpty()) {
+                    restoreRead(channel, forwarder);
                 }
+            } catch (Exception e) {
+                Logg.e(TAG, forwarder +
+                        " Exception while restoring from WRITE to READ interest set for TCP Channel." +
+                        " Sending FIN to client: " + e.getMessage());
+                return false;
             }
-        } catch (Exception e) {
-            Logg.e(TAG, forwarder +
-                    " Exception while restoring from WRITE to READ interest set for TCP Channel." +
-                    " Sending FIN to client: " + e.getMessage());
-            return false;
+
+            return true;
         }
+        /**
+         * Writes as many of the segments queued by the client as the channel takes, with a
+         * single gathering write, and acknowledges them to the client
+         * @param toProxy {@code true} if the channel leads to the {@link TLSProxyServer}
+         * @return {@code true} if everything went well, {@code false} if an exception occured
+         */
+        private boolean gatherWrite(GatheringByteChannel channel, TCPForwarder forwarder,
+                                    VPNUtils.WriteQueue dataList, boolean toProxy) {
+            // Gather as many queued segments as we can and write them with a single call.
+            // Hold the queue's monitor so that the segments are not released under our feet.
+            long ackNum = -1;
+            int segments = 0;
+            synchronized (dataList) {
+                int count = dataList.peek(mGatherData);
+                for (int i = 0; i < count; i++) {
+                    DataWriteToNet current = mGatherData[i];
+                    if (!current.hasByteBuffer() && toProxy) {
+                        // First time we see this segment
+                        addToReassemblyInfo(forwarder, current);
+                    }
+                    mGatherBuffers[i] = current.asByteBuffer();
+                }
 
-        return true;
-    }
+                long bytesWritten;
+                try {
+                    bytesWritten = channel.write(mGatherBuffers, 0, count);
+                    // Logg.i(TAG, "Bytes written to server " + bytesWritten);
+                } catch (Exception e) {
+                    Logg.e(TAG, "Exception while forwarding data to server. Sending FIN to client:" + e.getMessage());
+                    Arrays.fill(mGatherData, null);
+                    Arrays.fill(mGatherBuffers, null);
+
+                    // Ack data and return, perhaps ack not needed even
+                    /*synchronized(forwarder) {
+                        mForwarderBacklogHandler.removeCallbacks(forwarder.mSendFinToClient);
+                        mForwarderBacklogHandler.postDelayed(forwarder.mSendFinToClient, 0);
+                    }*/
+                    return false;
+                }
+
+                // Remove fully written segments. The first partially written one keeps track of
+                // how far we got, and is continued on the next write.
+                dataList.onWritten(bytesWritten);
+                for (int i = 0; i < count; i++) {
+                    DataWriteToNet current = mGatherData[i];
+                    if (!current.updateProgress())
+                        break;
+
+                    dataList.poll();
+                    current.release();
+                    if (current.mAckNum > 0) {
+                        ackNum = current.mAckNum;
+                        segments++;
+                    }
+                }
+                Arrays.fill(mGatherData, null);
+                Arrays.fill(mGatherBuffers, null);
+            }
+
+            // Acknowledge written segments to the client, coalescing ACKs. Done outside the
+            // queue's monitor, as the forwarder locks itself before clearing its queue.
+            if (ackNum > 0)
+                forwarder.onDataWritten(ackNum, segments);
+
+            return true;
+        }
+    } // end SelectorNetIO
 
     private final Runnable mWriteToNet;
 
+    private final Runnable mWriteToTun;
+
     /**
      * Private constructor to support singleton pattern
      */
     private ForwarderManager() {
         mWriteToNet = new TUNReader(this);
+        mWriteToTun = new TUNWriter(mWriteToTunQueue);
     }
 
     public static ForwarderManager getInstance(VpnClient service,
@@ -923,13 +1293,9 @@ public class ForwarderManager {
             mForwarderBacklogHandlerThread.quit();
         }
 
-        if (mTLSHandlerThread != null) {
-            mTLSHandlerThread.quit();
-        }
+        quitTLSHandlerThreads();
 
-        if (mSocketSelector != null) {
-            mSocketSelector.wakeup();
-        }
+        wakeupSelectors();
         for (Thread thread : mActiveThreads.values() ) {
             thread.interrupt();
         }
@@ -944,39 +1310,68 @@ public class ForwarderManager {
         mTunInterfaceJni = TunNativeInterface.getTunPollJni(fileDes.getFd());
 
         // Initialize data and start threads
-        mReadFromTunQueue.clear();
-        mWriteToNetMap.clear();
-        mChangeRequestQueue.clear();
+        mWriteToTunQueue.clear();
+        mTunWriteDrops.set(0);
+        mTLSSetups.set(0);
+        mTLSSetupWaitNanos.set(0);
+        mTLSSetupRunNanos.set(0);
+        clearWriteQueues();
         mSocketChannelToForwarderMap.clear();
-        mActiveUDPConnectionMap.clear();
+        mActiveUDPFlows.clear();
+        mConnectedUDPFlows.clear();
+        mDNSAnswerCache.clear();
+        mHostnameIndex.clear();
+        mUDPConnectedChannels = UDP_CONNECTED_CHANNELS;
         mIpIdentification = 0;
-        try {
-            mSocketSelector = SelectorProvider.provider().openSelector();
-        } catch(IOException e) {
-            Logg.e(TAG, "Exception initializing the socket selector: " + e.getMessage());
+
+        int numSelectors = Math.max(1, NUM_SELECTOR_THREADS);
+        SelectorNetIO[] selectorNetIOs = new SelectorNetIO[numSelectors];
+        for (int i = 0; i < numSelectors; i++) {
+            try {
+                selectorNetIOs[i] = new SelectorNetIO(SelectorProvider.provider().openSelector());
+            } catch(IOException e) {
+                Logg.e(TAG, "Exception initializing the socket selector: " + e.getMessage());
+            }
         }
+        mSelectorNetIOs = selectorNetIOs;
         initializeUDPSocketChannel(mService);
 
         mForwarderBacklogHandlerThread = new HandlerThread("Forwarder backlog handler thread");
         mActiveThreads.put(mForwarderBacklogHandlerThread.getId(), mForwarderBacklogHandlerThread);
         mForwarderBacklogHandlerThread.start();
         mForwarderBacklogHandler = new Handler(mForwarderBacklogHandlerThread.getLooper());
-
-        mTLSHandlerThread = new HandlerThread("TLS Handler Thread");
-        mActiveThreads.put(mTLSHandlerThread.getId(), mTLSHandlerThread);
-        mTLSHandlerThread.start();
-        mTLSHandler = new Handler(mTLSHandlerThread.getLooper());
-
-        mSelectorNetIOThread = new Thread(mSelectorNetIO);
-        mSelectorNetIOThread.setName("Selector Network IO Thread");
-        mActiveThreads.put(mSelectorNetIOThread.getId(), mSelectorNetIOThread);
-        mSelectorNetIOThread.start();
+        mForwarderBacklogHandler.postDelayed(mEvictIdleFlows, FLOW_TICK_INTERVAL);
+        mForwarderBacklogHandler.postDelayed(mExpireUDPFlows, UDPNatTable.TICK_INTERVAL);
+
+        HandlerThread[] tlsHandlerThreads = new HandlerThread[NUM_TLS_THREADS];
+        Handler[] tlsHandlers = new Handler[NUM_TLS_THREADS];
+        for (int i = 0; i < NUM_TLS_THREADS; i++) {
+            tlsHandlerThreads[i] = new HandlerThread("TLS Handler Thread-" + i);
+            mActiveThreads.put(tlsHandlerThreads[i].getId(), tlsHandlerThreads[i]);
+            tlsHandlerThreads[i].start();
+            tlsHandlers[i] = new Handler(tlsHandlerThreads[i].getLooper());
+        }
+        mTLSHandlerThreads = tlsHandlerThreads;
+        mTLSHandlers = tlsHandlers;
+
+        mSelectorNetIOThreads = new Thread[numSelectors];
+        for (int i = 0; i < numSelectors; i++) {
+            mSelectorNetIOThreads[i] = new Thread(selectorNetIOs[i]);
+            mSelectorNetIOThreads[i].setName("Selector Network IO Thread-" + i);
+            mActiveThreads.put(mSelectorNetIOThreads[i].getId(), mSelectorNetIOThreads[i]);
+            mSelectorNetIOThreads[i].start();
+        }
 
         mWriteToNetThread = new Thread(mWriteToNet);
         mWriteToNetThread.setName("Write-to-NET Worker Thread");
         mActiveThreads.put(mWriteToNetThread.getId(), mWriteToNetThread);
         mWriteToNetThread.start();
 
+        mWriteToTunThread = new Thread(mWriteToTun);
+        mWriteToTunThread.setName("Write-to-TUN Worker Thread");
+        mActiveThreads.put(mWriteToTunThread.getId(), mWriteToTunThread);
+        mWriteToTunThread.start();
+
         isRunning = true;
         Log.i(TAG, "ForwarderManager Started.");
     }
@@ -1010,9 +1405,8 @@ public class ForwarderManager {
         if (mForwarderBacklogHandlerThread != null) {
             mForwarderBacklogHandlerThread.quit();
         }
-        if (mSocketSelector != null) {
-            mSocketSelector.wakeup();
-        }
+        quitTLSHandlerThreads();
+        wakeupSelectors();
         for (Thread thread : mActiveThreads.values() ) {
             thread.interrupt();
         }
@@ -1033,6 +1427,8 @@ public class ForwarderManager {
 
     /** Closes all open TCP channels and clears all maps of connections */
     protected synchronized void teardownConnections() {
+        clearWriteQueues();
+
         // Close all TCP channels
         for (SocketChannel channel : mSocketChannelToForwarderMap.keySet()) {
             try {
@@ -1043,132 +1439,279 @@ public class ForwarderManager {
         }
 
         // Clear maps to remove references to Forwarders so that they are garbage collected
-        mActiveTCPForwarderMap.clear();
+        mActiveTCPForwarders.clear();
         mSocketChannelToForwarderMap.clear();
-        mWriteToNetMap.clear();
+
+        // Closes the channels of UDP flows
+        mActiveUDPFlows.clear();
+        mConnectedUDPFlows.clear();
 
         Logg.i(TAG, "UDP Connection Manager shutdown complete.");
     }
 
+    private static void quitTLSHandlerThreads() {
+        for (HandlerThread thread : mTLSHandlerThreads)
+            thread.quit();
+    }
+
     /**
-     * Write a constructed packet directly to TUN
+     * Runs a task that sets up the TLS connection of a flow on the TLS thread of the flow
+     * @param srcPort source port of the flow
+     * @param task the task to run
      */
-    static void writeDirectToTun(byte[] packet) {
-        int packetOffset = 0;
-        int packetLength = packet.length;
+    static void postTLSSetup(int srcPort, final Runnable task) {
+        Handler[] tlsHandlers = mTLSHandlers;
+        final long queuedAt = System.nanoTime();
+        tlsHandlers[srcPort % tlsHandlers.length].post(new Runnable() {
+            @Override
+            public void run() {
+                long startedAt = System.nanoTime();
+                task.run();
+                mTLSSetupWaitNanos.addAndGet(startedAt - queuedAt);
+                mTLSSetupRunNanos.addAndGet(System.nanoTime() - startedAt);
+                mTLSSetups.incrementAndGet();
+            }
+        });
+    }
 
-        synchronized(mWriteTunBuffer) {
-            mWriteTunBuffer.clear();
+    /** @return number of TLS setups run since the VPN started */
+    static long getTLSSetupCount() {
+        return mTLSSetups.get();
+    }
 
-            // Sanity check
-            if (packet.length > mWriteTunBuffer.capacity()) {
-                Logg.e(TAG, "Packet to write to TUN is bigger than Write TUN Buffer");
-                return;
-            }
+    /** @return average time (in microseconds) a TLS setup waited for its thread */
+    static long getTLSSetupAverageWait() {
+        long setups = mTLSSetups.get();
+        return setups == 0 ? 0 : mTLSSetupWaitNanos.get() / setups / 1000;
+    }
 
-            if (mWriteTunBuffer.hasArray()) {
-                System.arraycopy(packet, packetOffset, mWriteTunBuffer.array(), mWriteTunBuffer.arrayOffset(), packetLength);
-                mWriteTunBuffer.position(0);
-                mWriteTunBuffer.limit(packetLength);
-            } else {
-                mWriteTunBuffer.put(packet, packetOffset, packetLength);
-                mWriteTunBuffer.flip();
-            }
+    /** @return average time (in microseconds) a TLS setup ran */
+    static long getTLSSetupAverageTime() {
+        long setups = mTLSSetups.get();
+        return setups == 0 ? 0 : mTLSSetupRunNanos.get() / setups / 1000;
+    }
 
-            PacketAnnotation packetAnnot = mIncFilter.acceptIPDatagram(mWriteTunBuffer);
-            if (!packetAnnot.isAllowed())
-                return;
+    /**
+     * Sends the SYN-ACK to the client once the connection to the server is established.
+     * The caller must hold the lock of the forwarder.
+     */
+    static void onTCPConnected(TCPForwarder forwarder) {
+        byte[] synAckPacketToClient = forwarder.mSynAckToClient;
+        writeDirectToTun(synAckPacketToClient);
+        //Logg.d(TAG, forwarder + " Sent SYN-ACK. Updating from " + forwarder.mServerState + " to SYN_RECEIVED");
+        forwarder.mSequenceNumberToClient++;
+        forwarder.mServerState = TCPState.SYN_RECEIVED;
+
+        // At this point, new TCP connection is established:
+        mOutFilter.onTCPConnectionOpened(forwarder.mServerIP.toString().substring(1),
+                forwarder.mSrc.mPort, forwarder.mDst.mPort);
+    }
+
+    /** Wakes up all selectors, e.g. so that their threads notice an interrupt */
+    private static void wakeupSelectors() {
+        for (SelectorNetIO selectorNetIO : mSelectorNetIOs) {
+            if (selectorNetIO != null)
+                selectorNetIO.mSocketSelector.wakeup();
+        }
+    }
+
+    /**
+     * @param srcPort source port of the flow
+     * @return the {@link SelectorNetIO} that serves the flow with the given source port
+     */
+    static SelectorNetIO getSelectorNetIO(int srcPort) {
+        SelectorNetIO[] selectorNetIOs = mSelectorNetIOs;
+        return selectorNetIOs[srcPort % selectorNetIOs.length];
+    }
+
+    /** @return the {@link SelectorNetIO} that serves the single UDP channel */
+    private static SelectorNetIO getUDPSelectorNetIO() {
+        return mSelectorNetIOs[0];
+    }
+
+    /** Clears all queues of outgoing data, returning any pooled packet buffers they reference */
+    private static void clearWriteQueues() {
+        mUDPWriteQueue.clear();
+        for (TCPForwarder forwarder : mSocketChannelToForwarderMap.values())
+            forwarder.mWriteQueue.clear();
+    }
+
+    /**
+     * @param srcPort source port of a TCP connection. All connections come from our TUN address.
+     * @return key of the connection in {@link #mActiveTCPForwarders}
+     */
+    static long tcpFlowKey(int srcPort) {
+        return FlowTable.key(IpDatagram.TCP, TUN_SOURCE_IP, srcPort);
+    }
+
+    /**
+     * @param dstIp remote address of a UDP flow
+     * @param dstPort remote port of a UDP flow, or the transaction ID of a DNS query
+     * @return key of the flow in {@link #mActiveUDPFlows}
+     */
+    static long udpFlowKey(int dstIp, int dstPort) {
+        return FlowTable.key(IpDatagram.UDP, dstIp, dstPort);
+    }
+
+    /**
+     * @param dstIp remote address of a UDP flow
+     * @param dstPort remote port of a UDP flow
+     * @param srcPort source port of a UDP flow
+     * @return key in {@link #mConnectedUDPFlows} of a flow that has a connected channel of its
+     * own. Such a flow belongs to a single app socket, so the key holds its whole address tuple
+     * and, unlike {@link FlowTable#key(int, int, int)}, no protocol. It is never 0, as the
+     * destination port of such a flow never is.
+     */
+    static long udpConnectedFlowKey(int dstIp, int dstPort, int srcPort) {
+        return ((dstIp & 0xFFFFFFFFL) << 32) | ((long) (dstPort & 0xFFFF) << 16) | (srcPort & 0xFFFF);
+    }
+
+    /** @return number of active UDP flows */
+    static int getUDPFlowCount() {
+        return mActiveUDPFlows.size() + mConnectedUDPFlows.size();
+    }
+
+    /** @return number of UDP flows that expired or were evicted from the full table */
+    static long getUDPFlowEvictions() {
+        return mActiveUDPFlows.getExpiredCount() + mActiveUDPFlows.getEvictedCount() +
+                mConnectedUDPFlows.getExpiredCount() + mConnectedUDPFlows.getEvictedCount();
+    }
+
+    /** @return number of UDP packets from the network dropped for not matching any flow */
+    static long getUDPUnknownHostDrops() {
+        return mActiveUDPFlows.getUnknownHostDrops();
+    }
 
-            if (mIncPacketQueue != null)
-                mIncPacketQueue.put(new PacketDumpInfo(packet, packetAnnot));
+    /** @return the active TCPForwarder of the given source port, or {@code null} */
+    static TCPForwarder getTCPForwarder(int srcPort) {
+        return mActiveTCPForwarders.get(tcpFlowKey(srcPort));
+    }
 
-            // Reset back for writing
-            mWriteTunBuffer.position(0);
-            mWriteTunBuffer.limit(packetLength);
+    /**
+     * Queue a constructed packet to be written to TUN. Packets are filtered, logged and
+     * written in order by mWriteToTunThread. If the queue is full, TCP segments wait for room
+     * for a while, as they are not sent again, and other packets are dropped.
+     */
+    static void writeDirectToTun(byte[] packet) {
+        if (mWriteToTunQueue.offer(packet))
+            return;
 
-            mTunInterfaceJni.write(mWriteTunBuffer, packetLength);
+        if (IpDatagram.readProtocol(packet) == IpDatagram.TCP) {
+            try {
+                if (mWriteToTunQueue.offer(packet, TUN_WRITE_QUEUE_TIMEOUT, TimeUnit.MILLISECONDS))
+                    return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        mTunWriteDrops.incrementAndGet();
+    }
+
+    /**
+     * @return number of packets destined to the apps that were dropped, either because they
+     * were produced faster than TUN takes them or because writing them to TUN failed
+     */
+    static long getTunWriteDrops() {
+        return mTunWriteDrops.get();
     }
 
     /**
      * Process given packet and queue it for writing to the network
-     * @param packet the packet that was read from TUN and needs to be written to the network
+     * @param buffer holds the packet that was read from TUN and needs to be written to the
+     *               network. The buffer is retained by whoever needs it past this call, so the
+     *               caller is free to release it when this method returns.
      * @param packetAnnot packet annotation created by a {@link PacketFilter}
      */
-    void processTUNReadData(byte[] packet, PacketAnnotation packetAnnot) {
+    void processTUNReadData(PacketBuffer buffer, PacketAnnotation packetAnnot) {
+        byte[] packet = buffer.array();
         int ipVer = IpDatagram.extractIPVersion(packet);
         if (ipVer == IpDatagram.IPV4) {
 
-            // TODO: room for OPT here as we extract srcPort, etc. multiple times
-            // Copy packet for logging
+            // Log the packet. It is copied unless the consumer keeps up.
             if (mOutPacketQueue != null)
-                mOutPacketQueue.put(new PacketDumpInfo(packet, packetAnnot));
+                mOutPacketQueue.put(buffer, packetAnnot);
 
             byte protocol = IpDatagram.readProtocol(packet);
             int dstPort = IpDatagram.readDestinationPort(packet);
             int dstIp = IpDatagram.extractIPv4DestinationIP(packet);
-            byte[] dstIpArray = IpDatagram.extractIPv4DestinationIPArray(packet);
             int srcPort = IpDatagram.readSourcePort(packet);
             int srcIp = IpDatagram.extractIPv4SourceIP(packet);
-            byte[] srcIpArray = IpDatagram.extractIPv4SourceIPArray(packet);
 
             // Skip non-tun traffic based on our TUN configuration (192.168.0.2)
-            if (srcIpArray[0] != -64 || srcIpArray[1] != -88 || srcIpArray[2] != 0 || srcIpArray[3] != 2) {
+            if (srcIp != TUN_SOURCE_IP) {
                 return;
             }
 
             if (protocol == IpDatagram.UDP) {
-                byte[] packetData = UDPPacket.extractUDPv4Data(packet);
-                VPNUtils.Tuple destination;
-                // If DNS (port 53) then use TXID as key to map
-                // otherwise multiple sources will map to same DNS destination!
-                if (dstPort == IpDatagram.DNSPort) {
-                    int txid = UDPPacket.extractUDPv4Txid(packetData);
-                    destination = new VPNUtils.Tuple(dstIp, dstIpArray, txid);
-                } else
-                    destination = new VPNUtils.Tuple(dstIp, dstIpArray, dstPort);
-
-                VPNUtils.Tuple source = new VPNUtils.Tuple(srcIp, srcIpArray, srcPort);
-                mActiveUDPConnectionMap.put(destination, source);
+                // Send the UDP payload straight out of the packet buffer
+                int dataOffset = IpDatagram.extractIPv4HeaderLength(packet) +
+                        IpDatagram.UDP_HEADER_DEFAULT_LENGTH;
+                int dataLen = buffer.length() - dataOffset;
+                if (dataLen < 0) {
+                    return;
+                }
 
-                InetSocketAddress remoteAddress = null;
-                try {
-                    remoteAddress = new InetSocketAddress(InetAddress.getByAddress(dstIpArray), dstPort);
-                } catch (Exception e) {
-                    Logg.e(TAG, "Exception creating UDP remote address" + e.getMessage());
+                if (dstPort == IpDatagram.DNSPort && DNS_ANSWER_CACHE_ENABLED &&
+                        answerDNSQuery(packet, dstPort, dataOffset, dataLen)) {
                     return;
                 }
 
-                VPNUtils.DataWriteToNet writeData = new VPNUtils.DataWriteToNet(remoteAddress, -1, packetData, 0, packetData.length);
+                // Broadcasts are answered by any host, so they can only use the shared channel
+                if (mUDPConnectedChannels && dstIp != VPNUtils.BROADCAST_IP_INT) {
+                    forwardToFlowChannel(buffer, srcIp, srcPort, dstIp, dstPort, dataOffset, dataLen);
+                    return;
+                }
 
-                // Request to change channel interests and queue the data to write
-                synchronized(mChangeRequestQueue) {
-                    mChangeRequestQueue.offerLast(new VPNUtils.ChangeRequest(mUDPSocketChannel, SelectionKey.OP_WRITE, null));
-                    synchronized(mWriteToNetMap) {
-                        LinkedList<VPNUtils.DataWriteToNet> queue = mWriteToNetMap.get(mUDPSocketChannel);
-                        if (queue == null) {
-                            queue = new LinkedList<VPNUtils.DataWriteToNet>();
-                            mWriteToNetMap.put(mUDPSocketChannel, queue);
-                        }
-                        queue.add(writeData);
+                long flowKey;
+                long timeout = UDP_IDLE_TIMEOUT;
+                // If DNS (port 53) then use TXID as key to map
+                // otherwise multiple sources will map to same DNS destination!
+                if (dstPort == IpDatagram.DNSPort && dataLen >= 2) {
+                    int txid = UDPPacket.extractUDPv4Txid(packet, dataOffset);
+                    flowKey = udpFlowKey(dstIp, txid);
+                    timeout = DNS_IDLE_TIMEOUT;
+                } else
+                    flowKey = udpFlowKey(dstIp, dstPort);
+
+                // Known flows are reused as is, so that forwarding their packets allocates
+                // nothing but the write itself
+                VPNUtils.UDPFlow flow = mActiveUDPFlows.get(flowKey);
+                if (flow == null || flow.mSource.mPort != srcPort ||
+                        flow.mRemoteAddress.getPort() != dstPort) {
+                    InetSocketAddress remoteAddress = null;
+                    try {
+                        remoteAddress = new InetSocketAddress(InetAddress.getByAddress(
+                                IpDatagram.extractIPv4DestinationIPArray(packet)), dstPort);
+                    } catch (Exception e) {
+                        Logg.e(TAG, "Exception creating UDP remote address" + e.getMessage());
+                        return;
                     }
+
+                    VPNUtils.Tuple source = new VPNUtils.Tuple(srcIp,
+                            IpDatagram.extractIPv4SourceIPArray(packet), srcPort);
+                    flow = new VPNUtils.UDPFlow(flowKey, source, remoteAddress);
+                    mActiveUDPFlows.put(flow, timeout);
                 }
-                mSocketSelector.wakeup();
+
+                // Queue the data to write and request to change channel interests
+                mUDPWriteQueue.offer(flow.mRemoteAddress, -1, buffer, dataOffset, dataLen);
+                getUDPSelectorNetIO().requestChange(new VPNUtils.ChangeRequest(mUDPSocketChannel,
+                        SelectionKey.OP_WRITE, mUDPWriteQueue));
 
             } else if (protocol == IpDatagram.TCP) {
                 // If there exists a TCP forwarder for this flow, let it handle the packet.
                 // If not then create one.
-                VPNUtils.Tuple src = new VPNUtils.Tuple(srcIp, srcIpArray, srcPort);
-                VPNUtils.Tuple dst = new VPNUtils.Tuple(dstIp, dstIpArray, dstPort);
-
-                TCPForwarder existingForwarder = mActiveTCPForwarderMap.get(srcPort);
-                if (existingForwarder != null) {
-                    existingForwarder.processPacket(packet);
-                } else {
-                    TCPForwarder newForwarder = new TCPForwarder(src, dst);
-                    mActiveTCPForwarderMap.put(srcPort, newForwarder);
-                    newForwarder.processPacket(packet);
+                long flowKey = tcpFlowKey(srcPort);
+                TCPForwarder forwarder = mActiveTCPForwarders.get(flowKey);
+                if (forwarder == null) {
+                    VPNUtils.Tuple src = new VPNUtils.Tuple(srcIp,
+                            IpDatagram.extractIPv4SourceIPArray(packet), srcPort);
+                    VPNUtils.Tuple dst = new VPNUtils.Tuple(dstIp,
+                            IpDatagram.extractIPv4DestinationIPArray(packet), dstPort);
+                    forwarder = new TCPForwarder(src, dst);
+                    mActiveTCPForwarders.put(flowKey, forwarder);
                 }
+                forwarder.processPacket(buffer);
 
             } else if (protocol == IpDatagram.ICMP) {
                 // Logg.e(TAG, "Protocol = ICMP. Not supported.");
@@ -1179,6 +1722,121 @@ public class ForwarderManager {
         }
     }
 
+    /**
+     * Answers a DNS query read from TUN from {@link #mDNSAnswerCache}, or holds it back if an
+     * identical query is already waiting for its response
+     * @param packet the packet holding the query
+     * @param dstPort port of the DNS server the query is sent to
+     * @param dataOffset offset of the DNS message in the packet
+     * @param dataLen length of the DNS message
+     * @return {@code true} if the query was taken care of, {@code false} if it must be sent
+     */
+    private static boolean answerDNSQuery(byte[] packet, int dstPort, int dataOffset,
+                                          int dataLen) {
+        DNSCache.Query query = DNSCache.Query.parse(packet, dataOffset, dataLen);
+        if (query == null)
+            return false;
+
+        byte[] srcIpArray = IpDatagram.extractIPv4SourceIPArray(packet);
+        byte[] dstIpArray = IpDatagram.extractIPv4DestinationIPArray(packet);
+        int srcPort = IpDatagram.readSourcePort(packet);
+
+        long now = SystemClock.elapsedRealtime();
+        byte[] answer = mDNSAnswerCache.getAnswer(query, now);
+        if (answer != null) {
+            // Answer as if the server did
+            writeDirectToTun(constructUdpIpPacket(answer, dstPort, dstIpArray, srcPort,
+                    srcIpArray));
+            return true;
+        }
+
+        return mDNSAnswerCache.coalesce(new DNSCache.Waiter(query, srcIpArray, srcPort,
+                dstIpArray, dstPort), now);
+    }
+
+    /**
+     * Caches a DNS response received from the network for a known flow, and answers the
+     * queries that were held back waiting for it
+     * @param response the DNS message
+     * @param clientPort port of the app the response was forwarded to
+     */
+    static void onDNSResponse(byte[] response, int clientPort) {
+        List<DNSCache.Waiter> waiters = mDNSAnswerCache.onResponse(response, clientPort,
+                SystemClock.elapsedRealtime());
+        if (waiters == null)
+            return;
+
+        for (DNSCache.Waiter waiter : waiters) {
+            writeDirectToTun(constructUdpIpPacket(waiter.mAnswer, waiter.mServerPort,
+                    waiter.mServerIpArray, waiter.mClientPort, waiter.mClientIpArray));
+        }
+    }
+
+    /**
+     * Queues the payload of a UDP packet read from TUN for the connected channel of its flow,
+     * opening a channel for a new flow
+     * @param buffer holds the packet
+     * @param dataOffset offset of the UDP payload in the packet
+     * @param dataLen length of the UDP payload
+     */
+    private static void forwardToFlowChannel(PacketBuffer buffer, int srcIp, int srcPort,
+                                             int dstIp, int dstPort, int dataOffset, int dataLen) {
+        // Port 0 cannot be connected to
+        if (dstPort == 0)
+            return;
+
+        long flowKey = udpConnectedFlowKey(dstIp, dstPort, srcPort);
+        VPNUtils.UDPFlow flow = mConnectedUDPFlows.get(flowKey);
+        if (flow == null || !flow.mChannel.isOpen()) {
+            flow = openFlowChannel(flowKey, buffer.array(), srcIp, srcPort, dstPort);
+            if (flow == null)
+                return;
+        }
+
+        flow.mWriteQueue.offer(null, -1, buffer, dataOffset, dataLen);
+
+        // The flow may have expired in the meantime. Make sure its queue does not keep the buffer.
+        if (!flow.mChannel.isOpen()) {
+            flow.mWriteQueue.clear();
+            return;
+        }
+        flow.mSelectorNetIO.requestChange(new VPNUtils.ChangeRequest(flow.mChannel,
+                SelectionKey.OP_WRITE, flow));
+    }
+
+    /**
+     * Creates a UDP flow with a protected channel connected to the destination of the given
+     * packet, and registers the channel for reading with the flow attached to its key
+     * @return the new flow, or {@code null} if the channel could not be opened
+     */
+    private static VPNUtils.UDPFlow openFlowChannel(long flowKey, byte[] packet, int srcIp,
+                                                    int srcPort, int dstPort) {
+        VPNUtils.UDPFlow flow = null;
+        try {
+            InetSocketAddress remoteAddress = new InetSocketAddress(InetAddress.getByAddress(
+                    IpDatagram.extractIPv4DestinationIPArray(packet)), dstPort);
+            VPNUtils.Tuple source = new VPNUtils.Tuple(srcIp,
+                    IpDatagram.extractIPv4SourceIPArray(packet), srcPort);
+
+            flow = new VPNUtils.UDPFlow(flowKey, source, remoteAddress);
+            flow.mWriteQueue = new VPNUtils.WriteQueue();
+            flow.mSelectorNetIO = getSelectorNetIO(srcPort);
+            flow.mChannel = DatagramChannel.open();
+            flow.mChannel.configureBlocking(false);
+            mService.protect(flow.mChannel.socket());
+            flow.mChannel.connect(remoteAddress);
+        } catch (Exception e) {
+            Logg.e(TAG, "Exception opening a UDP flow channel: " + e.getMessage());
+            if (flow != null)
+                flow.close();
+            return null;
+        }
+
+        mConnectedUDPFlows.put(flow, dstPort == IpDatagram.DNSPort ? DNS_IDLE_TIMEOUT : UDP_IDLE_TIMEOUT);
+        flow.mSelectorNetIO.requestChange(new VPNUtils.ChangeRequest(flow.mChannel,
+                SelectionKey.OP_READ, flow));
+        return flow;
+    }
 
     /** @return {@code true} if SSL bumping is enabled, {@code false} otherwise */
     static boolean getSSLBumpingEnabled() { return SSL_BUMPING_ENABLED; }
@@ -1208,5 +1866,17 @@ public class ForwarderManager {
         SSL_BUMPING_ENABLED = enabled;
     }
 
+    /**
+     * Sets the number of selector threads used for network IO. TCP flows are sharded across
+     * the threads by source port. Takes effect the next time the forwarder is started.
+     * @param numThreads number of selector threads, at least 1
+     */
+    static void setNumSelectorThreads(int numThreads) {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("Need at least one selector thread");
+
+        NUM_SELECTOR_THREADS = numThreads;
+    }
+
     boolean isRunning() { return isRunning; }
 }
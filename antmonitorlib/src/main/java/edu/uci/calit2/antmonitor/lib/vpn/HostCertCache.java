@@ -0,0 +1,164 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Certificates that hosts presented to the TLS proxy, by address, port and server name. They
+ * come from the handshakes the proxy makes with the hosts anyway, so that no connection is
+ * made just to fetch a certificate. Entries expire after a while, in case a host changes its
+ * certificate, and the least recently used entries are dropped once the cache is full.
+ * A host that failed its handshake is remembered too, so that its next connections are not
+ * intercepted for a while. All methods are thread-safe.
+ */
+class HostCertCache {
+    private static final String TAG = HostCertCache.class.getSimpleName();
+
+    /** Time (in milliseconds) a certificate is kept */
+    static final long TTL = 60 * 60 * 1000;
+
+    /** Time (in milliseconds) a failed handshake is kept */
+    static final long FAILURE_TTL = 5 * 60 * 1000;
+
+    /** What is known of the certificate of a host */
+    static class CertInfo {
+        /** Common name of the certificate, {@code null} if the handshake failed */
+        final String mName;
+
+        /** DNS names the certificate is also valid for */
+        final Set<String> mAltNames;
+
+        /** Chain of the certificate, the certificate of the host first */
+        final X509Certificate[] mCerts;
+
+        final long mExpiresAt;
+
+        private CertInfo(String name, Set<String> altNames, X509Certificate[] certs,
+                         long expiresAt) {
+            mName = name;
+            mAltNames = altNames;
+            mCerts = certs;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    /** Entries by key, least recently used first */
+    private final LinkedHashMap<String, CertInfo> mEntries;
+
+    HostCertCache(final int maxEntries) {
+        mEntries = new LinkedHashMap<String, CertInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CertInfo> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static String getKey(String address, int port, String serverName) {
+        return address + ":" + port + ":" + serverName;
+    }
+
+    /**
+     * @param address address of the host, e.g. 216.58.193.196
+     * @param port port of the host
+     * @param serverName name the app asked for in its Client Hello, or {@code null} for the
+     *                   latest certificate seen at the address and port
+     * @param now current time in milliseconds
+     * @return what is known of the certificate, or {@code null} if nothing is
+     */
+    synchronized CertInfo get(String address, int port, String serverName, long now) {
+        String key = getKey(address, port, serverName);
+        CertInfo info = mEntries.get(key);
+        if (info != null && info.mExpiresAt <= now) {
+            mEntries.remove(key);
+            return null;
+        }
+        return info;
+    }
+
+    /**
+     * Remembers the certificate a host presented
+     * @param certs chain of the certificate, the certificate of the host first
+     * @return what is known of the certificate, or {@code null} if it has no common name
+     */
+    CertInfo put(String address, int port, String serverName, X509Certificate[] certs,
+                 long now) {
+        String name = getCommonName(certs[0]);
+        if (name == null)
+            return null;
+
+        CertInfo info = new CertInfo(name, getAltNames(certs[0]), certs, now + TTL);
+        put(address, port, serverName, info);
+        return info;
+    }
+
+    /** Remembers that a host failed its handshake */
+    void putFailure(String address, int port, String serverName, long now) {
+        put(address, port, serverName, new CertInfo(null, null, null, now + FAILURE_TTL));
+    }
+
+    private synchronized void put(String address, int port, String serverName, CertInfo info) {
+        mEntries.put(getKey(address, port, serverName), info);
+        if (serverName != null)
+            mEntries.put(getKey(address, port, null), info);
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /** @return the common name of the subject of the certificate, or {@code null} */
+    private static String getCommonName(X509Certificate cert) {
+        String[] cnValues = cert.getSubjectX500Principal().getName().split(",");
+        for (String val : cnValues) {
+            String[] parts = val.split("=");
+            if (parts.length == 2 && parts[0].trim().equalsIgnoreCase("cn") &&
+                    parts[1] != null && parts[1].length() > 0) {
+                return parts[1].trim();
+            }
+        }
+        return null;
+    }
+
+    /** @return the DNS names among the alternative names of the certificate */
+    private static Set<String> getAltNames(X509Certificate cert) {
+        final int SUBALTNAME_DNSNAME = 2;
+        Set<String> altNames = new HashSet<>();
+        try {
+            Collection<List<?>> coll = cert.getSubjectAlternativeNames();
+            if (coll == null)
+                return altNames;
+
+            for (List<?> next : coll) {
+                if (((Integer) next.get(0)).intValue() == SUBALTNAME_DNSNAME)
+                    altNames.add((String) next.get(1));
+            }
+        } catch (CertificateParsingException e) {
+            ForwarderManager.Logg.w(TAG, e.getMessage());
+        }
+        return altNames;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.uci.calit2.antmonitor.lib.util.DNSMessage;
+import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
+
+/**
+ * Maps IP addresses to the host names they were resolved from, as seen in DNS responses.
+ * Both IPv4 (A) and IPv6 (AAAA) addresses are indexed. An address is mapped to the name the
+ * app asked for, and also remembers the CNAME chain that led from that name to the address.
+ * Entries expire along with the records they come from, and the least recently used entries
+ * are dropped once the index is full, so the index takes a fixed amount of memory.
+ * All methods are thread-safe.
+ */
+class HostnameIndex {
+
+    /** Shortest time (in seconds) an entry is kept. Apps often connect to an address after its
+     * TTL ran out, e.g. when the TTL is 0. */
+    private static final long MIN_TTL = 60;
+
+    /** Longest CNAME chain followed */
+    private static final int MAX_CHAIN_LENGTH = 8;
+
+    private static class Entry {
+        final String mHostname;
+
+        /** Names from the one asked for to the owner of the address */
+        final String[] mChain;
+
+        /** Time (in milliseconds) after which the entry is stale */
+        final long mExpiresAt;
+
+        Entry(String hostname, String[] chain, long expiresAt) {
+            mHostname = hostname;
+            mChain = chain;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    /** Entries mapped by address, least recently used first */
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    HostnameIndex(final int maxEntries) {
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Indexes the addresses answered by a DNS response
+     * @param response array containing the DNS message
+     * @param offset offset of the message in {@code response}
+     * @param length length of the message
+     * @param now current time in milliseconds
+     */
+    void onResponse(byte[] response, int offset, int length, long now) {
+        DNSMessage message = new DNSMessage();
+        if (!message.parse(response, offset, length) || !message.isResponse() ||
+                message.getRcode() != DNSMessage.RCODE_NOERROR ||
+                message.getCount(DNSMessage.SECTION_QUESTION) != 1 || !message.nextRecord())
+            return;
+
+        int question = message.getNameOffset();
+        int numAnswers = message.getCount(DNSMessage.SECTION_ANSWER);
+        int[] owners = new int[numAnswers];
+        int[] types = new int[numAnswers];
+        int[] data = new int[numAnswers];
+        int[] dataLengths = new int[numAnswers];
+        long[] ttls = new long[numAnswers];
+
+        int count = 0;
+        while (count < numAnswers && message.nextRecord()) {
+            owners[count] = message.getNameOffset();
+            types[count] = message.getType();
+            data[count] = message.getRDataOffset();
+            dataLengths[count] = message.getRDataLength();
+            ttls[count] = message.getTTL();
+            count++;
+        }
+
+        // Addresses of the same name share their chain
+        int lastOwner = -1;
+        String[] chain = null;
+        long chainTTL = 0;
+        int[] links = new int[MAX_CHAIN_LENGTH + 1];
+
+        for (int i = 0; i < count; i++) {
+            int addressLength = types[i] == DNSMessage.TYPE_A ? 4 :
+                    types[i] == DNSMessage.TYPE_AAAA ? 16 : -1;
+            if (dataLengths[i] != addressLength)
+                continue;
+
+            if (lastOwner < 0 || !message.nameEquals(owners[i], lastOwner)) {
+                // Follow the CNAME records back from the owner of the address to the question
+                int numLinks = 0;
+                int name = owners[i];
+                chainTTL = Long.MAX_VALUE;
+                links[numLinks++] = name;
+                while (numLinks <= MAX_CHAIN_LENGTH && !message.nameEquals(name, question)) {
+                    int alias = -1;
+                    for (int j = 0; j < count; j++) {
+                        if (types[j] == DNSMessage.TYPE_CNAME && message.nameEquals(data[j], name)) {
+                            alias = j;
+                            break;
+                        }
+                    }
+                    if (alias < 0)
+                        break;
+
+                    name = owners[alias];
+                    chainTTL = Math.min(chainTTL, ttls[alias]);
+                    links[numLinks++] = name;
+                }
+
+                chain = new String[numLinks];
+                for (int j = 0; j < numLinks; j++)
+                    chain[j] = message.readName(links[numLinks - 1 - j]);
+                lastOwner = owners[i];
+            }
+
+            if (chain[0] == null)
+                continue;
+
+            String address = addressToString(response, data[i], addressLength);
+            if (address == null)
+                continue;
+
+            long ttl = Math.max(MIN_TTL, Math.min(chainTTL, ttls[i]));
+            synchronized (this) {
+                mEntries.put(address, new Entry(chain[0], chain, now + ttl * 1000));
+            }
+        }
+    }
+
+    private static String addressToString(byte[] message, int offset, int length) {
+        if (length == 4) {
+            return IpDatagram.ipv4addressBytesToString(message[offset], message[offset + 1],
+                    message[offset + 2], message[offset + 3]);
+        }
+
+        try {
+            return InetAddress.getByAddress(Arrays.copyOfRange(message, offset, offset + length))
+                    .getHostAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /** @return the entry of the address, or {@code null} if there is none or it expired */
+    private Entry get(String address, long now) {
+        Entry entry = mEntries.get(address);
+        if (entry != null && entry.mExpiresAt <= now) {
+            mEntries.remove(address);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param address an IP address, e.g. 216.58.193.196
+     * @param now current time in milliseconds
+     * @return the host name the address was resolved from, or {@code null} if unknown
+     */
+    synchronized String getHostname(String address, long now) {
+        Entry entry = get(address, now);
+        return entry == null ? null : entry.mHostname;
+    }
+
+    /**
+     * @param address an IP address, e.g. 216.58.193.196
+     * @param now current time in milliseconds
+     * @return the names that led to the address, starting with the host name that was asked
+     * for and ending with the name the address belongs to, or {@code null} if unknown
+     */
+    synchronized String[] getCnameChain(String address, long now) {
+        Entry entry = get(address, now);
+        return entry == null ? null : entry.mChain.clone();
+    }
+
+    /** @return number of addresses in the index */
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+}
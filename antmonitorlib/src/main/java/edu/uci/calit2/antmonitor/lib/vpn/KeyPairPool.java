@@ -0,0 +1,94 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Key pairs generated ahead of time, so that forging the certificate of a new host does not
+ * wait for a key pair to be generated. A worker thread of the lowest priority generates key
+ * pairs until the pool is full, and refills it as pairs are taken. If the pool is empty, a
+ * pair is generated on the spot.
+ */
+class KeyPairPool {
+    private static final String TAG = KeyPairPool.class.getSimpleName();
+
+    private final String mAlgorithm;
+    private final AlgorithmParameterSpec mParams;
+    private final BlockingQueue<KeyPair> mPool;
+
+    private Thread mWorker;
+
+    /**
+     * @param algorithm algorithm of the keys, e.g. "RSA"
+     * @param params parameters of the keys, such as their size
+     * @param capacity most pairs kept in the pool
+     */
+    KeyPairPool(String algorithm, AlgorithmParameterSpec params, int capacity) {
+        mAlgorithm = algorithm;
+        mParams = params;
+        mPool = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /** Starts filling the pool in the background, if it is not filling already */
+    synchronized void start() {
+        if (mWorker != null)
+            return;
+
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+                try {
+                    KeyPairGenerator generator = newGenerator();
+                    while (!Thread.currentThread().isInterrupted()) {
+                        // Blocks while the pool is full
+                        mPool.put(generator.generateKeyPair());
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                } catch (GeneralSecurityException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+        }, TAG + "-" + mAlgorithm);
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /** @return a key pair from the pool, or a new one if the pool is empty */
+    KeyPair take() throws GeneralSecurityException {
+        start();
+
+        KeyPair keyPair = mPool.poll();
+        return keyPair != null ? keyPair : newGenerator().generateKeyPair();
+    }
+
+    private KeyPairGenerator newGenerator() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(mAlgorithm);
+        generator.initialize(mParams);
+        return generator;
+    }
+}
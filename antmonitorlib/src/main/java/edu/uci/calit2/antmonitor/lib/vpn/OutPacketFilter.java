@@ -77,7 +77,7 @@ public class OutPacketFilter extends PacketFilter {
      */
     public void triggerOpenTCPConnections() {
         InetAddress server = null;
-        for (TCPForwarder fwd : ForwarderManager.mActiveTCPForwarderMap.values()) {
+        for (TCPForwarder fwd : ForwarderManager.mActiveTCPForwarders.values()) {
             server = fwd.mServerIP;
             if (server != null)
                 onTCPConnectionOpened(server.toString().substring(1), fwd.mSrc.mPort, fwd.mDst.mPort);
@@ -36,6 +36,8 @@ import java.util.Collections;
 import java.util.List;
 
 import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -122,6 +124,26 @@ class SSLSocketBuilder {
         }
     }
 
+    /**
+     * Creates the engine that completes the handshake with an app, posing as the given host
+     * @return a server-mode engine using the certificate forged for the host
+     */
+    static SSLEngine negotiateSSLEngine(SiteData hostData,
+                                        AntSSLSocketFactory sslSocketFactoryFactory)
+            throws Exception {
+        SSLContext context = sslSocketFactoryFactory.getSSLContext(hostData);
+        if (context == null)
+            throw new RuntimeException(
+                    "SSL Intercept not available - no keystores available");
+
+        String hostName = hostData.tcpAddress != null ? hostData.tcpAddress : hostData.name;
+        SSLEngine engine = context.createSSLEngine(hostName, hostData.destPort);
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(engine.getSupportedProtocols());
+        engine.setEnabledCipherSuites(engine.getSupportedCipherSuites());
+        return engine;
+    }
+
     public static class NoSSLv3SSLSocket extends SSLSocketWrapper {
 
         private NoSSLv3SSLSocket(SSLSocket socket) {
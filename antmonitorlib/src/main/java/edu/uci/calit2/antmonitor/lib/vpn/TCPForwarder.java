@@ -17,7 +17,7 @@
  */
 package edu.uci.calit2.antmonitor.lib.vpn;
 
-import org.sandrop.webscarab.plugin.proxy.SiteData;
+import android.os.SystemClock;
 
 import java.net.ConnectException;
 import java.net.InetAddress;
@@ -25,11 +25,12 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import edu.uci.calit2.antmonitor.lib.logging.ConnectionValue;
 import edu.uci.calit2.antmonitor.lib.logging.PacketProcessor;
 import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
+import edu.uci.calit2.antmonitor.lib.util.PacketBuffer;
 import edu.uci.calit2.antmonitor.lib.util.TCPPacket;
 import edu.uci.calit2.antmonitor.lib.vpn.ForwarderManager.Logg;
 import edu.uci.calit2.antmonitor.lib.vpn.VPNUtils.ChangeRequest;
@@ -48,18 +49,93 @@ public class TCPForwarder {
     VPNUtils.Tuple mDst;
 
     String mServerName = null;
-    Thread TLSFwdThread;
+    TLSProxySession mTLSSession;
     boolean isInHandshake = false;
 
     InetAddress mServerIP;
     SocketChannel mSocketChannel;
+
+    /** Pipe to the {@link TLSProxySession} of the flow if it is intercepted, in which case
+     * it is used instead of {@link #mSocketChannel} */
+    volatile TLSPipe.End mTLSPipe;
     long mSequenceNumberToClient;
     long mAckNumberToClient;
     long mAckNumberToServer;
     private long mFinSequenceNumberToClient = -1;
     private byte[] mFinToClient;
 
+    /** SYN-ACK to send to the client once the connection to the server is established */
+    byte[] mSynAckToClient;
+
+    /** Selector thread that serves {@link #mSocketChannel} */
+    ForwarderManager.SelectorNetIO mSelectorNetIO;
+
+    /** Data waiting to be written to {@link #mSocketChannel} */
+    final VPNUtils.WriteQueue mWriteQueue = new VPNUtils.WriteQueue();
+
+    /** Number of bytes the client is willing to receive past {@link #mAckNumberToServer} */
+    volatile long mClientWindow = MAX_WINDOW;
+
+    /** Shift count applied to windows advertised by the client, 0 if it does not scale */
+    private int mClientWindowScale = 0;
+
+    /** Shift count applied to windows we advertise, 0 unless the client offered scaling */
+    private int mWindowScale = 0;
+
+    /** Maximum segment size the client is willing to receive */
+    int mClientMss = DEFAULT_MSS;
+
+    /** {@code true} if the client offered the SACK-Permitted option in its SYN */
+    private boolean mSackPermitted = false;
+
+    /** {@code true} if the client offered the Timestamps option in its SYN, in which case
+     * every packet we send must carry it */
+    private boolean mTimestampsEnabled = false;
+
+    /** Latest timestamp received from the client, echoed back in our packets */
+    private long mTimestampRecent;
+
+    /** Number of client segments written to the server that we have not acknowledged yet */
+    private int mUnackedSegments = 0;
+
+    /** {@code true} if {@link #mSendDelayedAck} is scheduled */
+    private boolean mDelayedAckScheduled = false;
+
+    /** Sequence number following the last byte of data received from the client */
+    private long mClientNextSequenceNumber;
+
+    /** {@code true} if we stopped reading from {@link #mSocketChannel} because the client
+     * window is full */
+    final AtomicBoolean mServerReadPaused = new AtomicBoolean(false);
+
     private static final long MAX_SEQUENCE_NUMBER = (long) (Math.pow(2, 32) - 1);
+
+    /** Largest window that fits in the TCP header without scaling */
+    private static final int MAX_WINDOW = 65535;
+
+    /** Number of bytes from the client we are willing to queue for the server. Advertised to
+     * the client as our receive window, or as much of it as fits without window scaling. */
+    static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+    /** Shift count we use for our own window if the client supports window scaling */
+    private static final int RECEIVE_WINDOW_SCALE = 2;
+
+    /** MSS to assume if the client does not send the option (RFC 1122) */
+    private static final int DEFAULT_MSS = 536;
+
+    /** MSS we advertise to the client: the largest segment that fits in a TUN packet */
+    static final int MSS = ForwarderManager.SOCKET_BYTEBUFFER_WRITE_SIZE -
+            IpDatagram.IP_HEADER_DEFAULT_LENGTH - IpDatagram.TCP_HEADER_DEFAULT_LENGTH;
+
+    /** Length of the Timestamps option, padded with two No-Operations */
+    private static final int TIMESTAMPS_OPTION_LENGTH = 12;
+
+    /** Acknowledge at least every this many segments (RFC 1122 asks for every second one) */
+    private static final int ACK_EVERY_SEGMENTS = 2;
+
+    /** Time (in milliseconds) a pure ACK may be delayed waiting for more segments */
+    private static final long DELAYED_ACK_TIMEOUT = 20;
+
     private static final long INITIAL_SEQUENCE_NUMBER = 1;
     private static final long DELAY_DESTROYING_FORWARDER = 100;
     static final long DELAY_SEND_FIN_TO_CLIENT = 100;
@@ -112,7 +188,10 @@ public class TCPForwarder {
                 }
 
                 try {
-                    TCPForwarder.this.mSocketChannel.close();
+                    if (mTLSPipe != null)
+                        mTLSPipe.close();
+                    else
+                        TCPForwarder.this.mSocketChannel.close();
                 } catch(Exception e1) {
                     Logg.e(TAG, "Exception closing TCP Read Socket: " + e1.getMessage());
                 }
@@ -120,28 +199,43 @@ public class TCPForwarder {
         }
     };
 
+    /** Asks the selector thread to serve {@link #mTLSPipe} once it is signaled */
+    private Runnable mServeTLSPipe = new Runnable() {
+        public void run() {
+            mSelectorNetIO.requestPipe(TCPForwarder.this);
+        }
+    };
+
+    /** Sends a pure ACK if client segments are still unacknowledged when the timer fires */
+    private Runnable mSendDelayedAck = new Runnable() {
+        public void run() {
+            synchronized (TCPForwarder.this) {
+                mDelayedAckScheduled = false;
+                if (mUnackedSegments > 0 && mClientState != VPNUtils.TCPState.CLOSED)
+                    sendAck();
+            }
+        }
+    };
+
     private Runnable mTLSConnect = new Runnable() {
         public void run() {
-            Socket socket = mSocketChannel.socket();
             String serverIP = mServerIP.toString().substring(1);
 
-            // Get certificate Common Name to be used as the domain
-            SiteData newSiteData = new SiteData();
-            newSiteData.tcpAddress = serverIP;
-            newSiteData.destPort = mDst.mPort;
-            newSiteData.sourcePort = mSrc.mPort;
-            newSiteData.name = "";
-
-            String certCN = TLSProxyServer.hostNameResolver.getCertCommonName(newSiteData);
+            // Certificate Common Name to be used as the domain, if the host was seen recently.
+            // Unknown hosts are bumped, their certificate comes with the handshake of the proxy.
+            // The proxy relays them as is if the app pinned the server name of its Client Hello.
+            HostCertCache.CertInfo certInfo = TLSProxyServer.hostCerts.get(serverIP, mDst.mPort,
+                    null, SystemClock.elapsedRealtime());
+            String certCN = certInfo != null ? certInfo.mName : null;
 
             try {
-                if (certCN == null || certCN.isEmpty()) {
-                    Logg.e(TAG, TCPForwarder.this + ": Skipping TLS: no certs found for remote.");
+                if (certInfo != null && certCN == null) {
+                    Logg.e(TAG, TCPForwarder.this + ": Skipping TLS: recent handshake with remote failed.");
                     connectDirectly();
                     return;
                 }
 
-                if (TLSProxyServer.pinnedDomains.containsKey(certCN)) {
+                if (certCN != null && TLSProxyServer.pinnedDomains.containsKey(certCN)) {
                     // Check if this domain is pinned for this particular app
                     ConnectionValue cv = PacketProcessor.getInstance(ForwarderManager.mService).
                             getConnValue(mSrc.mPort);
@@ -160,12 +254,22 @@ public class TCPForwarder {
                     }
                 }
 
-                // Proceed to SSL bumping
-                socket.setReuseAddress(true);
-                socket.bind(new InetSocketAddress(InetAddress.getLocalHost(), mSrc.mPort));
-                mSocketChannel.connect(new InetSocketAddress(TLSProxyServer.port));
+                TLSProxyServer proxy = TLSProxyServer.instance;
+                if (proxy == null) {
+                    Logg.e(TAG, TCPForwarder.this + ": Skipping TLS: proxy is not running.");
+                    connectDirectly();
+                    return;
+                }
 
-                sendSYNACK();
+                // Proceed to SSL bumping. Data goes through a pipe to the proxy, so the
+                // socket is not needed.
+                ForwarderManager.mSocketChannelToForwarderMap.remove(mSocketChannel);
+                mSocketChannel.close();
+                synchronized (TCPForwarder.this) {
+                    mTLSPipe = proxy.accept(TCPForwarder.this);
+                    mTLSPipe.setListener(mServeTLSPipe);
+                    sendSYNACK();
+                }
 
             } catch (ConnectException ce) {
                 // This means there's no internet connectivity - ignore packet
@@ -194,22 +298,42 @@ public class TCPForwarder {
 
     /**
      * Process a packet and adjust CLIENT and SERVER states accordingly.
-     * @param packetFromClient the packet to process
+     * @param packetBuffer the packet to process. The buffer may be retained if its payload is
+     *                     queued for writing to the server, see
+     *                     {@link VPNUtils.WriteQueue#ZERO_COPY_LIMIT}.
      */
-    public synchronized void processPacket(byte[] packetFromClient) {
+    public synchronized void processPacket(PacketBuffer packetBuffer) {
+        byte[] packetFromClient = packetBuffer.array();
+        // The backing array may be larger than the packet itself
+        int packetLen = packetBuffer.length();
         boolean isSyn = TCPPacket.isSynPacket(packetFromClient);
         boolean isAck = TCPPacket.isAckPacket(packetFromClient);
         boolean isFin = TCPPacket.isFinPacket(packetFromClient);
         boolean isReset = TCPPacket.isResetPacket(packetFromClient);
-        boolean hasData = TCPPacket.hasData(packetFromClient);
         long ackNum = TCPPacket.extractTCPv4AckNumber(packetFromClient);
         long seqNum = TCPPacket.extractTCPv4SequenceNumber(packetFromClient);
         int ipHeaderLen = IpDatagram.extractIPv4HeaderLength(packetFromClient);
         int tcpHeaderLen = TCPPacket.extractTCPv4HeaderLength(packetFromClient);
-        int dataLen = packetFromClient.length - ipHeaderLen - tcpHeaderLen;
+        int dataLen = packetLen - ipHeaderLen - tcpHeaderLen;
+        boolean hasData = dataLen > 0;
+
+        // Echo the client's latest timestamp in our packets
+        if (mTimestampsEnabled && !isReset) {
+            long timestamp = TCPPacket.extractTCPv4Timestamp(packetFromClient);
+            if (timestamp >= 0)
+                mTimestampRecent = timestamp;
+        }
 
-        // keep track of latest ackNum to Server
-        if (isAck) mAckNumberToServer = ackNum;
+        // keep track of latest ackNum to Server and of the client's receive window.
+        // The window of a SYN is never scaled.
+        int window = TCPPacket.extractTCPv4Window(packetFromClient);
+        if (isAck) {
+            mAckNumberToServer = ackNum;
+            mClientWindow = (long) window << mClientWindowScale;
+            resumeServerRead();
+        } else if (isSyn) {
+            mClientWindow = window;
+        }
 
         if (mServerState == VPNUtils.TCPState.LISTEN) {
             // Ignore everything except reset packet
@@ -265,6 +389,7 @@ public class TCPForwarder {
                 mServerIP = server;
                 InetAddress clientAddr = InetAddress.getByAddress(mSrc.mIpArray);
 
+                mSelectorNetIO = ForwarderManager.getSelectorNetIO(mSrc.mPort);
                 mSocketChannel = SocketChannel.open();
                 Socket socket = mSocketChannel.socket();
                 socket.setSoTimeout(SOCKET_TIMEOUT);
@@ -275,10 +400,13 @@ public class TCPForwarder {
                 mSequenceNumberToClient = INITIAL_SEQUENCE_NUMBER;
                 mAckNumberToClient = (seqNum + dataLen + 1) % MAX_SEQUENCE_NUMBER;
 
+                parseSynOptions(packetFromClient);
+                mClientNextSequenceNumber = mAckNumberToClient;
+
                 // If SSL traffic, forward it to a proxy for SSL bumping
                 if (ForwarderManager.SSL_BUMPING_ENABLED && mDst.mPort == TLSProxyServer.SSLPort) {
                     // Continue attempting to connect to TLS Proxy in a separate thread
-                    ForwarderManager.mTLSHandler.postDelayed(mTLSConnect, 0);
+                    ForwarderManager.postTLSSetup(mSrc.mPort, mTLSConnect);
                 } else { // Otherwise, connect to destination directly
                     mSocketChannel.connect(new InetSocketAddress(server, mDst.mPort));
 
@@ -336,10 +464,10 @@ public class TCPForwarder {
             // Received an ACK for our SYN-ACK packet
             mServerState = VPNUtils.TCPState.ESTABLISHED;
             mClientState = VPNUtils.TCPState.ESTABLISHED;
-            Logg.d(TAG, this + " Connection established. TLS ? " + (mSocketChannel.socket().getPort() == TLSProxyServer.port));
+            Logg.d(TAG, this + " Connection established. TLS ? " + (mTLSPipe != null));
 
             if (hasData) {
-                forwardData(packetFromClient);
+                forwardData(packetBuffer);
             }
 
         } else if (mServerState == VPNUtils.TCPState.ESTABLISHED) {
@@ -361,12 +489,12 @@ public class TCPForwarder {
                 ForwarderManager.mForwarderBacklogHandler.postDelayed(mCloseConnection, 0);
 /*                    mServerState = TCPState.LISTEN;
                     mClientState = TCPState.CLOSED;
-                    SelectionKey key = mSocketChannel.keyFor(ForwarderManager.mSocketSelector);
+                    SelectionKey key = mSocketChannel.keyFor(mSelectorNetIO.mSocketSelector);
                     if (key != null) {
                         key.cancel();
                     }
 
-                    ackData(packetFromClient);*/
+                    ackData(packetFromClient, packetLen);*/
                 return;
             }
 
@@ -397,7 +525,7 @@ public class TCPForwarder {
             }
 
             if (hasData) {
-                forwardData(packetFromClient);
+                forwardData(packetBuffer);
             }
 
             if (isFin) {
@@ -426,7 +554,7 @@ public class TCPForwarder {
 
             // Acknowledge if there is data. Don't forward
             if (hasData) {
-                ackData(packetFromClient);
+                ackData(packetFromClient, packetLen);
             }
 
             // Only handle ACK of our FIN or FIN. Ignore other packets
@@ -471,7 +599,7 @@ public class TCPForwarder {
             // Acknowledge if there is data. Don't forward
             if (hasData) {
                 Logg.e(TAG, this + " FIN_WAIT_2 has data");
-                ackData(packetFromClient);
+                ackData(packetFromClient, packetLen);
             }
 
             // Only handle FIN. Ignore other packets
@@ -499,7 +627,7 @@ public class TCPForwarder {
 
             // Acknowledge if there is data. Don't forward
             if (hasData) {
-                ackData(packetFromClient);
+                ackData(packetFromClient, packetLen);
             }
 
             // Only handle ACK of our FIN or FIN. Ignore other packets
@@ -512,7 +640,7 @@ public class TCPForwarder {
             }
 
         } else if (mServerState == VPNUtils.TCPState.TIME_WAIT) {
-            ackData(packetFromClient);
+            ackData(packetFromClient, packetLen);
 
             // Logg.e(TAG, "Forwarder " + toString() + " received a packet while in TIME_WAIT state.");
         } else if (mServerState == VPNUtils.TCPState.CLOSE_WAIT) {
@@ -553,11 +681,12 @@ public class TCPForwarder {
     /**
      * Acknowledge data from a client to a server.
      * @param packetFromClient
+     * @param packetLen length of the packet, which may be less than {@code packetFromClient.length}
      */
-    private synchronized void ackData(byte[] packetFromClient) {
+    private synchronized void ackData(byte[] packetFromClient, int packetLen) {
 
         int headerLen = IpDatagram.extractIPv4HeaderLength(packetFromClient) + TCPPacket.extractTCPv4HeaderLength(packetFromClient);
-        int dataLen = packetFromClient.length - headerLen;
+        int dataLen = packetLen - headerLen;
         boolean isFin = TCPPacket.isFinPacket(packetFromClient);
         boolean isSyn = TCPPacket.isSynPacket(packetFromClient);
         boolean isReset = TCPPacket.isResetPacket(packetFromClient);
@@ -576,11 +705,12 @@ public class TCPForwarder {
     /**
      * Get acknowledge number to be sent to client after successfully sending data to a server.
      * @param packetFromClient
+     * @param packetLen length of the packet, which may be less than {@code packetFromClient.length}
      */
-    private synchronized long getAckNumber(byte[] packetFromClient) {
+    private synchronized long getAckNumber(byte[] packetFromClient, int packetLen) {
 
         int headerLen = IpDatagram.extractIPv4HeaderLength(packetFromClient) + TCPPacket.extractTCPv4HeaderLength(packetFromClient);
-        int dataLen = packetFromClient.length - headerLen;
+        int dataLen = packetLen - headerLen;
         boolean isFin = TCPPacket.isFinPacket(packetFromClient);
         boolean isSyn = TCPPacket.isSynPacket(packetFromClient);
         boolean isReset = TCPPacket.isResetPacket(packetFromClient);
@@ -596,11 +726,223 @@ public class TCPForwarder {
     }
 
 
+    /**
+     * Negotiate TCP options offered by the client in its SYN. We reply with each option the
+     * client offered, see {@link #writeTcpOptions(byte[], int, boolean)}.
+     */
+    private void parseSynOptions(byte[] synFromClient) {
+        int clientWindowScale = TCPPacket.extractTCPv4WindowScale(synFromClient);
+        if (clientWindowScale >= 0) {
+            mClientWindowScale = clientWindowScale;
+            mWindowScale = RECEIVE_WINDOW_SCALE;
+        } else {
+            mClientWindowScale = 0;
+            mWindowScale = 0;
+        }
+
+        int mss = TCPPacket.extractTCPv4MSS(synFromClient);
+        mClientMss = mss > 0 ? Math.min(mss, MSS) : DEFAULT_MSS;
+
+        mSackPermitted = TCPPacket.isSackPermitted(synFromClient);
+
+        long timestamp = TCPPacket.extractTCPv4Timestamp(synFromClient);
+        mTimestampsEnabled = timestamp >= 0;
+        mTimestampRecent = mTimestampsEnabled ? timestamp : 0;
+    }
+
+    /** @return length of the TCP options of a packet sent to the client */
+    private int getTcpOptionsLength(boolean isSyn, boolean isReset) {
+        if (isSyn) {
+            // MSS, then (NOP + Window Scale), then (SACK-Permitted or 2 NOPs) + Timestamps
+            int len = 4;
+            if (mWindowScale > 0)
+                len += 4;
+            if (mTimestampsEnabled)
+                len += TIMESTAMPS_OPTION_LENGTH;
+            else if (mSackPermitted)
+                len += 4;
+            return len;
+        }
+
+        // Timestamps are not required on a reset
+        if (mTimestampsEnabled && !isReset)
+            return TIMESTAMPS_OPTION_LENGTH;
+
+        return 0;
+    }
+
+    /**
+     * Writes the TCP options of a packet sent to the client. Layout matches
+     * {@link #getTcpOptionsLength(boolean, boolean)}.
+     * @param packet the packet to write to
+     * @param index index of the first option byte
+     * @param isSyn {@code true} if this is our SYN-ACK
+     */
+    private void writeTcpOptions(byte[] packet, int index, boolean isSyn) {
+        if (isSyn) {
+            packet[index++] = TCPPacket.OPTION_MSS;
+            packet[index++] = 4;
+            packet[index++] = (byte) (MSS >> 8);
+            packet[index++] = (byte) (MSS);
+
+            if (mWindowScale > 0) {
+                packet[index++] = TCPPacket.OPTION_NOP;
+                packet[index++] = TCPPacket.OPTION_WINDOW_SCALE;
+                packet[index++] = 3;
+                packet[index++] = (byte) mWindowScale;
+            }
+
+            if (!mTimestampsEnabled) {
+                if (mSackPermitted) {
+                    packet[index++] = TCPPacket.OPTION_NOP;
+                    packet[index++] = TCPPacket.OPTION_NOP;
+                    packet[index++] = TCPPacket.OPTION_SACK_PERMITTED;
+                    packet[index] = 2;
+                }
+                return;
+            }
+
+            // SACK-Permitted takes the place of the padding before Timestamps
+            if (mSackPermitted) {
+                packet[index++] = TCPPacket.OPTION_SACK_PERMITTED;
+                packet[index++] = 2;
+            } else {
+                packet[index++] = TCPPacket.OPTION_NOP;
+                packet[index++] = TCPPacket.OPTION_NOP;
+            }
+        } else {
+            packet[index++] = TCPPacket.OPTION_NOP;
+            packet[index++] = TCPPacket.OPTION_NOP;
+        }
+
+        // Timestamps: TSval is our clock in milliseconds, TSecr echoes the client
+        long timestamp = SystemClock.elapsedRealtime();
+        packet[index++] = TCPPacket.OPTION_TIMESTAMPS;
+        packet[index++] = 10;
+        packet[index++] = (byte) (timestamp >> 24);
+        packet[index++] = (byte) (timestamp >> 16);
+        packet[index++] = (byte) (timestamp >> 8);
+        packet[index++] = (byte) (timestamp);
+        packet[index++] = (byte) (mTimestampRecent >> 24);
+        packet[index++] = (byte) (mTimestampRecent >> 16);
+        packet[index++] = (byte) (mTimestampRecent >> 8);
+        packet[index] = (byte) (mTimestampRecent);
+    }
+
+    /**
+     * Called on the selector thread after client segments were written to the server.
+     * Acknowledges them right away every {@link #ACK_EVERY_SEGMENTS} segments, otherwise
+     * within {@link #DELAYED_ACK_TIMEOUT}. Data we send to the client in the meantime
+     * carries the ACK as well.
+     * @param ackNum sequence number following the last byte written
+     * @param segments number of segments written
+     */
+    synchronized void onDataWritten(long ackNum, int segments) {
+        if (isAfter(ackNum, mAckNumberToClient))
+            mAckNumberToClient = ackNum;
+
+        mUnackedSegments += segments;
+        if (mUnackedSegments >= ACK_EVERY_SEGMENTS) {
+            sendAck();
+        } else if (!mDelayedAckScheduled) {
+            mDelayedAckScheduled = true;
+            ForwarderManager.mForwarderBacklogHandler.postDelayed(mSendDelayedAck,
+                    DELAYED_ACK_TIMEOUT);
+        }
+    }
+
+    /** Sends a pure ACK for {@link #mAckNumberToClient} */
+    private synchronized void sendAck() {
+        byte[] packetToClient = constructTcpIpPacketToClient(false, true, false, false, null, 0, 0);
+        ForwarderManager.writeDirectToTun(packetToClient);
+    }
+
+    /** @return the largest amount of data that fits in one segment sent to the client */
+    int getMaxSegmentSize() {
+        return mClientMss - getTcpOptionsLength(false, false);
+    }
+
+    /** @return {@code true} if sequence number {@code a} comes after {@code b} */
+    private static boolean isAfter(long a, long b) {
+        long diff = (a - b) & MAX_SEQUENCE_NUMBER;
+        return diff != 0 && diff < (1L << 31);
+    }
+
+    /**
+     * @return number of bytes that can still be sent to the client before its receive window
+     * is full. May be negative if the client shrunk its window.
+     */
+    long getClientWindowAvailable() {
+        // Read the volatile window first: it is written after the ACK number
+        long window = mClientWindow;
+        long inFlight = (mSequenceNumberToClient - mAckNumberToServer) & MAX_SEQUENCE_NUMBER;
+        if (inFlight >= (1L << 31)) {
+            // The client acknowledged more than we think we sent; nothing is in flight
+            inFlight = 0;
+        }
+        return window - inFlight;
+    }
+
+    /**
+     * Called on the selector thread when the client window is full. Stops reading from the
+     * server until the client acknowledges data or opens its window.
+     * @return {@code true} if reading was paused, {@code false} if the window opened up
+     * in the meantime and reading should continue
+     */
+    boolean pauseServerRead() {
+        mServerReadPaused.set(true);
+
+        // An ACK may have arrived before the flag was set; don't miss its update
+        if (getClientWindowAvailable() > 0 && mServerReadPaused.compareAndSet(true, false))
+            return false;
+
+        return true;
+    }
+
+    /**
+     * Asks the selector thread to read from the server again, if reading was paused
+     * and the client window opened up
+     */
+    private void resumeServerRead() {
+        if (mServerReadPaused.get() && getClientWindowAvailable() > 0 &&
+                mServerReadPaused.compareAndSet(true, false)) {
+            requestChange(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Asks the selector thread to serve the flow: to change the interest ops of
+     * {@link #mSocketChannel}, or to serve {@link #mTLSPipe} if the flow is intercepted
+     */
+    private void requestChange(int ops) {
+        if (mTLSPipe != null)
+            mSelectorNetIO.requestPipe(this);
+        else
+            mSelectorNetIO.requestChange(new ChangeRequest(mSocketChannel, ops, mWriteQueue));
+    }
+
+    /**
+     * @return the receive window to advertise to the client. Data that was received but not
+     * acknowledged yet is already accounted for by the client, so only data that was
+     * acknowledged but is still queued for the server shrinks the window.
+     */
+    private int getAdvertisedWindow() {
+        long unacked = (mClientNextSequenceNumber - mAckNumberToClient) & MAX_SEQUENCE_NUMBER;
+        if (unacked >= (1L << 31))
+            unacked = 0;
+
+        long window = RECEIVE_BUFFER_SIZE - mWriteQueue.getQueuedBytes() + unacked;
+        return (int) Math.max(0, Math.min(window, (long) MAX_WINDOW << mWindowScale));
+    }
+
     /**
      * Forward data from a client to a server. The client and server TCP states must be both ESTABLISHED.
-     * @param packetFromClient
+     * @param packetBuffer buffer holding the packet. It is either retained until the data is
+     *                     written, or the data is copied out of it.
      */
-    private void forwardData(byte[] packetFromClient) {
+    private void forwardData(PacketBuffer packetBuffer) {
+        byte[] packetFromClient = packetBuffer.array();
+        int packetLen = packetBuffer.length();
 
 
         // Sanity check
@@ -610,57 +952,39 @@ public class TCPForwarder {
         }
 
         int headerLen = IpDatagram.extractIPv4HeaderLength(packetFromClient) + TCPPacket.extractTCPv4HeaderLength(packetFromClient);
-        int dataLen = packetFromClient.length - headerLen;
+        int dataLen = packetLen - headerLen;
 
         // Attempt to forward data to the server, if there is a problem, close the connection
         if (dataLen > 0) {
             //Logg.i(TAG, "Forwarding data: " + dataLen);
             // Request to change channel interests and queue the data to write
-            synchronized(ForwarderManager.mChangeRequestQueue) {
-                ForwarderManager.mChangeRequestQueue.offerLast(new ChangeRequest(mSocketChannel, SelectionKey.OP_WRITE, null));
-
-                synchronized(ForwarderManager.mWriteToNetMap) {
-                    LinkedList<VPNUtils.DataWriteToNet> queue = ForwarderManager.mWriteToNetMap.get(mSocketChannel);
-                    if (queue == null) {
-                        queue = new LinkedList<VPNUtils.DataWriteToNet>();
-                        ForwarderManager.mWriteToNetMap.put(mSocketChannel, queue);
-                    }
+            // Queue the data first so that the selector sees it once it handles the request
+            long ackNum = getAckNumber(packetFromClient, packetLen);
+            if (isAfter(ackNum, mClientNextSequenceNumber))
+                mClientNextSequenceNumber = ackNum;
+            mWriteQueue.offer(null, ackNum, packetBuffer, headerLen, dataLen);
+            requestChange(SelectionKey.OP_WRITE);
+
+            // Detect a Client Hello Message to start the TLS proxy session
+            if (mTLSPipe != null &&
+                    mServerName == null && // Sometimes we get more than one Client Hello
+                    TCPPacket.isClientHello(packetFromClient, headerLen, dataLen)) {
+                if (ForwarderManager.SSL_SNI_ENABLED) {
+                    mServerName = TCPPacket.extractServerNameFromClientHello(
+                            packetFromClient, headerLen, dataLen);
+                }
 
-                    // Logg.i(TAG, "Write queue size = " + queue.size());
-
-                    long ackNum = getAckNumber(packetFromClient);
-                    VPNUtils.DataWriteToNet writeData = new VPNUtils.DataWriteToNet(null, ackNum, packetFromClient, headerLen, dataLen);
-
-                    queue.add(writeData);
-
-                    // Detect a Client Hello Message to start the TLS ForwarderHandler
-                    if (mSocketChannel.socket().getPort() == TLSProxyServer.port &&
-                            mServerName == null && // Sometimes we get more than one Client Hello
-                            TCPPacket.isClientHello(writeData.mData, writeData.mDataOffset)) {
-                        if (ForwarderManager.SSL_SNI_ENABLED) {
-                            mServerName = TCPPacket.extractServerNameFromClientHello(
-                                                        writeData.mData, writeData.mDataOffset);
-                        }
-
-                        ForwarderManager.Logg.d(TAG, "Got server name from Client Hello: " + this);
-                        if (TLSFwdThread != null && !TLSFwdThread.isAlive()) {
-                            ForwarderManager.Logg.d(TAG, this + ": starting tls thread from TCPForwarder");
-                            TLSFwdThread.setName(
-                                    TLSProxyServer.ForwarderHandler.class.getSimpleName() + "-" +
-                                            mSrc.mPort);
-                            TLSFwdThread.start();
-                        } else {
-                            // We did not go through TLS Proxy Server yet, so
-                            // the Proxy will start the TLS ForwarderHandler
-                            if (mServerName == null)
-                                mServerName = "";
-                        }
-                    }
+                ForwarderManager.Logg.d(TAG, "Got server name from Client Hello: " + this);
+                if (mTLSSession != null) {
+                    ForwarderManager.Logg.d(TAG, this + ": starting tls session from TCPForwarder");
+                    mTLSSession.start();
+                } else {
+                    // We did not go through TLS Proxy Server yet, so
+                    // the Proxy will start the TLS session
+                    if (mServerName == null)
+                        mServerName = "";
                 }
             }
-
-            ForwarderManager.mSocketSelector.wakeup();
-            //Logg.i(TAG, "Added data to queue. Woke up Selector.");
         }
     }
 
@@ -676,11 +1000,12 @@ public class TCPForwarder {
      * @return
      */
     public synchronized byte[] constructTcpIpPacketToClient(boolean isSyn, boolean isAck, boolean isFin, boolean isReset, byte[] data, int dataOffset, int dataLen) {
-        // Number of bytes for MSS TCP Option and End Option List
-        int tcpOptionLen = 0;
-        if (isSyn) {
-            tcpOptionLen = 8;
-        }
+        // Number of bytes for TCP Options
+        int tcpOptionLen = getTcpOptionsLength(isSyn, isReset);
+
+        // Any ACK we send acknowledges all segments received so far
+        if (isAck && !isReset)
+            mUnackedSegments = 0;
 
         byte[] packetToClient = new byte[IpDatagram.IP_HEADER_DEFAULT_LENGTH  + IpDatagram.TCP_HEADER_DEFAULT_LENGTH + tcpOptionLen + dataLen];
 
@@ -748,10 +1073,8 @@ public class TCPForwarder {
         packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+11] = (byte) (mAckNumberToClient);
 
         // 13th and 14th: Data Offset, Reserved, ECN, Control Bits
-        byte offset = (byte) 0b01010000; // 5-words = 20 bytes = TCP header len = data offset
-        if (isSyn) { // include option
-            offset = (byte) 0b01110000; // 7 words TCP header
-        }
+        // 5-words = 20 bytes = TCP header len = data offset, plus options
+        byte offset = (byte) (((IpDatagram.TCP_HEADER_DEFAULT_LENGTH + tcpOptionLen) / 4) << 4);
 
         // set syn and ack flag. Last 6 bits: Urg, Ack, Push, Reset, Syn, Fin
 
@@ -780,32 +1103,29 @@ public class TCPForwarder {
         packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+12] = offset;
         packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+13] = controlBits;
 
-        // 15th and 16th: Window
-        int maxWindow = 65535;
-        packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+14] = (byte) (maxWindow >> 8);
-        packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+15] = (byte) (maxWindow);
+        // 15th and 16th: Window. Never scaled in a SYN
+        int window = getAdvertisedWindow();
+        if (isSyn) {
+            window = Math.min(window, MAX_WINDOW);
+        } else {
+            window >>= mWindowScale;
+        }
+        packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+14] = (byte) (window >> 8);
+        packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+15] = (byte) (window);
 
         // 19th and 20th: Urgent Pointer: Not used
 
-        // If this is a SYN packe, set MSS Option using 21-24 bytes.
-        // Set it at maximum 65536
-        // End option list usign 25rd and 28th bytes
+        // Options: see writeTcpOptions
         // http://www.networksorcery.com/enp/protocol/tcp/option002.htm
-        //
-        if (isSyn) {
-            packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+20] = 2;
-            packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+21] = 4;
-            packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+22] = (byte) 0xEF;
-            packetToClient[IpDatagram.IP_HEADER_DEFAULT_LENGTH+23] = (byte) 0xFF;
-
-            // 25-28 bytes must be all zeros
+        if (tcpOptionLen > 0) {
+            writeTcpOptions(packetToClient, IpDatagram.IP_HEADER_DEFAULT_LENGTH +
+                    IpDatagram.TCP_HEADER_DEFAULT_LENGTH, isSyn);
         }
 
-
         // Fill in the data
         if (data != null) {
             System.arraycopy(data, dataOffset,
-                    packetToClient, IpDatagram.IP_HEADER_DEFAULT_LENGTH + IpDatagram.TCP_HEADER_DEFAULT_LENGTH,
+                    packetToClient, IpDatagram.IP_HEADER_DEFAULT_LENGTH + IpDatagram.TCP_HEADER_DEFAULT_LENGTH + tcpOptionLen,
                     dataLen);
         }
 
@@ -845,11 +1165,13 @@ public class TCPForwarder {
         // 16 (optional) + 20 + 20 = 56
         byte[] synAckPacket = constructTcpIpPacketToClient(true, true, false, false, null, 0, 0);
 
-        synchronized (ForwarderManager.mChangeRequestQueue) {
-            ForwarderManager.mChangeRequestQueue.offerLast(new ChangeRequest(mSocketChannel,
-                    SelectionKey.OP_CONNECT, synAckPacket));
-        }
-        ForwarderManager.mSocketSelector.wakeup();
+        mSynAckToClient = synAckPacket;
+
+        // The pipe to the proxy is connected right away
+        if (mTLSPipe != null)
+            ForwarderManager.onTCPConnected(this);
+        else
+            requestChange(SelectionKey.OP_CONNECT);
     }
 
     /**
@@ -870,15 +1192,16 @@ public class TCPForwarder {
 
         Logg.e(TAG, "Destroying a TCP forwarder: " + toString());
         // Remove this forwarder
-        ForwarderManager.mActiveTCPForwarderMap.remove(this.mSrc.mPort);
+        ForwarderManager.mActiveTCPForwarders.remove(ForwarderManager.tcpFlowKey(mSrc.mPort), this);
 
         if (mSocketChannel != null) {
             ForwarderManager.mSocketChannelToForwarderMap.remove(mSocketChannel);
-            ForwarderManager.mWriteToNetMap.remove(mSocketChannel);
+            mWriteQueue.clear();
         }
+        ForwarderManager.mForwarderBacklogHandler.removeCallbacks(mSendDelayedAck);
 
-        if (mSocketChannel != null && ForwarderManager.mSocketSelector != null) {
-            SelectionKey key = mSocketChannel.keyFor(ForwarderManager.mSocketSelector);
+        if (mSocketChannel != null && mSelectorNetIO != null) {
+            SelectionKey key = mSocketChannel.keyFor(mSelectorNetIO.mSocketSelector);
             if (key != null) {
                 key.cancel();
             }
@@ -890,6 +1213,8 @@ public class TCPForwarder {
                 Logg.e(TAG, "Exception closing socket of a TCPForwarder: " + e.getMessage());
             }
         }
+        if (mTLSPipe != null)
+            mTLSPipe.close();
     }
 
 
@@ -0,0 +1,222 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-process duplex pipe between the {@link TCPForwarder} of an intercepted flow and its
+ * {@link TLSProxySession}, in place of a TCP connection over loopback. Each direction is a
+ * ring buffer. An end is signaled when the other end wrote data into it, made room in it by
+ * reading, or shut it down. Signals are coalesced: an end is signaled once until it calls
+ * {@link End#clearSignal()}, which it does before serving the pipe.
+ */
+class TLSPipe {
+    /** Size (in bytes) of the buffer of each direction */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /** One direction of the pipe. Guarded by the pipe. */
+    private static class Ring {
+        final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+        /** Index of the first byte to read */
+        int mHead;
+
+        /** Number of bytes to read */
+        int mSize;
+
+        /** {@code true} once the writer will not write anymore */
+        boolean mShutdown;
+
+        /** {@code true} once the reader will not read anymore */
+        boolean mClosed;
+
+        /** Copies as much of {@code src} as fits */
+        int put(ByteBuffer src) {
+            int length = Math.min(src.remaining(), BUFFER_SIZE - mSize);
+            int tail = (mHead + mSize) % BUFFER_SIZE;
+            int first = Math.min(length, BUFFER_SIZE - tail);
+            src.get(mBuffer, tail, first);
+            src.get(mBuffer, 0, length - first);
+            mSize += length;
+            return length;
+        }
+
+        /** Copies as many bytes as fit into {@code dst} */
+        int take(ByteBuffer dst) {
+            int length = Math.min(dst.remaining(), mSize);
+            int first = Math.min(length, BUFFER_SIZE - mHead);
+            dst.put(mBuffer, mHead, first);
+            dst.put(mBuffer, 0, length - first);
+            mHead = (mHead + length) % BUFFER_SIZE;
+            mSize -= length;
+            return length;
+        }
+    }
+
+    /**
+     * One end of the pipe. Reads and writes never block: they move as many bytes as they can,
+     * possibly none.
+     */
+    class End implements ByteChannel, GatheringByteChannel {
+        private final Ring mIn;
+        private final Ring mOut;
+        private End mPeer;
+
+        /** Called when this end is signaled, on the thread of the other end */
+        private Runnable mListener;
+        private final AtomicBoolean mSignaled = new AtomicBoolean();
+
+        private End(Ring in, Ring out) {
+            mIn = in;
+            mOut = out;
+        }
+
+        /** @param listener called when this end is signaled, on the thread of the other end */
+        void setListener(Runnable listener) {
+            mListener = listener;
+        }
+
+        /** Allows this end to be signaled again. Call it before serving the pipe. */
+        void clearSignal() {
+            mSignaled.set(false);
+        }
+
+        private void signal() {
+            Runnable listener = mListener;
+            if (listener != null && mSignaled.compareAndSet(false, true))
+                listener.run();
+        }
+
+        /** @return number of bytes read, or -1 once the other end shut down its output */
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            boolean wasFull;
+            int read;
+            synchronized (TLSPipe.this) {
+                if (mIn.mClosed)
+                    throw new ClosedChannelException();
+                if (mIn.mSize == 0)
+                    return mIn.mShutdown ? -1 : 0;
+
+                wasFull = mIn.mSize == BUFFER_SIZE;
+                read = mIn.take(dst);
+            }
+
+            // The other end may be waiting for room
+            if (wasFull && read > 0)
+                mPeer.signal();
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long written = 0;
+            synchronized (TLSPipe.this) {
+                if (mOut.mShutdown)
+                    throw new ClosedChannelException();
+
+                // Like a socket whose peer closed, drop the data
+                if (mOut.mClosed) {
+                    for (int i = offset; i < offset + length; i++) {
+                        written += srcs[i].remaining();
+                        srcs[i].position(srcs[i].limit());
+                    }
+                    return written;
+                }
+
+                for (int i = offset; i < offset + length && mOut.mSize < BUFFER_SIZE; i++)
+                    written += mOut.put(srcs[i]);
+            }
+
+            if (written > 0)
+                mPeer.signal();
+            return written;
+        }
+
+        /** Stops writing. The other end reads what was written, then end of stream. */
+        void shutdownOutput() {
+            synchronized (TLSPipe.this) {
+                if (mOut.mShutdown)
+                    return;
+                mOut.mShutdown = true;
+            }
+            mPeer.signal();
+        }
+
+        /** @return {@code true} if a read would return data or end of stream */
+        boolean isReadable() {
+            synchronized (TLSPipe.this) {
+                return !mIn.mClosed && (mIn.mSize > 0 || mIn.mShutdown);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized (TLSPipe.this) {
+                return !mIn.mClosed;
+            }
+        }
+
+        /**
+         * Stops reading and writing. Data not read yet is dropped, and so is data the other
+         * end writes later. Data written so far is still delivered to the other end.
+         */
+        @Override
+        public void close() {
+            synchronized (TLSPipe.this) {
+                if (mIn.mClosed)
+                    return;
+                mIn.mClosed = true;
+                mIn.mSize = 0;
+                mOut.mShutdown = true;
+            }
+            mPeer.signal();
+        }
+    }
+
+    /** End used by the {@link TCPForwarder}, connected to the app */
+    final End mForwarderEnd;
+
+    /** End used by the {@link TLSProxySession} */
+    final End mProxyEnd;
+
+    TLSPipe() {
+        Ring toProxy = new Ring();
+        Ring toForwarder = new Ring();
+        mForwarderEnd = new End(toForwarder, toProxy);
+        mProxyEnd = new End(toProxy, toForwarder);
+        mForwarderEnd.mPeer = mProxyEnd;
+        mProxyEnd.mPeer = mForwarderEnd;
+    }
+}
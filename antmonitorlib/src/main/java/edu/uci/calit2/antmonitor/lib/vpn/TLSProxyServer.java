@@ -21,38 +21,43 @@ package edu.uci.calit2.antmonitor.lib.vpn;
 import android.util.JsonReader;
 import android.util.Log;
 
-import org.sandrop.webscarab.plugin.proxy.SiteData;
-
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.uci.calit2.antmonitor.lib.logging.ConnectionValue;
 import edu.uci.calit2.antmonitor.lib.logging.PacketProcessor;
 
 /**
  * Adopted from PrivacyGuard: https://bitbucket.org/Near/privacyguard/src
+ * <p>
+ * Takes over the flows that {@link TCPForwarder}s hand over for interception, through a
+ * {@link TLSPipe} each, and serves all of them from a single selector thread, see
+ * {@link TLSProxySession}.
+ * </p>
  * @author Anastasia Shuba (ashuba@uci.edu)
  */
 class TLSProxyServer extends Thread {
     /** Tag for logging */
     private static final String TAG = TLSProxyServer.class.getSimpleName();
 
-    /** Port at which this server listens */
-    public static int port;
+    /** The running proxy, {@code null} until it is ready to take over flows */
+    static volatile TLSProxyServer instance;
 
     /** SSL port, used to identify HTTPS traffic */
     static final int SSLPort = 443;
@@ -60,229 +65,178 @@ class TLSProxyServer extends Thread {
     /** VPN Service, used to protect sockets */
     private VpnClient vpnService;
 
-    /** Set of IPs that implement SSL pinning */
-    private static final ConcurrentHashMap<String, Object> resolverLock = new ConcurrentHashMap<>();
-
-    // IP one will mirror this one
+    /** Domains pinned by apps: apps by the common name of the certificate they rejected */
     static final ConcurrentHashMap<String, Set<String>> pinnedDomains = new ConcurrentHashMap<>();
 
     /** Holds IPs of hosts that use certificate pinning and other techniques to prevent MITM attack */
 /*    static Set<InetAddress> sslPinningIPs = Collections.newSetFromMap(
                                                 new ConcurrentHashMap<InetAddress, Boolean>());*/
 
-    /** Host name resolver used for SSL bumping */
-    protected static Resolver hostNameResolver;
+    /** Certificates of the hosts, learned from the handshakes of the sessions */
+    static final HostCertCache hostCerts = new HostCertCache(1024);
+
+    /** Sessions with the hosts, resumed by later connections to the same host */
+    static final UpstreamSessions upstreamSessions = new UpstreamSessions(256, 60 * 60);
 
     /** Socket Factory used for SSL bumping */
     protected static AntSSLSocketFactory sslSocketFactory;
 
-    public TLSProxyServer(VpnClient vpnService) {
-        this.vpnService = vpnService;
+    /** Polls the channels of all sessions. Opened once the server runs. */
+    private Selector mSelector;
 
-        //Thread selectorThread = new Thread(selectorRunable, "TLSSelectorThread");
-        //selectorThread.start();
-    }
-
-    class ForwarderHandler implements Runnable {
-        private final String TAG = ForwarderHandler.class.getSimpleName();
-        private SocketChannel clientChannel;
+    /** Tasks to run on the selector thread */
+    private final ConcurrentLinkedQueue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<>();
 
-        public ForwarderHandler(SocketChannel clientChannel) {
-            this.clientChannel = clientChannel;
-        }
+    /** Workers for blocking work of the sessions. Idle workers exit after a minute. */
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
 
         @Override
-        public void run() {
-            try {
-                Socket client = clientChannel.socket();
-                TCPForwarder forwarder = ForwarderManager.mActiveTCPForwarderMap.
-                                                                            get(client.getPort());
-
-                InetAddress server = InetAddress.getByAddress(forwarder.mDst.mIpArray);
-                String strServer = server.toString().substring(1);
-
-                SiteData newSiteData = new SiteData();
-                newSiteData.tcpAddress = strServer;
-                newSiteData.destPort = forwarder.mDst.mPort;
-
-                if (ForwarderManager.SSL_SNI_ENABLED && forwarder.mServerName != null
-                        && !forwarder.mServerName.isEmpty()) {
-                    newSiteData.hostName = forwarder.mServerName;
-                    ForwarderManager.Logg.e(TAG, forwarder + " has SNI: " + newSiteData.hostName);
-                }
-
-                newSiteData.sourcePort = forwarder.mSrc.mPort;
-                newSiteData.name = "";
-
-                // TODO: improve locking mech - connect to mTLSrunnable. No clean way to do it...
-                Object lock = resolverLock.get(hostNameResolver.getSecureHostKey(newSiteData));
-                if (lock == null) {
-                    lock = new Object();
-                    resolverLock.put(hostNameResolver.getSecureHostKey(newSiteData), lock);
-                }
-                synchronized (lock) {
-                    //ForwarderManager.Logg.d(TAG, forwarder + " locking on " + newSiteData.tcpAddress);
-
-                    SiteData remoteData = hostNameResolver.getSecureHost(sslSocketFactory, newSiteData, true);
-
-                    if (remoteData != null && remoteData.name != null && !remoteData.name.isEmpty()) {
-                        synchronized (forwarder) {
-                            forwarder.isInHandshake = true;
-                        }
-
-                        SocketChannel targetChannel = SocketChannel.open();
-                        Socket target = targetChannel.socket();
-                        vpnService.protect(target);
-                        targetChannel.connect(new InetSocketAddress(server, forwarder.mDst.mPort));
-
-                        SSLSocket ssl_client = SSLSocketBuilder.negotiateSSL(client, remoteData, false, sslSocketFactory);
-
-                        try {
-                            ForwarderManager.Logg.d(TAG, "starting ssl_client handshake: " + forwarder);
-                            ssl_client.startHandshake();
-                        } catch (IOException e) {
-                            ForwarderManager.Logg.e(TAG, "Exception with ssl_client handshake: " + forwarder +", " + e.getMessage(), e);
-                        }
-
-                        SSLSession session = ssl_client.getSession();
-
-                        ForwarderManager.Logg.d(TAG, forwarder + " session: " + session.isValid() + " " + strServer);
-
-                        if (session.isValid()) {
-                            Socket ssl_target = ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(target, strServer, forwarder.mDst.mPort, true);
-
-                            try {
-                                ForwarderManager.Logg.d(TAG, "starting ssl_target handshake: " + forwarder);
-                                ((SSLSocket) ssl_target).startHandshake();
-                            } catch (IOException e) {
-                                ForwarderManager.Logg.e(TAG, "Exception with ssl_target handshake: " + forwarder +", " + e.getMessage(), e);
-                            }
-
-                            SSLSession tmp_session = ((SSLSocket) ssl_target).getSession();
-
-                            TCPForwarder newFwd = ForwarderManager.mActiveTCPForwarderMap.get(client.getPort());
-                            ForwarderManager.Logg.d(TAG, forwarder + " target socket created " + ssl_client.isConnected() + " "
-                                + ssl_target.isConnected() + " tmp_ss = " + tmp_session.isValid() + ", newFwd: " + (newFwd != null));
-
-                            if (ssl_client.isConnected() && ssl_target.isConnected() && newFwd != null && newFwd.mClientState == VPNUtils.TCPState.ESTABLISHED) {
-                                ForwarderManager.Logg.d(TAG, forwarder + ": about to forward TLS " + remoteData.name);
-                                TLSProxyForwarder.connect(ssl_client, ssl_target, forwarder);
-                                //Log.d(TAG, forwarder + " Remote Handshake : " + tmp_session + " is valid : " + tmp_session.isValid());
-
-                                synchronized (forwarder) {
-                                    forwarder.isInHandshake = false;
-                                }
-
-                                return;
-                            }
-
-                            ssl_target.close();
-                        }
-
-                        // Get app name before destorying TCP connections
-                        ConnectionValue cv = PacketProcessor.getInstance(ForwarderManager.mService).
-                                getConnValue(forwarder.mSrc.mPort);
-
-                        TCPForwarder newFwd = ForwarderManager.mActiveTCPForwarderMap.get(forwarder.mSrc.mPort);
-                        if (newFwd != null) {
-                            // Reset the connection so that client knows to try again
-                            newFwd.resetAndDestroy();
-                        }
-
-                        ssl_client.close();
-                        client.close();
-                        target.close();
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "TLSWorker-" + mCount.incrementAndGet());
+        }
+    });
 
-                        // TODO: Ips + Callback
-                        //sslPinningIPs.add(server);
+    public TLSProxyServer(VpnClient vpnService) {
+        this.vpnService = vpnService;
+    }
 
-                        // Log for our own debugging:
-                        ForwarderManager.Logg.d(TAG, "Pinning " + remoteData.name + "; " +
-                                forwarder + " for " + cv);
+    /**
+     * Resets a flow whose interception failed so that the app tries again. If the app
+     * rejected our certificate, the domain is pinned for the app, so that its next
+     * connections to the domain are not intercepted.
+     * @param forwarder forwarder of the flow
+     * @param domain domain to pin, or {@code null}
+     */
+    void onInterceptionFailed(TCPForwarder forwarder, String domain) {
+        // Get app name before destroying TCP connections
+        ConnectionValue cv = domain == null ? null :
+                PacketProcessor.getInstance(ForwarderManager.mService).
+                        getConnValue(forwarder.mSrc.mPort);
+
+        TCPForwarder newFwd = ForwarderManager.getTCPForwarder(forwarder.mSrc.mPort);
+        if (newFwd == forwarder) {
+            // Reset the connection so that client knows to try again
+            newFwd.resetAndDestroy();
+        }
 
-                        if (cv == null) {
-                            ForwarderManager.mOutFilter.onDomainAppPin(remoteData.name, null);
-                            return;
-                        }
+        if (domain == null)
+            return;
 
-                        ForwarderManager.mOutFilter.onDomainAppPin(remoteData.name, cv.getAppName());
+        // Log for our own debugging:
+        ForwarderManager.Logg.d(TAG, "Pinning " + domain + "; " + forwarder + " for " + cv);
 
-                        pinDomainApp(remoteData.name, cv.getAppName());
+        if (cv == null) {
+            ForwarderManager.mOutFilter.onDomainAppPin(domain, null);
+            return;
+        }
 
-                    } else {
-                        // This shouldn't happen often since TCPForwarder vets this case
-                        ForwarderManager.Logg.w(TAG, "Did not try SSL. fwd = " + forwarder);
+        ForwarderManager.mOutFilter.onDomainAppPin(domain, cv.getAppName());
+        pinDomainApp(domain, cv.getAppName());
+    }
 
-                        TCPForwarder newFwd = ForwarderManager.mActiveTCPForwarderMap.get(client.getPort());
-                        if (newFwd != null) {
-                            // Reset the connection so that client knows to try again
-                            newFwd.resetAndDestroy();
-                        }
+    /** Protects a channel to the Internet from being routed back into the VPN */
+    void protect(SocketChannel channel) {
+        vpnService.protect(channel.socket());
+    }
 
-                        client.close();
-                    }
-                }
+    /** Runs blocking work of a session on a worker */
+    void execute(Runnable task) {
+        try {
+            mWorkers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Server is stopping
+        }
+    }
 
+    /** Runs a task on the selector thread */
+    void post(Runnable task) {
+        mPendingTasks.offer(task);
+        mSelector.wakeup();
+    }
 
-                //selectorRunable.addFlow(clientChannel, targetChannel);
-            } catch (Exception e) {
-                Log.e(TAG, e.getMessage(), e);
-            }
-        }
+    Selector getSelector() {
+        return mSelector;
     }
 
     @Override
     public void run() {
-        // Initialize socket channel
-        ServerSocketChannel serverSocketChannel;
         try {
-            serverSocketChannel = ServerSocketChannel.open();
-            serverSocketChannel.socket().setReuseAddress(true);
-            serverSocketChannel.socket().bind(null);
-            port = serverSocketChannel.socket().getLocalPort();
+            mSelector = Selector.open();
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
             return;
         }
 
         // Check if we have been properly initialized
-        if (hostNameResolver == null)
-            hostNameResolver = new Resolver(vpnService);
-
         if (sslSocketFactory == null)
             sslSocketFactory = TLSCertificateActivity.generateCACertificate(
                     vpnService.getFilesDir().getPath());
+        if (sslSocketFactory != null)
+            sslSocketFactory.fillKeyPairPool();
+        instance = this;
 
         while (!isInterrupted()) {
-            try {
-                //Log.d(TAG, "Accepting");
-                SocketChannel socketChannel = serverSocketChannel.accept();
-
+            Runnable task;
+            while ((task = mPendingTasks.poll()) != null)
+                task.run();
 
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+                break;
+            }
 
-                //Socket socket = socketChannel.socket();
-                //Log.d(TAG, "Receiving : " + socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+            Iterator<SelectionKey> selectedKeys = mSelector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
 
-                //socketChannel.configureBlocking(false);
+                try {
+                    if (!key.isValid())
+                        continue;
 
-                TCPForwarder forwarder = ForwarderManager.mActiveTCPForwarderMap.
-                        get(socketChannel.socket().getPort());
-                synchronized (forwarder) {
-                    forwarder.TLSFwdThread = new Thread(new ForwarderHandler(socketChannel));
-                    if (forwarder.mServerName != null) {
-                        //Log.d(TAG, forwarder + " Starting TLS thread from within Proxy...");
-                        forwarder.TLSFwdThread.setName(ForwarderHandler.class.getSimpleName() +
-                                "-" + forwarder.mSrc.mPort);
-                        forwarder.TLSFwdThread.start();
-                    }
+                    ((TLSProxySession) key.attachment()).onSelected(key);
+                } catch (CancelledKeyException e) {
+                    // Session was closed
+                } catch (Exception e) {
+                    Log.e(TAG, e.getMessage(), e);
                 }
-                //new Thread(new ForwarderHandler(socketChannel)).start();
-                //Log.d(TAG, "Not blocked");
-            } catch (Exception e) {
-                //Log.e(TAG, e.getMessage(), e);
             }
         }
-        //Log.d(TAG, "Stop Listening");
+
+        // Stop taking over flows and close all sessions
+        if (instance == this)
+            instance = null;
+        mWorkers.shutdownNow();
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.attachment() instanceof TLSProxySession)
+                ((TLSProxySession) key.attachment()).close();
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Takes over a flow to intercept. Can be called from any thread.
+     * @param forwarder forwarder of the flow
+     * @return end of the pipe the forwarder exchanges the data of the flow through
+     */
+    TLSPipe.End accept(TCPForwarder forwarder) {
+        TLSPipe pipe = new TLSPipe();
+        TLSProxySession session = new TLSProxySession(this, pipe.mProxyEnd, forwarder);
+        synchronized (forwarder) {
+            forwarder.mTLSSession = session;
+
+            // Otherwise the forwarder starts the session once it sees the Client Hello
+            if (forwarder.mServerName != null)
+                session.start();
+        }
+        return pipe.mForwarderEnd;
     }
 
     /**
@@ -328,6 +282,21 @@ class TLSProxyServer extends Thread {
         return true;
     }
 
+    /**
+     * @param serverName server name an app asked for
+     * @return names of the apps that pinned the domain, either the name itself or the wildcard
+     * covering it, or {@code null} if no app did
+     */
+    static Set<String> getPinningApps(String serverName) {
+        Set<String> appNames = pinnedDomains.get(serverName);
+        if (appNames != null)
+            return appNames;
+
+        // The pinned domain may be the Common Name of a wildcard certificate
+        int dot = serverName.indexOf('.');
+        return dot < 0 ? null : pinnedDomains.get("*" + serverName.substring(dot));
+    }
+
     private static void pinDomainApp(String domain, String packageName) {
         Set<String> appNames = pinnedDomains.get(domain);
         if (appNames == null) {
@@ -0,0 +1,828 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import android.os.SystemClock;
+
+import org.sandrop.webscarab.plugin.proxy.SiteData;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import edu.uci.calit2.antmonitor.lib.logging.ConnectionValue;
+import edu.uci.calit2.antmonitor.lib.logging.PacketProcessor;
+import edu.uci.calit2.antmonitor.lib.util.TCPReassemblyInfo;
+
+/**
+ * A TLS connection intercepted by the {@link TLSProxyServer}. The connection has two sides,
+ * each with its own non-blocking channel and {@link SSLEngine}: the app side, a
+ * {@link TLSPipe} to the {@link TCPForwarder} of the flow, poses as the intended host with a
+ * forged certificate, and the server side is a protected connection to the host itself. Data
+ * decrypted on one side goes through the packet filters and is encrypted for the other side.
+ * <p>
+ * The connection to the host is served by the selector of the proxy, and the pipe is served
+ * on the same thread whenever it is signaled, so a connection takes no thread of its own.
+ * Only blocking work runs on the workers of the proxy: {@link #setup()} (connecting to the
+ * host), {@link #createAppEngine(HostCertCache.CertInfo)} (forging the certificate of the
+ * host, also scheduled once the handshake with the host is done), and the delegated tasks
+ * of the engines. {@link #start()} is called by the forwarder of the flow, and a failing
+ * {@link #setup()} closes the session from its worker. All other methods run on the
+ * selector thread, to which the workers post their results.
+ * </p>
+ * <p>
+ * If the app pinned the server name it asks for, the connection is relayed as is instead:
+ * neither side has an engine, and the data of each side are passed to the other unchanged.
+ * </p>
+ */
+class TLSProxySession {
+    private static final String TAG = TLSProxySession.class.getSimpleName();
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    /** Size (in bytes) of the buffers of a relayed connection */
+    private static final int RELAY_BUFFER_SIZE = 16 * 1024;
+
+    /** One side of the connection */
+    private static class Side {
+        final ByteChannel mChannel;
+        SSLEngine mEngine;
+
+        /** Encrypted data read from the channel, not unwrapped yet. Kept in write mode. */
+        ByteBuffer mNetIn;
+
+        /** Decrypted data, not passed to the other side yet. In read mode once filtered. */
+        ByteBuffer mAppIn;
+
+        /** Encrypted data not written to the channel yet. Kept in write mode. */
+        ByteBuffer mNetOut;
+
+        /** {@code true} once {@link #mAppIn} went through the filters */
+        boolean mFiltered;
+
+        boolean mConnected;
+        boolean mHandshakeDone;
+        boolean mTasksRunning;
+
+        /** {@code true} once the channel reached end of stream */
+        boolean mEOF;
+
+        Side(ByteChannel channel) {
+            mChannel = channel;
+        }
+
+        void allocateBuffers() {
+            int packetSize = mEngine.getSession().getPacketBufferSize();
+            mNetIn = ByteBuffer.allocate(packetSize);
+            mNetOut = ByteBuffer.allocate(packetSize);
+
+            // Filters may read the backing array of the decrypted data
+            mAppIn = ByteBuffer.allocate(mEngine.getSession().getApplicationBufferSize());
+        }
+
+        /** Allocates the buffers of a relayed connection, which has no engine */
+        void allocateRelayBuffers() {
+            mNetIn = ByteBuffer.allocate(RELAY_BUFFER_SIZE);
+            mNetOut = ByteBuffer.allocate(RELAY_BUFFER_SIZE);
+        }
+    }
+
+    private final TLSProxyServer mServer;
+    private final TCPForwarder mForwarder;
+
+    /** Side facing the app, with a server-mode engine */
+    private final Side mApp;
+
+    /** Channel of {@link #mApp} */
+    private final TLSPipe.End mAppPipe;
+
+    /** Key of the channel of {@link #mHost} */
+    private SelectionKey mHostKey;
+
+    /** Side facing the intended host, with a client-mode engine */
+    private Side mHost;
+
+    /** Address of the intended host, e.g. 216.58.193.196 */
+    private String mHostAddress;
+
+    /** Server name the app asked for, {@code null} if unknown */
+    private String mServerName;
+
+    /** Time (in milliseconds since the epoch) the engine of the server side was created */
+    private long mHostStartTime;
+
+    /** Domain the forged certificate was made for */
+    private String mDomain;
+
+    private boolean mStarted;
+
+    /** {@code true} if the connection is relayed without terminating TLS */
+    private boolean mRelay;
+
+    /** {@code true} once close_notify was queued for both sides */
+    private boolean mClosing;
+    private boolean mClosed;
+
+    /** Serves the pipe to the app once it is signaled */
+    private final Runnable mServeAppPipe = new Runnable() {
+        @Override
+        public void run() {
+            mAppPipe.clearSignal();
+            if (mHost != null && !mClosed)
+                pump();
+        }
+    };
+
+    /**
+     * @param server proxy that accepted the connection
+     * @param appPipe end of the pipe from the {@link TCPForwarder} of the flow
+     * @param forwarder forwarder of the flow inside {@link ForwarderManager}
+     */
+    TLSProxySession(TLSProxyServer server, TLSPipe.End appPipe, TCPForwarder forwarder) {
+        mServer = server;
+        mForwarder = forwarder;
+        mAppPipe = appPipe;
+        mApp = new Side(appPipe);
+        mApp.mConnected = true;
+
+        appPipe.setListener(new Runnable() {
+            @Override
+            public void run() {
+                mServer.post(mServeAppPipe);
+            }
+        });
+    }
+
+    /**
+     * Starts intercepting the connection. Call this once the Client Hello of the app was seen,
+     * so that its server name is known. Only the first call has an effect.
+     */
+    synchronized void start() {
+        if (mStarted)
+            return;
+        mStarted = true;
+
+        mServer.execute(new Runnable() {
+            @Override
+            public void run() {
+                setup();
+            }
+        });
+    }
+
+    /**
+     * Opens the server side. If the certificate of the host is known from an earlier
+     * connection, the app side is set up too, so that both handshakes run at once. Otherwise,
+     * the app side waits for the certificate the host presents in its handshake. If the app
+     * pinned the server name, no engines are set up and the connection is relayed.
+     * Runs on a worker of the proxy.
+     */
+    private void setup() {
+        SocketChannel channel = null;
+        final SSLEngine appEngine;
+        final SSLEngine hostEngine;
+        final boolean connected;
+        final boolean relay;
+        try {
+            InetAddress server = InetAddress.getByAddress(mForwarder.mDst.mIpArray);
+            mHostAddress = server.getHostAddress();
+            int port = mForwarder.mDst.mPort;
+
+            synchronized (mForwarder) {
+                if (ForwarderManager.SSL_SNI_ENABLED && mForwarder.mServerName != null &&
+                        !mForwarder.mServerName.isEmpty()) {
+                    mServerName = mForwarder.mServerName;
+                }
+                mForwarder.isInHandshake = true;
+            }
+
+            relay = isPinned();
+            if (relay) {
+                hostEngine = null;
+                appEngine = null;
+            } else {
+                // The server name, if any, is sent to the host as SNI
+                mHostStartTime = System.currentTimeMillis();
+                hostEngine = TLSProxyServer.upstreamSessions.createEngine(
+                        mServerName != null ? mServerName : mHostAddress, port);
+
+                HostCertCache.CertInfo info = TLSProxyServer.hostCerts.get(mHostAddress, port,
+                        mServerName, SystemClock.elapsedRealtime());
+                appEngine = info != null && info.mName != null ? createAppEngine(info) : null;
+            }
+
+            channel = SocketChannel.open();
+            mServer.protect(channel);
+            channel.configureBlocking(false);
+            connected = channel.connect(new InetSocketAddress(server, port));
+        } catch (Exception e) {
+            ForwarderManager.Logg.e(TAG, mForwarder + " could not set up TLS: " +
+                    e.getMessage(), e);
+            if (channel != null)
+                closeQuietly(channel);
+            fail(null);
+            return;
+        }
+
+        final SocketChannel hostChannel = channel;
+        mServer.post(new Runnable() {
+            @Override
+            public void run() {
+                if (relay)
+                    onRelaySetup(hostChannel, connected);
+                else
+                    onSetup(hostChannel, appEngine, hostEngine, connected);
+            }
+        });
+    }
+
+    /**
+     * The certificate of the host is not needed to tell, as the Common Names that apps pinned
+     * are matched against the server name in the Client Hello. Runs on a worker of the proxy.
+     * @return {@code true} if the app pinned the server name it asked for
+     */
+    private boolean isPinned() {
+        String serverName;
+        synchronized (mForwarder) {
+            serverName = mForwarder.mServerName;
+        }
+        if (serverName == null || serverName.isEmpty())
+            return false;
+
+        Set<String> appNames = TLSProxyServer.getPinningApps(serverName);
+        if (appNames == null)
+            return false;
+
+        ConnectionValue cv = PacketProcessor.getInstance(ForwarderManager.mService).
+                getConnValue(mForwarder.mSrc.mPort);
+        if (cv == null) {
+            ForwarderManager.Logg.e(TAG, mForwarder + ": relaying TLS: could not get app name.");
+            return true;
+        }
+
+        if (!appNames.contains(cv.getAppName()))
+            return false;
+
+        ForwarderManager.Logg.d(TAG, mForwarder + ": relaying TLS: app = " + cv.getAppName() +
+                "; server name = " + serverName);
+        return true;
+    }
+
+    /**
+     * @param info certificate of the host
+     * @return the engine of the app side, posing as the host with a forged certificate
+     */
+    private SSLEngine createAppEngine(HostCertCache.CertInfo info) throws Exception {
+        SiteData hostData = new SiteData();
+        hostData.tcpAddress = mHostAddress;
+        hostData.destPort = mForwarder.mDst.mPort;
+        hostData.sourcePort = mForwarder.mSrc.mPort;
+        hostData.hostName = mServerName;
+        hostData.name = info.mName;
+        hostData.certs = info.mCerts;
+
+        if (!info.mAltNames.isEmpty())
+            TLSProxyServer.sslSocketFactory.domainToAltNames.put(info.mName, info.mAltNames);
+
+        mDomain = info.mName;
+        return SSLSocketBuilder.negotiateSSLEngine(hostData, TLSProxyServer.sslSocketFactory);
+    }
+
+    /** Registers the server side with the selector and begins the handshakes */
+    private void onSetup(SocketChannel hostChannel, SSLEngine appEngine, SSLEngine hostEngine,
+                         boolean connected) {
+        mHost = new Side(hostChannel);
+        mHost.mConnected = connected;
+        mHost.mEngine = hostEngine;
+        mHost.allocateBuffers();
+
+        Selector selector = mServer.getSelector();
+        try {
+            mHostKey = hostChannel.register(selector, 0, this);
+
+            ForwarderManager.Logg.d(TAG, "starting handshakes: " + mForwarder);
+            if (connected)
+                hostEngine.beginHandshake();
+            if (appEngine != null)
+                startAppHandshake(appEngine);
+        } catch (IOException e) {
+            // The flow was closed in the meantime
+            ForwarderManager.Logg.e(TAG, mForwarder + " could not start TLS: " + e.getMessage(), e);
+            fail(null);
+            return;
+        }
+        pump();
+    }
+
+    /** Registers the server side of a relayed connection with the selector */
+    private void onRelaySetup(SocketChannel hostChannel, boolean connected) {
+        mRelay = true;
+        mHost = new Side(hostChannel);
+        mHost.mConnected = connected;
+        mHost.allocateRelayBuffers();
+        mApp.allocateRelayBuffers();
+
+        // Nothing to negotiate: errors just close the connection
+        mApp.mHandshakeDone = true;
+        mHost.mHandshakeDone = true;
+        synchronized (mForwarder) {
+            mForwarder.isInHandshake = false;
+        }
+
+        try {
+            mHostKey = hostChannel.register(mServer.getSelector(), 0, this);
+        } catch (IOException e) {
+            // The flow was closed in the meantime
+            ForwarderManager.Logg.e(TAG, mForwarder + " could not relay TLS: " + e.getMessage(), e);
+            close();
+            return;
+        }
+        pump();
+    }
+
+    private void startAppHandshake(SSLEngine appEngine) throws SSLException {
+        mApp.mEngine = appEngine;
+        mApp.allocateBuffers();
+        appEngine.beginHandshake();
+    }
+
+    /**
+     * Remembers the certificate of the host, and forges it for the app side if that side
+     * still waits for it
+     */
+    private void onHostHandshakeDone() throws SSLException {
+        SSLSession session = mHost.mEngine.getSession();
+        if (TLSProxyServer.upstreamSessions.onHandshakeDone(session, mHostStartTime))
+            ForwarderManager.Logg.d(TAG, mForwarder + ": resumed session with host");
+
+        Certificate[] peerCerts = session.getPeerCertificates();
+        X509Certificate[] certs = new X509Certificate[peerCerts.length];
+        for (int i = 0; i < certs.length; i++)
+            certs[i] = (X509Certificate) peerCerts[i];
+
+        final HostCertCache.CertInfo info = TLSProxyServer.hostCerts.put(mHostAddress,
+                mForwarder.mDst.mPort, mServerName, certs, SystemClock.elapsedRealtime());
+        if (mApp.mEngine != null)
+            return;
+        if (info == null) {
+            TLSProxyServer.hostCerts.putFailure(mHostAddress, mForwarder.mDst.mPort,
+                    mServerName, SystemClock.elapsedRealtime());
+            throw new SSLException("Certificate of host has no common name");
+        }
+
+        mServer.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SSLEngine appEngine;
+                try {
+                    appEngine = createAppEngine(info);
+                } catch (final Exception e) {
+                    mServer.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onError(mHost, new SSLException(e));
+                        }
+                    });
+                    return;
+                }
+
+                mServer.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mClosed)
+                            return;
+                        try {
+                            startAppHandshake(appEngine);
+                        } catch (SSLException e) {
+                            onError(mApp, e);
+                            return;
+                        }
+                        pump();
+                    }
+                });
+            }
+        });
+    }
+
+    /** Called by the selector thread when the channel to the host is ready */
+    void onSelected(SelectionKey key) {
+        if (mClosed)
+            return;
+
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (key.isConnectable()) {
+                if (!channel.finishConnect())
+                    return;
+                mHost.mConnected = true;
+                if (!mRelay)
+                    mHost.mEngine.beginHandshake();
+            }
+
+            if (key.isReadable() && channel.read(mHost.mNetIn) < 0)
+                mHost.mEOF = true;
+        } catch (IOException e) {
+            onError(mHost, e);
+            return;
+        }
+        pump();
+    }
+
+    /** Makes as much progress as possible on both sides, then updates the interest ops */
+    private void pump() {
+        boolean progress;
+        do {
+            progress = step(mApp);
+            progress |= step(mHost);
+        } while (progress && !mClosed);
+
+        if (mClosed)
+            return;
+
+        if (mRelay) {
+            // Done once a side reached end of stream and its data were written to the other
+            if ((isFinished(mApp) && mHost.mNetOut.position() == 0) ||
+                    (isFinished(mHost) && mApp.mNetOut.position() == 0)) {
+                close();
+                return;
+            }
+            updateInterestOps();
+            return;
+        }
+
+        if (!mClosing && (isFinished(mApp) || isFinished(mHost))) {
+            Side finished = isFinished(mApp) ? mApp : mHost;
+            if (!mApp.mHandshakeDone || !mHost.mHandshakeDone) {
+                onError(finished, new SSLException("Connection closed during the handshake"));
+                return;
+            }
+            shutdown();
+            return;
+        }
+
+        if (mClosing && mApp.mNetOut.position() == 0 && mHost.mNetOut.position() == 0) {
+            close();
+            return;
+        }
+
+        updateInterestOps();
+    }
+
+    /** @return {@code true} if some data moved */
+    private boolean step(Side side) {
+        // The app side waits for its engine until the certificate of the host is known
+        if (mClosed || !side.mConnected || (side.mEngine == null && !mRelay))
+            return false;
+
+        try {
+            boolean progress = flush(side);
+
+            // The pipe is not polled by the selector, it is read whenever there is room
+            if (side == mApp)
+                progress |= fill(mApp);
+            if (mRelay)
+                return relay(side, side == mApp ? mHost : mApp) | progress;
+            if (side.mTasksRunning)
+                return progress;
+
+            SSLEngineResult.HandshakeStatus status = side.mEngine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks(side);
+                return progress;
+            }
+
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                return wrap(side, EMPTY_BUFFER) | progress;
+
+            progress |= unwrap(side);
+            if (side.mHandshakeDone)
+                progress |= transfer(side, side == mApp ? mHost : mApp);
+            return progress;
+        } catch (IOException e) {
+            onError(side, e);
+            return false;
+        }
+    }
+
+    /** Writes pending encrypted data to the channel of the given side */
+    private boolean flush(Side side) throws IOException {
+        if (side.mNetOut.position() == 0)
+            return false;
+
+        side.mNetOut.flip();
+        int written;
+        try {
+            written = side.mChannel.write(side.mNetOut);
+        } finally {
+            side.mNetOut.compact();
+        }
+        return written > 0;
+    }
+
+    /** Reads encrypted data from the channel of the given side */
+    private boolean fill(Side side) throws IOException {
+        if (side.mEOF || !side.mNetIn.hasRemaining())
+            return false;
+
+        int read = side.mChannel.read(side.mNetIn);
+        if (read < 0)
+            side.mEOF = true;
+        return read != 0;
+    }
+
+    /** Passes the data read from the channel of one side, as is, to the other side */
+    private boolean relay(Side from, Side to) {
+        if (!to.mConnected || from.mNetIn.position() == 0 || !to.mNetOut.hasRemaining())
+            return false;
+
+        from.mNetIn.flip();
+        int length = Math.min(from.mNetIn.remaining(), to.mNetOut.remaining());
+        to.mNetOut.put(from.mNetIn.array(), from.mNetIn.position(), length);
+        from.mNetIn.position(from.mNetIn.position() + length);
+        from.mNetIn.compact();
+        return true;
+    }
+
+    /** Encrypts data from {@code src} into the buffer of the given side */
+    private boolean wrap(Side side, ByteBuffer src) throws SSLException {
+        SSLEngineResult result = side.mEngine.wrap(src, side.mNetOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            // Wait for the pending data to be written, unless the buffer is too small
+            if (side.mNetOut.position() > 0)
+                return false;
+            side.mNetOut = ByteBuffer.allocate(
+                    Math.max(side.mEngine.getSession().getPacketBufferSize(),
+                            side.mNetOut.capacity() * 2));
+            return true;
+        }
+
+        onResult(side, result);
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    /** Decrypts data read from the channel of the given side */
+    private boolean unwrap(Side side) throws SSLException {
+        // Decrypted data are passed on one record at a time
+        if (side.mAppIn.position() > 0 || side.mFiltered || side.mEngine.isInboundDone())
+            return false;
+
+        side.mNetIn.flip();
+        SSLEngineResult result;
+        try {
+            result = side.mEngine.unwrap(side.mNetIn, side.mAppIn);
+        } finally {
+            side.mNetIn.compact();
+        }
+
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                // Wait for more data, unless the buffer is too small to hold a record
+                if (side.mNetIn.hasRemaining())
+                    return false;
+                ByteBuffer netIn = ByteBuffer.allocate(
+                        Math.max(side.mEngine.getSession().getPacketBufferSize(),
+                                side.mNetIn.capacity() * 2));
+                side.mNetIn.flip();
+                netIn.put(side.mNetIn);
+                side.mNetIn = netIn;
+                return true;
+            case BUFFER_OVERFLOW:
+                side.mAppIn = ByteBuffer.allocate(
+                        Math.max(side.mEngine.getSession().getApplicationBufferSize(),
+                                side.mAppIn.capacity() * 2));
+                return true;
+            default:
+                onResult(side, result);
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    private void onResult(Side side, SSLEngineResult result) throws SSLException {
+        if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED ||
+                side.mHandshakeDone)
+            return;
+
+        side.mHandshakeDone = true;
+        ForwarderManager.Logg.d(TAG, mForwarder + ": " + (side == mApp ? "app" : "host") +
+                " handshake done");
+        if (side == mHost)
+            onHostHandshakeDone();
+        if (mApp.mHandshakeDone && mHost.mHandshakeDone) {
+            ForwarderManager.Logg.d(TAG, mForwarder + ": about to forward TLS " + mDomain);
+            synchronized (mForwarder) {
+                mForwarder.isInHandshake = false;
+            }
+        }
+    }
+
+    /**
+     * Passes the decrypted data of one side through the packet filters, then encrypts them for
+     * the other side
+     */
+    private boolean transfer(Side from, Side to) throws SSLException {
+        if (!to.mHandshakeDone)
+            return false;
+
+        if (!from.mFiltered) {
+            if (from.mAppIn.position() == 0)
+                return false;
+
+            from.mAppIn.flip();
+            int length = from.mAppIn.limit();
+            if (!accept(from)) {
+                from.mAppIn.clear();
+                return true;
+            }
+            from.mAppIn.limit(length);
+            from.mAppIn.position(0);
+            from.mFiltered = true;
+        }
+
+        boolean progress = false;
+        while (from.mAppIn.hasRemaining() && wrap(to, from.mAppIn))
+            progress = true;
+
+        if (!from.mAppIn.hasRemaining()) {
+            from.mAppIn.clear();
+            from.mFiltered = false;
+            progress = true;
+        }
+        return progress;
+    }
+
+    /** @return {@code true} if the filters allow the decrypted data of the given side */
+    private boolean accept(Side from) {
+        TCPReassemblyInfo tcpInfo;
+        if (from == mApp) {
+            synchronized (ForwarderManager.mTCPReassemblyMap) {
+                tcpInfo = ForwarderManager.mTCPReassemblyMap.remove(mForwarder.mSrc.mPort);
+            }
+            return ForwarderManager.mOutFilter.acceptDecryptedSSLPacket(from.mAppIn, tcpInfo).
+                    isAllowed();
+        }
+
+        synchronized (mForwarder) {
+            tcpInfo = new TCPReassemblyInfo(mHostAddress, mForwarder.mSrc.mPort,
+                    mForwarder.mDst.mPort, mForwarder.mAckNumberToClient,
+                    mForwarder.mSequenceNumberToClient);
+        }
+        return ForwarderManager.mIncFilter.acceptDecryptedSSLPacket(from.mAppIn, tcpInfo).
+                isAllowed();
+    }
+
+    /** Runs the delegated tasks of an engine on a worker, then resumes on the selector */
+    private void runDelegatedTasks(Side side) {
+        final List<Runnable> tasks = new ArrayList<>();
+        Runnable task;
+        while ((task = side.mEngine.getDelegatedTask()) != null)
+            tasks.add(task);
+
+        final Side tasksSide = side;
+        tasksSide.mTasksRunning = true;
+        mServer.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable task : tasks)
+                    task.run();
+
+                mServer.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        tasksSide.mTasksRunning = false;
+                        if (!mClosed)
+                            pump();
+                    }
+                });
+            }
+        });
+    }
+
+    /** @return {@code true} if the given side will not provide more data */
+    private boolean isFinished(Side side) {
+        if (mRelay)
+            return side.mEOF && side.mNetIn.position() == 0;
+        if (side.mEngine == null || side.mAppIn.position() > 0 || side.mFiltered)
+            return false;
+
+        // Once at end of stream, what is left to unwrap is at most a partial record
+        return side.mEngine.isInboundDone() || (side.mEOF && !side.mTasksRunning);
+    }
+
+    /** Polls the channel to the host for what its side waits for */
+    private void updateInterestOps() {
+        int ops;
+        if (!mHost.mConnected) {
+            ops = SelectionKey.OP_CONNECT;
+        } else {
+            ops = 0;
+            if (mHost.mNetOut.position() > 0)
+                ops |= SelectionKey.OP_WRITE;
+            if (!mHost.mEOF && mHost.mNetIn.hasRemaining())
+                ops |= SelectionKey.OP_READ;
+        }
+
+        if (mHostKey.interestOps() != ops)
+            mHostKey.interestOps(ops);
+    }
+
+    /**
+     * Aborts the session after an error on the given side. If the app side fails its
+     * handshake, the app most likely rejected our certificate, so its domain gets pinned.
+     */
+    private void onError(Side side, IOException e) {
+        if (mClosed)
+            return;
+
+        if (mApp.mHandshakeDone && mHost.mHandshakeDone) {
+            // Connection broke while forwarding data
+            close();
+            return;
+        }
+
+        ForwarderManager.Logg.e(TAG, "Exception with " + (side == mApp ? "app" : "host") +
+                " handshake: " + mForwarder + ", " + e.getMessage(), e);
+
+        // Do not intercept the host for a while, its handshake is likely to fail again
+        if (side == mHost && !mHost.mHandshakeDone) {
+            TLSProxyServer.hostCerts.putFailure(mHostAddress, mForwarder.mDst.mPort,
+                    mServerName, SystemClock.elapsedRealtime());
+        }
+        fail(side == mApp && !mApp.mHandshakeDone ? mDomain : null);
+    }
+
+    /**
+     * Aborts the interception and resets the flow so that the app tries again
+     * @param domain domain to pin for the app, or {@code null}
+     */
+    private void fail(final String domain) {
+        close();
+        mServer.execute(new Runnable() {
+            @Override
+            public void run() {
+                mServer.onInterceptionFailed(mForwarder, domain);
+            }
+        });
+    }
+
+    /**
+     * Closes both sides with close_notify once one side is done. The session is closed once
+     * the pending data of both sides are written.
+     */
+    private void shutdown() {
+        mClosing = true;
+        mApp.mEngine.closeOutbound();
+        mHost.mEngine.closeOutbound();
+        pump();
+    }
+
+    /** Closes both channels right away */
+    void close() {
+        mClosed = true;
+        synchronized (mForwarder) {
+            mForwarder.isInHandshake = false;
+        }
+
+        closeQuietly(mApp.mChannel);
+        if (mHost != null)
+            closeQuietly(mHost.mChannel);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ForwarderManager.Logg.w(TAG, e.getMessage());
+        }
+    }
+}
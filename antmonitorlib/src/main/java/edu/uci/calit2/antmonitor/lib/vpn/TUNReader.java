@@ -22,6 +22,7 @@ import android.util.Log;
 import java.nio.ByteBuffer;
 
 import edu.uci.calit2.antmonitor.lib.logging.PacketAnnotation;
+import edu.uci.calit2.antmonitor.lib.util.PacketBuffer;
 
 /**
  * Responsible for reading data from TUN, processing it and queuing it to be written to the NET
@@ -31,9 +32,20 @@ import edu.uci.calit2.antmonitor.lib.logging.PacketAnnotation;
 class TUNReader implements Runnable {
     private static final int POLL_TIMEOUT = 1000; //in ms
 
-    /** Stores data read from TUN */
-    private ByteBuffer mReadTunBuffer =
-            ByteBuffer.allocateDirect(ForwarderManager.SOCKET_BYTEBUFFER_WRITE_SIZE);
+    /** Maximum number of packets read from TUN with a single native call */
+    private static final int READ_BATCH_SIZE = 16;
+
+    /** Space reserved for each packet in {@link #mReadTunBuffer}. Must fit the MTU. */
+    private static final int SLOT_SIZE = ForwarderManager.SOCKET_BYTEBUFFER_WRITE_SIZE;
+
+    /** Stores data read from TUN, one packet per slot */
+    private final ByteBuffer mReadTunBuffer = ByteBuffer.allocateDirect(READ_BATCH_SIZE * SLOT_SIZE);
+
+    /** Views of each slot of {@link #mReadTunBuffer}, so that filters see packets at position 0 */
+    private final ByteBuffer[] mPacketViews = new ByteBuffer[READ_BATCH_SIZE];
+
+    /** Lengths of the packets read during the last batch */
+    private final int[] mPacketLengths = new int[READ_BATCH_SIZE];
 
     /** Instance of the {@link edu.uci.calit2.antmonitor.lib.vpn.ForwarderManager} for
      * synchronization purposes */
@@ -41,23 +53,30 @@ class TUNReader implements Runnable {
 
     public TUNReader(ForwarderManager manager) {
         this.manager = manager;
+
+        for (int i = 0; i < READ_BATCH_SIZE; i++) {
+            mReadTunBuffer.clear();
+            mReadTunBuffer.position(i * SLOT_SIZE);
+            mReadTunBuffer.limit((i + 1) * SLOT_SIZE);
+            mPacketViews[i] = mReadTunBuffer.slice();
+        }
+        mReadTunBuffer.clear();
     }
 
     public void run() {
         android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
         while (!Thread.currentThread().isInterrupted()) {
 
-            // First we read packet from TUN
-            mReadTunBuffer.clear();
             // Sanity check
             if (ForwarderManager.mTunInterfaceJni == null) {
                 continue;
             }
 
-            int bytesRead =
-                    ForwarderManager.mTunInterfaceJni.pollRead(POLL_TIMEOUT, mReadTunBuffer, 0);
+            // First we read a batch of packets from TUN
+            int numPackets = ForwarderManager.mTunInterfaceJni.pollReadBatch(POLL_TIMEOUT,
+                    mReadTunBuffer, SLOT_SIZE, mPacketLengths, READ_BATCH_SIZE);
 
-            if (bytesRead < 0) {
+            if (numPackets < 0) {
                 // Check if we are in the process of shutting down
                 // See {@link ForwarderManager#shutdown()}
                 synchronized (manager) {
@@ -75,28 +94,44 @@ class TUNReader implements Runnable {
                 continue;
             }
 
-            if (bytesRead == 0)
-                continue;
-
-            PacketAnnotation packetAnnot =
-                    ForwarderManager.mOutFilter.acceptIPDatagram(mReadTunBuffer);
-            if (!packetAnnot.isAllowed()) {
-                // Discard any packet that doesn't match the filter implementation.
-                continue;
+            // Then we process each packet
+            for (int i = 0; i < numPackets; i++) {
+                processPacket(mPacketViews[i], mPacketLengths[i]);
             }
+        }
+        ForwarderManager.mActiveThreads.remove(Thread.currentThread().getId());
+        Log.i(TUNReader.class.getSimpleName(), " finished.");
+    }
 
-            byte[] packet = new byte[bytesRead];
-            if (mReadTunBuffer.hasArray()) {
-                System.arraycopy(mReadTunBuffer.array(), mReadTunBuffer.arrayOffset(), packet, 0,
-                        bytesRead);
-            } else {
-                mReadTunBuffer.get(packet);
-            }
+    /**
+     * Filters a packet read from TUN and hands it to the {@link ForwarderManager}
+     * @param packetView view of the slot holding the packet
+     * @param bytesRead length of the packet
+     */
+    private void processPacket(ByteBuffer packetView, int bytesRead) {
+        if (bytesRead <= 0)
+            return;
+
+        packetView.clear();
+        packetView.limit(bytesRead);
+
+        PacketAnnotation packetAnnot = ForwarderManager.mOutFilter.acceptIPDatagram(packetView);
+        if (!packetAnnot.isAllowed()) {
+            // Discard any packet that doesn't match the filter implementation.
+            return;
+        }
+
+        // Copy the packet into a pooled buffer so that we do not allocate for every packet
+        PacketBuffer packet = ForwarderManager.mPacketBufferPool.acquire();
+        packetView.position(0);
+        packetView.get(packet.array(), 0, bytesRead);
+        packet.setLength(bytesRead);
 
-            // Then we process the packet
+        // Anyone who needs the packet past this call retains it.
+        try {
             manager.processTUNReadData(packet, packetAnnot);
+        } finally {
+            packet.release();
         }
-        ForwarderManager.mActiveThreads.remove(Thread.currentThread().getId());
-        Log.i(TUNReader.class.getSimpleName(), " finished.");
     }
 }
@@ -0,0 +1,139 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+
+import edu.uci.calit2.antmonitor.lib.logging.PacketAnnotation;
+import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
+import edu.uci.calit2.antmonitor.lib.vpn.ForwarderManager.Logg;
+
+/**
+ * Responsible for writing packets destined to the apps to TUN. Other threads queue packets via
+ * {@link ForwarderManager#writeDirectToTun(byte[])} and this thread drains the queue, writing
+ * all pending packets with a single native call.
+ */
+class TUNWriter implements Runnable {
+    private static final String TAG = TUNWriter.class.getSimpleName();
+
+    /** Maximum number of packets written to TUN with a single native call */
+    private static final int WRITE_BATCH_SIZE = 16;
+
+    /** Space reserved for each packet in {@link #mWriteTunBuffer}. Write to TUN buffer can be
+     * arbitrary large (IP fragmentation will be done at the lower layer automatically) */
+    static final int SLOT_SIZE = ForwarderManager.SOCKET_BYTEBUFFER_WRITE_SIZE +
+            IpDatagram.TCP_HEADER_MAX_LENGTH + IpDatagram.IP_HEADER_DEFAULT_LENGTH;
+
+    /** Stores packets to be written to TUN, one packet per slot */
+    private final ByteBuffer mWriteTunBuffer = ByteBuffer.allocateDirect(WRITE_BATCH_SIZE * SLOT_SIZE);
+
+    /** Views of each slot of {@link #mWriteTunBuffer}, so that filters see packets at position 0 */
+    private final ByteBuffer[] mPacketViews = new ByteBuffer[WRITE_BATCH_SIZE];
+
+    /** Lengths of the packets in the current batch. 0 marks a packet dropped by the filter. */
+    private final int[] mPacketLengths = new int[WRITE_BATCH_SIZE];
+
+    /** Packets taken off the queue for the current batch */
+    private final ArrayList<byte[]> mBatch = new ArrayList<>(WRITE_BATCH_SIZE);
+
+    /** Queue of packets waiting to be written to TUN */
+    private final BlockingQueue<byte[]> mQueue;
+
+    public TUNWriter(BlockingQueue<byte[]> queue) {
+        mQueue = queue;
+
+        for (int i = 0; i < WRITE_BATCH_SIZE; i++) {
+            mWriteTunBuffer.clear();
+            mWriteTunBuffer.position(i * SLOT_SIZE);
+            mWriteTunBuffer.limit((i + 1) * SLOT_SIZE);
+            mPacketViews[i] = mWriteTunBuffer.slice();
+        }
+        mWriteTunBuffer.clear();
+    }
+
+    public void run() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        while (!Thread.currentThread().isInterrupted()) {
+            mBatch.clear();
+            try {
+                // Wait for at least one packet, then take whatever else is pending
+                mBatch.add(mQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            mQueue.drainTo(mBatch, WRITE_BATCH_SIZE - 1);
+
+            int count = mBatch.size();
+            for (int i = 0; i < count; i++) {
+                mPacketLengths[i] = preparePacket(mPacketViews[i], mBatch.get(i));
+            }
+
+            // Sanity check
+            if (ForwarderManager.mTunInterfaceJni == null) {
+                continue;
+            }
+
+            if (ForwarderManager.mTunInterfaceJni.writeBatch(mWriteTunBuffer, SLOT_SIZE,
+                    mPacketLengths, count) < 0) {
+                Logg.e(TAG, "Error writing " + count + " packets to TUN");
+
+                // Packets dropped by the filter were not meant to be written anyway
+                for (int i = 0; i < count; i++) {
+                    if (mPacketLengths[i] > 0)
+                        ForwarderManager.mTunWriteDrops.incrementAndGet();
+                }
+            }
+        }
+        mBatch.clear();
+        ForwarderManager.mActiveThreads.remove(Thread.currentThread().getId());
+        Log.i(TAG, " finished.");
+    }
+
+    /**
+     * Copies the packet into its slot, runs it through the incoming filter and logs it
+     * @param packetView view of the slot to copy the packet to
+     * @param packet the packet to write to TUN
+     * @return the length of the packet, or 0 if it should not be written
+     */
+    private int preparePacket(ByteBuffer packetView, byte[] packet) {
+        int packetLength = packet.length;
+
+        // Sanity check
+        if (packetLength > packetView.capacity()) {
+            Logg.e(TAG, "Packet to write to TUN is bigger than Write TUN Buffer");
+            return 0;
+        }
+
+        packetView.clear();
+        packetView.put(packet, 0, packetLength);
+        packetView.flip();
+
+        PacketAnnotation packetAnnot = ForwarderManager.mIncFilter.acceptIPDatagram(packetView);
+        if (!packetAnnot.isAllowed())
+            return 0;
+
+        if (ForwarderManager.mIncPacketQueue != null)
+            ForwarderManager.mIncPacketQueue.put(packet, packetAnnot);
+
+        return packetLength;
+    }
+}
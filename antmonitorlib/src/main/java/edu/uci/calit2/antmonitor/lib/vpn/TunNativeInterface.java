@@ -99,6 +99,36 @@ class TunNativeInterface {
         return write(mTunFD, buffer, messageLength);
     }
 
+    /**
+     * Poll and read up to {@code maxPackets} packets from the TUN interface in a single native
+     * call. Packet {@code i} is stored at offset {@code i * slotSize} of {@code buffer} and its
+     * length is stored in {@code lengths[i]}. Only the first read waits for data, subsequent
+     * reads only take packets that are already queued on the interface.
+     *
+     * @param timeout The timeout duration for the poll in ms.
+     * @param buffer direct buffer of at least {@code slotSize * maxPackets} bytes
+     * @param slotSize space reserved for each packet. Must fit the largest packet (MTU).
+     * @param lengths filled with the length of each packet read
+     * @param maxPackets maximum number of packets to read
+     * @return the number of packets read, 0 on timeout, or -1 to indicate broken channel.
+     */
+    public int pollReadBatch(long timeout, ByteBuffer buffer, int slotSize, int[] lengths,
+                             int maxPackets) {
+        return pollReadBatch(mTunFD, timeout, buffer, slotSize, lengths, maxPackets);
+    }
+
+    /**
+     * Write several packets to the TUN interface in a single native call
+     * @param buffer direct buffer holding packet {@code i} at offset {@code i * slotSize}
+     * @param slotSize space reserved for each packet
+     * @param lengths length of each packet. Packets with a length of 0 are skipped.
+     * @param count number of packets in {@code buffer}
+     * @return number of packets written, or -1 if the first write failed
+     */
+    public int writeBatch(ByteBuffer buffer, int slotSize, int[] lengths, int count) {
+        return writeBatch(mTunFD, buffer, slotSize, lengths, count);
+    }
+
     /**
      * Native implementation:
      * Pass the file descriptor (int) of the TUN in addition to other parameters
@@ -110,4 +140,18 @@ class TunNativeInterface {
      * Pass the file descriptor (int) of the TUN in addition to other parameters
      */
     private native int write(int tunFD, ByteBuffer buffer, int messageLength);
+
+    /**
+     * Native implementation:
+     * Pass the file descriptor (int) of the TUN in addition to other parameters
+     */
+    private native int pollReadBatch(int tunFD, long timeout, ByteBuffer buffer, int slotSize,
+                                     int[] lengths, int maxPackets);
+
+    /**
+     * Native implementation:
+     * Pass the file descriptor (int) of the TUN in addition to other parameters
+     */
+    private native int writeBatch(int tunFD, ByteBuffer buffer, int slotSize, int[] lengths,
+                                  int count);
 }
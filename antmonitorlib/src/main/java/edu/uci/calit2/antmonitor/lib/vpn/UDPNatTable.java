@@ -0,0 +1,191 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded table of active UDP flows (our NAT table). Flows expire after being idle for a
+ * while: each flow is scheduled in a timer wheel at the time it would expire, and is only
+ * looked at again when that time comes, so expiry never scans the whole table. When the
+ * table is full, the flow that is closest to expiring is evicted to make room. Flows that
+ * leave the table are {@link VPNUtils.UDPFlow#close() closed}.
+ */
+class UDPNatTable {
+
+    /** Time (in milliseconds) between two ticks of the wheel */
+    static final long TICK_INTERVAL = 1000;
+
+    /** Number of slots of the wheel. Must be larger than the longest timeout in ticks. */
+    private static final int WHEEL_SLOTS = 64;
+
+    private final FlowTable<VPNUtils.UDPFlow> mFlows;
+
+    /** Flows scheduled to be checked in each tick, modulo {@link #WHEEL_SLOTS} */
+    private final ArrayList<ArrayList<VPNUtils.UDPFlow>> mWheel;
+
+    /** Maximum number of flows */
+    private final int mMaxFlows;
+
+    /** Current tick of the wheel */
+    private long mTick;
+
+    /** Coarse clock (in ticks) used to stamp flows when they are used */
+    private volatile long mNow;
+
+    private long mExpired;
+    private long mEvicted;
+    private final AtomicLong mUnknownHostDrops = new AtomicLong();
+
+    UDPNatTable(int maxFlows) {
+        mMaxFlows = maxFlows;
+        mFlows = new FlowTable<>(maxFlows);
+        mWheel = new ArrayList<>(WHEEL_SLOTS);
+        for (int i = 0; i < WHEEL_SLOTS; i++)
+            mWheel.add(new ArrayList<VPNUtils.UDPFlow>());
+    }
+
+    /**
+     * @return the flow with the given key (see {@link ForwarderManager#udpFlowKey(int, int)}
+     * and {@link ForwarderManager#udpConnectedFlowKey(int, int, int)}), or {@code null}.
+     * Marks the flow as used.
+     */
+    VPNUtils.UDPFlow get(long key) {
+        VPNUtils.UDPFlow flow = mFlows.get(key);
+        if (flow != null)
+            flow.mLastSeen = mNow;
+        return flow;
+    }
+
+    /** Marks a flow that is already known to the caller as used */
+    void touch(VPNUtils.UDPFlow flow) {
+        flow.mLastSeen = mNow;
+    }
+
+    /**
+     * Adds a flow, replacing any flow with the same key. If the table is full, the flow
+     * closest to expiring is evicted first.
+     * @param timeout time (in milliseconds) after which the flow expires if unused
+     */
+    synchronized void put(VPNUtils.UDPFlow flow, long timeout) {
+        flow.mTimeoutTicks = Math.max(1, Math.min(timeout / TICK_INTERVAL, WHEEL_SLOTS - 1));
+        flow.mLastSeen = mNow;
+
+        VPNUtils.UDPFlow previous = mFlows.put(flow.mKey, flow);
+        if (previous != null) {
+            unschedule(previous);
+            previous.close();
+        } else if (mFlows.size() > mMaxFlows) {
+            evictOne();
+        }
+        schedule(flow, mTick + flow.mTimeoutTicks);
+    }
+
+    private void schedule(VPNUtils.UDPFlow flow, long tick) {
+        flow.mWheelSlot = (int) (tick % WHEEL_SLOTS);
+        mWheel.get(flow.mWheelSlot).add(flow);
+    }
+
+    private void unschedule(VPNUtils.UDPFlow flow) {
+        mWheel.get(flow.mWheelSlot).remove(flow);
+    }
+
+    /** Evicts the least recently used flow of the slot that expires first */
+    private void evictOne() {
+        for (int i = 1; i <= WHEEL_SLOTS; i++) {
+            ArrayList<VPNUtils.UDPFlow> slot = mWheel.get((int) ((mTick + i) % WHEEL_SLOTS));
+            if (slot.isEmpty())
+                continue;
+
+            int oldest = 0;
+            for (int j = 1; j < slot.size(); j++) {
+                if (slot.get(j).mLastSeen < slot.get(oldest).mLastSeen)
+                    oldest = j;
+            }
+
+            VPNUtils.UDPFlow flow = slot.remove(oldest);
+            mFlows.remove(flow.mKey, flow);
+            flow.close();
+            mEvicted++;
+            return;
+        }
+    }
+
+    /**
+     * Advances the wheel by one tick: expires flows that were not used within their timeout,
+     * and schedules the others again at their new expiry time.
+     */
+    synchronized void tick() {
+        mTick++;
+        mNow = mTick;
+
+        ArrayList<VPNUtils.UDPFlow> slot = mWheel.get((int) (mTick % WHEEL_SLOTS));
+        int count = slot.size();
+        for (int i = 0; i < count; i++) {
+            VPNUtils.UDPFlow flow = slot.get(i);
+            long expiry = flow.mLastSeen + flow.mTimeoutTicks;
+            if (expiry <= mTick) {
+                mFlows.remove(flow.mKey, flow);
+                flow.close();
+                mExpired++;
+            } else {
+                // Used since it was scheduled. Never lands in this same slot again.
+                schedule(flow, expiry);
+            }
+        }
+        slot.subList(0, count).clear();
+    }
+
+    /** Removes all flows, closing their channels */
+    synchronized void clear() {
+        for (VPNUtils.UDPFlow flow : mFlows.values())
+            flow.close();
+        mFlows.clear();
+        for (ArrayList<VPNUtils.UDPFlow> slot : mWheel)
+            slot.clear();
+        mExpired = 0;
+        mEvicted = 0;
+        mUnknownHostDrops.set(0);
+    }
+
+    /** Counts a received packet that does not belong to any flow */
+    void onUnknownHost() {
+        mUnknownHostDrops.incrementAndGet();
+    }
+
+    /** @return number of flows in the table */
+    int size() {
+        return mFlows.size();
+    }
+
+    /** @return number of flows that expired for being idle */
+    synchronized long getExpiredCount() {
+        return mExpired;
+    }
+
+    /** @return number of flows evicted because the table was full */
+    synchronized long getEvictedCount() {
+        return mEvicted;
+    }
+
+    /** @return number of received packets dropped because they belonged to no flow */
+    long getUnknownHostDrops() {
+        return mUnknownHostDrops.get();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TLS sessions of the proxy with the hosts it intercepts. The engines of all upstream
+ * connections come from one client context with a bounded session cache, keyed by the host
+ * and port given to each engine. Repeat connections to a host then resume an earlier session,
+ * by its ID or its session ticket, with an abbreviated handshake.
+ */
+class UpstreamSessions {
+    private static final String TAG = UpstreamSessions.class.getSimpleName();
+
+    private final int mCacheSize;
+    private final int mTimeout;
+
+    /** Created when the first engine is needed */
+    private SSLContext mContext;
+
+    private final AtomicLong mHandshakes = new AtomicLong();
+    private final AtomicLong mResumptions = new AtomicLong();
+
+    /**
+     * @param cacheSize most sessions kept for resumption
+     * @param timeout time (in seconds) a session can be resumed
+     */
+    UpstreamSessions(int cacheSize, int timeout) {
+        mCacheSize = cacheSize;
+        mTimeout = timeout;
+    }
+
+    private synchronized SSLContext getContext() throws GeneralSecurityException {
+        if (mContext == null) {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(mCacheSize);
+            sessions.setSessionTimeout(mTimeout);
+            mContext = context;
+        }
+        return mContext;
+    }
+
+    /**
+     * @param peerHost name or address of the host, sent as SNI if it is a name
+     * @param port port of the host
+     * @return a client-mode engine that resumes the last session with the host, if any
+     */
+    SSLEngine createEngine(String peerHost, int port) throws GeneralSecurityException {
+        SSLEngine engine = getContext().createSSLEngine(peerHost, port);
+        engine.setUseClientMode(true);
+        setUseSessionTickets(engine);
+        return engine;
+    }
+
+    /** Conscrypt, the provider on Android, only asks for session tickets if told to */
+    private static void setUseSessionTickets(SSLEngine engine) {
+        try {
+            engine.getClass().getMethod("setUseSessionTickets", boolean.class).invoke(engine, true);
+        } catch (NoSuchMethodException e) {
+            // Other providers use session tickets by default
+        } catch (Exception e) {
+            ForwarderManager.Logg.w(TAG, "Could not enable session tickets: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Counts a finished handshake
+     * @param session session of the handshake
+     * @param startTime time (in milliseconds since the epoch) the engine was created
+     * @return {@code true} if an earlier session was resumed
+     */
+    boolean onHandshakeDone(SSLSession session, long startTime) {
+        mHandshakes.incrementAndGet();
+
+        // A resumed session was created by an earlier handshake
+        boolean resumed = session.getCreationTime() < startTime;
+        if (resumed)
+            mResumptions.incrementAndGet();
+        return resumed;
+    }
+
+    /** @return number of upstream handshakes finished */
+    long getHandshakeCount() {
+        return mHandshakes.get();
+    }
+
+    /** @return number of upstream handshakes that resumed an earlier session */
+    long getResumptionCount() {
+        return mResumptions.get();
+    }
+}
@@ -19,16 +19,28 @@ package edu.uci.calit2.antmonitor.lib.vpn;
 
 import android.os.Looper;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
+import edu.uci.calit2.antmonitor.lib.util.PacketBuffer;
 
 /**
  * Hosts multiple helper classes used by {@link ForwarderManager}, {@link TCPForwarder}, etc.
  * @author Anastasia Shuba
  */
 class VPNUtils {
+    private static final String TAG = VPNUtils.class.getSimpleName();
+
     /* One byte of the 4 bytes that correspond to broadcast IP: -1 (255) */
     private static final byte BROADCAST_IP_BYTE = -1;
 
@@ -70,6 +82,12 @@ class VPNUtils {
         int mDataOffset;
         int mDataLen;
 
+        /** Pooled buffer backing {@link #mData}, or {@code null} if {@link #mData} is owned */
+        PacketBuffer mBuffer;
+
+        /** View of the data that is not written yet, created on first use */
+        private ByteBuffer mByteBuffer;
+
         public DataWriteToNet(SocketAddress remoteAddress, long ackNum, byte[] data,
                               int dataOffset, int dataLen) {
             mRemoteAddress = remoteAddress;
@@ -78,6 +96,222 @@ class VPNUtils {
             mDataOffset = dataOffset;
             mDataLen = dataLen;
         }
+
+        /**
+         * Creates a write that references (and retains) a pooled packet buffer instead of
+         * copying the payload out of it.
+         */
+        public DataWriteToNet(SocketAddress remoteAddress, long ackNum, PacketBuffer buffer,
+                              int dataOffset, int dataLen) {
+            this(remoteAddress, ackNum, buffer.array(), dataOffset, dataLen);
+            mBuffer = buffer.retain();
+        }
+
+        /**
+         * @return a view of the data that has not been written yet. The same view is returned
+         * on every call, so its position keeps track of partial writes.
+         */
+        ByteBuffer asByteBuffer() {
+            if (mByteBuffer == null)
+                mByteBuffer = ByteBuffer.wrap(mData, mDataOffset, mDataLen);
+            return mByteBuffer;
+        }
+
+        /** @return {@code true} if {@link #asByteBuffer()} was already called */
+        boolean hasByteBuffer() {
+            return mByteBuffer != null;
+        }
+
+        /**
+         * Updates {@link #mDataOffset} and {@link #mDataLen} to reflect the progress of writing
+         * {@link #asByteBuffer()}
+         * @return {@code true} if all data was written
+         */
+        boolean updateProgress() {
+            if (mByteBuffer != null) {
+                mDataOffset = mByteBuffer.position();
+                mDataLen = mByteBuffer.remaining();
+            }
+            return mDataLen == 0;
+        }
+
+        /** Releases the backing packet buffer, if any. Safe to call more than once. */
+        void release() {
+            if (mBuffer != null) {
+                mBuffer.release();
+                mBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Queue of {@link DataWriteToNet} waiting to be written to one channel. Any thread may
+     * {@link #offer(DataWriteToNet)} data without taking a lock, while only the SelectorNetIO
+     * thread consumes it. The queue is attached to the channel's {@link SelectionKey}, so the
+     * consumer does not need to look it up.
+     */
+    static class WriteQueue {
+        private final ConcurrentLinkedQueue<DataWriteToNet> mQueue =
+                new ConcurrentLinkedQueue<DataWriteToNet>();
+
+        /** Data that was taken off the queue but is not fully written yet. Consumer only. */
+        private final ArrayDeque<DataWriteToNet> mTaken = new ArrayDeque<DataWriteToNet>();
+
+        /** Number of queued bytes that have not been written yet */
+        private final AtomicInteger mQueuedBytes = new AtomicInteger();
+
+        /** Number of queued writes that may reference a pooled buffer rather than a copy */
+        static final int ZERO_COPY_LIMIT = 4;
+
+        /** Number of queued writes that reference a pooled buffer */
+        private final AtomicInteger mPooledWrites = new AtomicInteger();
+
+        /** Called by producers to queue data */
+        void offer(DataWriteToNet data) {
+            mQueuedBytes.addAndGet(data.mDataLen);
+            mQueue.offer(data);
+        }
+
+        /**
+         * Called by producers to queue a payload held by a pooled buffer. The write references
+         * the buffer while fewer than {@link #ZERO_COPY_LIMIT} queued writes do. Otherwise, the
+         * payload is copied into an array of its own length, so that a backlog of segments does
+         * not hold on to buffers of the pool, which are much larger than most segments.
+         * @param buffer holds the payload. It may be released once this method returns.
+         */
+        void offer(SocketAddress remoteAddress, long ackNum, PacketBuffer buffer, int dataOffset,
+                   int dataLen) {
+            if (mPooledWrites.get() < ZERO_COPY_LIMIT) {
+                mPooledWrites.incrementAndGet();
+                offer(new DataWriteToNet(remoteAddress, ackNum, buffer, dataOffset, dataLen));
+                return;
+            }
+
+            byte[] data = Arrays.copyOfRange(buffer.array(), dataOffset, dataOffset + dataLen);
+            offer(new DataWriteToNet(remoteAddress, ackNum, data, 0, dataLen));
+        }
+
+        /** Called by the consumer after writing {@code bytes} of the queued data */
+        void onWritten(long bytes) {
+            mQueuedBytes.addAndGet((int) -bytes);
+        }
+
+        /** @return number of queued bytes that have not been written yet */
+        int getQueuedBytes() {
+            return mQueuedBytes.get();
+        }
+
+        /** @return the next data to write without removing it, or {@code null} if empty */
+        synchronized DataWriteToNet peek() {
+            if (mTaken.isEmpty()) {
+                DataWriteToNet data = mQueue.poll();
+                if (data != null)
+                    mTaken.add(data);
+            }
+            return mTaken.peekFirst();
+        }
+
+        /** @return the next data to write, or {@code null} if empty */
+        synchronized DataWriteToNet poll() {
+            peek();
+            DataWriteToNet data = mTaken.pollFirst();
+            if (data != null && data.mBuffer != null)
+                mPooledWrites.decrementAndGet();
+            return data;
+        }
+
+        /**
+         * Fills {@code out} with the next data to write, without removing it from the queue
+         * @param out array to fill
+         * @return the number of elements put into {@code out}
+         */
+        synchronized int peek(DataWriteToNet[] out) {
+            while (mTaken.size() < out.length) {
+                DataWriteToNet data = mQueue.poll();
+                if (data == null)
+                    break;
+                mTaken.add(data);
+            }
+
+            int count = 0;
+            for (DataWriteToNet data : mTaken) {
+                if (count == out.length)
+                    break;
+                out[count++] = data;
+            }
+            return count;
+        }
+
+        synchronized boolean isEmpty() {
+            return mTaken.isEmpty() && mQueue.isEmpty();
+        }
+
+        /**
+         * Drops all queued data, releasing any packet buffers it references. May be called from
+         * any thread: consumers hold this queue's monitor while working on taken data.
+         */
+        synchronized void clear() {
+            for (DataWriteToNet data : mTaken)
+                data.release();
+            mTaken.clear();
+
+            DataWriteToNet data;
+            while ((data = mQueue.poll()) != null)
+                data.release();
+            mQueuedBytes.set(0);
+            mPooledWrites.set(0);
+        }
+    }
+
+    /** A UDP flow of an app, see {@link ForwarderManager#mActiveUDPFlows} and
+     * {@link ForwarderManager#mConnectedUDPFlows} */
+    static class UDPFlow {
+        /** Key of the flow in its {@link UDPNatTable} */
+        final long mKey;
+
+        /** Address and port of the app that owns the flow */
+        final Tuple mSource;
+
+        /** Address and port the app sends to */
+        final InetSocketAddress mRemoteAddress;
+
+        /** Tick of {@link UDPNatTable} in which the flow was last used */
+        volatile long mLastSeen;
+
+        /** Number of ticks after which the flow expires if unused */
+        long mTimeoutTicks;
+
+        /** Slot of the timer wheel the flow is scheduled in */
+        int mWheelSlot;
+
+        /** Channel connected to {@link #mRemoteAddress} that only carries this flow, or
+         * {@code null} if the flow goes through the shared UDP channel */
+        DatagramChannel mChannel;
+
+        /** Data waiting to be written to {@link #mChannel} */
+        WriteQueue mWriteQueue;
+
+        /** The selector that polls {@link #mChannel} */
+        ForwarderManager.SelectorNetIO mSelectorNetIO;
+
+        UDPFlow(long key, Tuple source, InetSocketAddress remoteAddress) {
+            mKey = key;
+            mSource = source;
+            mRemoteAddress = remoteAddress;
+        }
+
+        /** Closes the channel of the flow, if any, and drops the data waiting to be written */
+        void close() {
+            if (mChannel == null)
+                return;
+
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                ForwarderManager.Logg.e(TAG, "Exception closing UDP channel: " + e.getMessage());
+            }
+            mWriteQueue.clear();
+        }
     }
 
     /**
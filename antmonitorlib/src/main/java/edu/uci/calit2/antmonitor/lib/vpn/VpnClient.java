@@ -119,6 +119,12 @@ public class VpnClient extends android.net.VpnService {
         VpnClient.excludedApps.clear();
     }
 
+    /** @return the queue of packets of the given direction waiting to be consumed */
+    static PacketLogQueue getPacketLogQueue(PacketProcessor.TrafficType type) {
+        return type == PacketProcessor.TrafficType.INCOMING_PACKETS ?
+                mIncDatagramQueue : mOutDatagramQueue;
+    }
+
     /**
      * Delay in milliseconds before attempting to reconnect.
      * This is increased for every attempt up till 1 day.
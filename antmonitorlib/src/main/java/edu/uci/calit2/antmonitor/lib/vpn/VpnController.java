@@ -27,6 +27,7 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 
 import java.io.IOException;
@@ -35,6 +36,9 @@ import java.util.List;
 
 import edu.uci.calit2.antmonitor.lib.AntMonitorActivity;
 import edu.uci.calit2.antmonitor.lib.logging.PacketConsumer;
+import edu.uci.calit2.antmonitor.lib.logging.PacketLogQueue;
+import edu.uci.calit2.antmonitor.lib.logging.PacketProcessor.TrafficType;
+import edu.uci.calit2.antmonitor.lib.logging.TrafficLogFiles;
 
 /**
  * A helper class meant to be used by Activities that are responsible for starting/stopping
@@ -215,6 +219,17 @@ public class VpnController {
         ForwarderManager.setSSLBumpingEnabled(context, enabled);
     }
 
+    /**
+     * Forges the certificates of intercepted hosts with ECDSA P-256 keys instead of RSA keys.
+     * ECDSA keys are much cheaper to generate, which shortens the first handshake with each
+     * new host. Certificates forged before keep their keys until they expire.
+     * @param enabled pass {@code true} to use ECDSA keys, and
+     * pass {@code false} otherwise. The default is {@code false}.
+     */
+    public static void setSSLEcdsaCertificatesEnabled(boolean enabled) {
+        ForwarderManager.SSL_ECDSA_CERTS_ENABLED = enabled;
+    }
+
     /**
      * @param enabled enabled pass {@code true} to enable DNS cache, and
      * pass {@code false} otherwise
@@ -223,13 +238,192 @@ public class VpnController {
         ForwarderManager.KEEP_DNS_CACHE = enabled;
     }
 
+    /**
+     * Answers DNS queries from a cache of previous answers, within their TTLs, instead of
+     * sending them to the network. Identical queries sent at the same time only go out once.
+     * This is separate from the host name lookup of {@link #setDnsCacheEnabled(boolean)}.
+     * @param enabled pass {@code true} to answer DNS queries from the cache, and
+     * pass {@code false} otherwise. The default is {@code false}.
+     */
+    public static void setDnsAnswerCacheEnabled(boolean enabled) {
+        ForwarderManager.DNS_ANSWER_CACHE_ENABLED = enabled;
+    }
+
+    /**
+     * Forwards each UDP flow over a socket of its own, connected to the flow's destination,
+     * instead of sharing one socket between all UDP traffic. A busy flow then cannot hold up
+     * others, such as DNS, at the cost of one socket per flow. Broadcasts always use the
+     * shared socket. Takes effect on the next connect.
+     * @param enabled pass {@code true} to give each UDP flow its own socket, and
+     * pass {@code false} otherwise. The default is {@code false}.
+     */
+    public static void setUDPConnectedChannelsEnabled(boolean enabled) {
+        ForwarderManager.UDP_CONNECTED_CHANNELS = enabled;
+    }
+
+    /**
+     * Sets the number of threads used to read from and write to network sockets. Connections
+     * are spread across the threads by source port. Using more than one thread lets
+     * forwarding scale across the cores of the device. Takes effect on the next connect.
+     * @param numThreads the number of threads, at least 1. The default is 1.
+     * @throws IllegalArgumentException if {@code numThreads} is less than 1
+     */
+    public static void setNumSelectorThreads(int numThreads) throws IllegalArgumentException {
+        ForwarderManager.setNumSelectorThreads(numThreads);
+    }
+
+    /**
+     * Logs packets of both directions to one pcapng file, with an interface per direction,
+     * instead of to one file per direction. Packets refer to their app by a compact ID, which
+     * the file maps to the package name and version of the app, instead of carrying them in a
+     * comment. Takes effect on the next log file.
+     * @param enabled pass {@code true} to log to one file, and
+     * pass {@code false} otherwise. The default is {@code false}.
+     */
+    public static void setInterleavedLogFilesEnabled(boolean enabled) {
+        TrafficLogFiles.setInterleavedEnabled(enabled);
+    }
+
+    /**
+     * Compresses log files as packets are logged, on the threads of the
+     * {@link PacketConsumer}s. Files are written as gzip streams that are flushed about every
+     * second, also while no packets arrive, so they can be read up to about the last second of
+     * logging even if they were not closed. Only available from
+     * Android 4.4 on; ignored on older releases. Takes effect on the next log file.
+     * @param enabled pass {@code true} to compress log files, and
+     * pass {@code false} otherwise. The default is {@code false}.
+     */
+    public static void setLogFileCompressionEnabled(boolean enabled) {
+        TrafficLogFiles.setCompressionEnabled(enabled);
+    }
+
+    /**
+     * Sets what happens to packets when a {@link PacketConsumer} falls behind and its queue
+     * is full. Forwarding never waits for consumers, so packets are dropped either way.
+     * @param policy the policy of both directions. The default is
+     * {@link PacketLogQueue.OverflowPolicy#DROP_NEWEST}.
+     */
+    public static void setPacketLogOverflowPolicy(PacketLogQueue.OverflowPolicy policy) {
+        VpnClient.getPacketLogQueue(TrafficType.INCOMING_PACKETS).setOverflowPolicy(policy);
+        VpnClient.getPacketLogQueue(TrafficType.OUTGOING_PACKETS).setOverflowPolicy(policy);
+    }
+
+    /** @return number of packets of the given direction dropped before reaching the
+     * {@link PacketConsumer} */
+    public static long getPacketLogDrops(TrafficType type) {
+        return VpnClient.getPacketLogQueue(type).getDropCount();
+    }
+
+    /** @return most packets of the given direction that waited for the
+     * {@link PacketConsumer} at once */
+    public static int getPacketLogHighWaterMark(TrafficType type) {
+        return VpnClient.getPacketLogQueue(type).getHighWaterMark();
+    }
+
+    /**
+     * @return {@code true} while the {@link PacketConsumer} of the given direction is falling
+     * behind, and packets may soon be dropped. Consumers can do less work per packet meanwhile.
+     */
+    public static boolean isPacketLogBackpressured(TrafficType type) {
+        return VpnClient.getPacketLogQueue(type).isBackpressured();
+    }
+
+    /** @return number of UDP flows currently tracked by the VPN */
+    public static int getUDPFlowCount() {
+        return ForwarderManager.getUDPFlowCount();
+    }
+
+    /**
+     * @return number of UDP flows removed since the VPN started, either for being idle or to
+     * keep the number of flows bounded
+     */
+    public static long getUDPFlowEvictions() {
+        return ForwarderManager.getUDPFlowEvictions();
+    }
+
+    /**
+     * @return number of UDP packets received from the network that were dropped because they
+     * did not belong to any flow
+     */
+    public static long getUDPUnknownHostDrops() {
+        return ForwarderManager.getUDPUnknownHostDrops();
+    }
+
+    /**
+     * @return number of packets destined to the apps that were dropped since the VPN started,
+     * either because they arrived faster than they could be written to the VPN interface or
+     * because writing them failed
+     */
+    public static long getTunWriteDrops() {
+        return ForwarderManager.getTunWriteDrops();
+    }
+
+    /** @return number of DNS queries answered from the DNS answer cache since the VPN started */
+    public static long getDnsAnswerCacheHits() {
+        return ForwarderManager.mDNSAnswerCache.getHitCount();
+    }
+
+    /** @return number of DNS queries that were not found in the DNS answer cache */
+    public static long getDnsAnswerCacheMisses() {
+        return ForwarderManager.mDNSAnswerCache.getMissCount();
+    }
+
+    /**
+     * @return number of DNS queries that were not sent, but answered with the response to an
+     * identical query sent at the same time
+     */
+    public static long getDnsCoalescedQueries() {
+        return ForwarderManager.mDNSAnswerCache.getCoalescedCount();
+    }
+
+    /** @return number of intercepted TLS connections set up since the VPN started */
+    public static long getTLSSetupCount() {
+        return ForwarderManager.getTLSSetupCount();
+    }
+
+    /**
+     * @return average time (in microseconds) the setup of an intercepted TLS connection waited
+     * for a free thread
+     */
+    public static long getTLSSetupAverageWait() {
+        return ForwarderManager.getTLSSetupAverageWait();
+    }
+
+    /** @return average time (in microseconds) the setup of an intercepted TLS connection took */
+    public static long getTLSSetupAverageTime() {
+        return ForwarderManager.getTLSSetupAverageTime();
+    }
+
+    /** @return number of TLS handshakes the proxy finished with intercepted hosts */
+    public static long getTLSUpstreamHandshakes() {
+        return TLSProxyServer.upstreamSessions.getHandshakeCount();
+    }
+
+    /**
+     * @return number of TLS handshakes with intercepted hosts that resumed an earlier session
+     * instead of doing a full handshake
+     */
+    public static long getTLSUpstreamResumptions() {
+        return TLSProxyServer.upstreamSessions.getResumptionCount();
+    }
+
     /**
      * Lookup hostname in DNS cache
      * @param address IP address to resolve
      * @return Resolved IP address
      */
     public static String retrieveHostname(String address) {
-        return ForwarderManager.mDNScache.get(address);
+        return ForwarderManager.mHostnameIndex.getHostname(address, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Lookup the CNAME chain of an address in DNS cache
+     * @param address IP address to resolve
+     * @return the names that led to the address, starting with the host name returned by
+     * {@link #retrieveHostname(String)}, or {@code null} if the address is not known
+     */
+    public static String[] retrieveCnameChain(String address) {
+        return ForwarderManager.mHostnameIndex.getCnameChain(address, SystemClock.elapsedRealtime());
     }
 
     /** @return {@code true} if SSL bumping is currently enabled, and {@code false} otherwise */
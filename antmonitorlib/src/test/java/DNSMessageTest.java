@@ -0,0 +1,108 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.uci.calit2.antmonitor.lib.util.DNSMessage;
+import edu.uci.calit2.antmonitor.lib.util.UDPPacket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DNSMessageTest {
+
+    // Response to WWW.example.com A: a CNAME to cdn.net (not compressed), then an A and an
+    // AAAA record of cdn.net (compressed)
+    private String DNSResponse = "12348180000100030000000003575757076578616d706c6503636f6d0000010001" +
+            "c00c000500010000025800090363646e036e657400" +
+            "c02d00010001000000" + "1e000401020304" +
+            "c02d001c000100000e10001000000000000000000000000000000001";
+
+    // The name of the question points to itself
+    private String DNSPointerLoop = "123481800001000000000000c00c00010001";
+
+    private byte[] DNSBytes;
+
+    @Before
+    public void setUp() {
+        DNSBytes = new BigInteger(DNSResponse, 16).toByteArray();
+    }
+
+    @Test
+    public void parse_Response_ReturnsTrue() {
+        DNSMessage message = new DNSMessage();
+        assertTrue(message.parse(DNSBytes, 0, DNSBytes.length));
+        assertEquals(0x1234, message.getId());
+        assertTrue(message.isResponse());
+        assertEquals(DNSMessage.RCODE_NOERROR, message.getRcode());
+        assertEquals(3, message.getCount(DNSMessage.SECTION_ANSWER));
+    }
+
+    @Test
+    public void nextRecord_Response_ReturnsTrue() {
+        DNSMessage message = new DNSMessage();
+        message.parse(DNSBytes, 0, DNSBytes.length);
+
+        assertTrue(message.nextRecord());
+        assertEquals(DNSMessage.SECTION_QUESTION, message.getSection());
+        assertEquals("www.example.com", message.readName(message.getNameOffset()));
+        int question = message.getNameOffset();
+
+        assertTrue(message.nextRecord());
+        assertEquals(DNSMessage.TYPE_CNAME, message.getType());
+        assertEquals(600, message.getTTL());
+        assertTrue(message.nameEquals(question, message.getNameOffset()));
+        assertEquals("cdn.net", message.readName(message.getRDataOffset()));
+        int alias = message.getRDataOffset();
+
+        assertTrue(message.nextRecord());
+        assertEquals(DNSMessage.TYPE_A, message.getType());
+        assertEquals(30, message.getTTL());
+        assertTrue(message.nameEquals(alias, message.getNameOffset()));
+
+        assertTrue(message.nextRecord());
+        assertEquals(DNSMessage.TYPE_AAAA, message.getType());
+        assertEquals(16, message.getRDataLength());
+
+        assertFalse(message.nextRecord());
+        assertTrue(message.isComplete());
+    }
+
+    @Test
+    public void readName_PointerLoop_ReturnsNull() {
+        byte[] bytes = new BigInteger(DNSPointerLoop, 16).toByteArray();
+        DNSMessage message = new DNSMessage();
+        message.parse(bytes, 0, bytes.length);
+        assertTrue(message.nextRecord());
+        assertNull(message.readName(message.getNameOffset()));
+    }
+
+    @Test
+    public void mapIPtoHostName_CnameChain_ReturnsTrue() {
+        Map<String, String> ipToHostMap = new HashMap<>();
+        UDPPacket.mapIPtoHostName(ipToHostMap, DNSBytes);
+        assertEquals(1, ipToHostMap.size());
+        assertEquals("www.example.com", ipToHostMap.get("1.2.3.4"));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+import android.os.Build;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import edu.uci.calit2.antmonitor.lib.util.PcapngFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks compressed pcapng files, and measures the speed and ratio of compression on recorded
+ * traces. The benchmark only runs when pcapng traces are given, e.g.
+ * {@code -Dpcapng.traces=/path/to/trace.pcapng,/path/to/dir}
+ */
+public class PcapngCompressionTest {
+    private static final int BENCHMARK_ROUNDS = 5;
+
+    // SHB fields up to and including the section length, which compressed files leave unset
+    private static final int SHB_FIXED_LENGTH = 24;
+
+    /**
+     * The android.jar of unit tests reports API level 0, so pretend to run on Android 4.4 to
+     * write compressed files. Where that is not possible, tests writing them are skipped.
+     */
+    @Before
+    public void setUp() {
+        if (PcapngFile.isCompressionSupported())
+            return;
+
+        try {
+            Field sdkInt = Build.VERSION.class.getField("SDK_INT");
+            if (Modifier.isFinal(sdkInt.getModifiers())) {
+                Field modifiers = Field.class.getDeclaredField("modifiers");
+                modifiers.setAccessible(true);
+                modifiers.setInt(sdkInt, sdkInt.getModifiers() & ~Modifier.FINAL);
+            }
+            sdkInt.setInt(null, Build.VERSION_CODES.KITKAT);
+        } catch (ReflectiveOperationException e) {
+            // Newer JVMs do not let final fields be changed
+        }
+    }
+
+    @Test
+    public void compressedFile_Decompressed_MatchesUncompressedFile() throws IOException {
+        List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            byte[] packet = new byte[40 + (i * 37) % 1460];
+            for (int j = 0; j < packet.length; j++)
+                packet[j] = (byte) (j % 64 == 0 ? i : j);
+            packets.add(packet);
+        }
+
+        File raw = writeFile(packets, false);
+        File compressed = writeFile(packets, true);
+
+        byte[] rawBytes = readFully(new FileInputStream(raw));
+        byte[] decompressed = readFully(new GZIPInputStream(new FileInputStream(compressed)));
+        assertEquals(rawBytes.length, decompressed.length);
+        assertEquals(-1, ByteBuffer.wrap(decompressed).getLong(16));
+        assertArrayEquals(Arrays.copyOfRange(rawBytes, SHB_FIXED_LENGTH, rawBytes.length),
+                Arrays.copyOfRange(decompressed, SHB_FIXED_LENGTH, decompressed.length));
+
+        raw.delete();
+        compressed.delete();
+    }
+
+    @Test
+    public void benchmark_RecordedTraces() throws IOException {
+        String traces = System.getProperty("pcapng.traces");
+        Assume.assumeTrue(traces != null);
+
+        List<byte[]> packets = new ArrayList<>();
+        for (String path : traces.split(",")) {
+            File file = new File(path);
+            File[] files = file.isDirectory() ? file.listFiles() : new File[] { file };
+            for (File trace : files)
+                readPackets(trace, packets);
+        }
+        Assume.assumeTrue(!packets.isEmpty());
+
+        long packetBytes = 0;
+        for (byte[] packet : packets)
+            packetBytes += packet.length;
+
+        for (boolean compressed : new boolean[] { false, true }) {
+            long best = Long.MAX_VALUE;
+            long fileSize = 0;
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+                long start = System.nanoTime();
+                File file = writeFile(packets, compressed);
+                best = Math.min(best, System.nanoTime() - start);
+                fileSize = file.length();
+                file.delete();
+            }
+
+            System.out.println(String.format("%s: %d packets, %.1f MB in %.1f ms (%.1f MB/s), " +
+                            "file %.1f MB (ratio %.2f)", compressed ? "compressed" : "raw",
+                    packets.size(), packetBytes / 1e6, best / 1e6,
+                    packetBytes / 1e6 / (best / 1e9), fileSize / 1e6,
+                    (double) packetBytes / fileSize));
+        }
+    }
+
+    private static File writeFile(List<byte[]> packets, boolean compressed) throws IOException {
+        Assume.assumeTrue(!compressed || PcapngFile.isCompressionSupported());
+        File file = File.createTempFile("pcapng", compressed ? ".pcapng.gz" : ".pcapng");
+        PcapngFile pcapng = new PcapngFile(file, "benchmark", "", "", "", "", "", "", "", 0, 0,
+                "", 0, (byte) 3, compressed);
+
+        long timestamp = 0;
+        for (byte[] packet : packets)
+            pcapng.appendEnhancedPacketBlock(timestamp++, packet.length, packet.length, packet,
+                    "com.example.app#1.0");
+
+        pcapng.renameAndEndFile(file);
+        return file;
+    }
+
+    /** Adds the packets of the Enhanced Packet Blocks of a pcapng file, in either byte order */
+    private static void readPackets(File trace, List<byte[]> packets) throws IOException {
+        InputStream in = new FileInputStream(trace);
+        if (trace.getName().endsWith(".gz"))
+            in = new GZIPInputStream(in);
+        ByteBuffer blocks = ByteBuffer.wrap(readFully(in));
+
+        while (blocks.remaining() >= 12) {
+            int start = blocks.position();
+            int type = blocks.getInt(start);
+            if (type == 0x0A0D0D0A) {
+                // The byte order mark of the section tells how to read it
+                blocks.order(ByteOrder.BIG_ENDIAN);
+                if (blocks.getInt(start + 8) != 0x1A2B3C4D)
+                    blocks.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            int length = blocks.getInt(start + 4);
+            if (length < 12 || length > blocks.remaining())
+                break;
+
+            if (type == 6) {
+                int capturedLength = blocks.getInt(start + 20);
+                byte[] packet = new byte[capturedLength];
+                blocks.position(start + 28);
+                blocks.get(packet);
+                packets.add(packet);
+            }
+            blocks.position(start + length);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        try {
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
@@ -185,6 +185,36 @@ public class TCPv4Test {
         assertEquals(32, headerLength);
     }
 
+    @Test
+    public void extractTCPv4Window_ByteArrayWithOffset_ReturnsTrue() {
+        int window = TCPPacket.extractTCPv4Window(TCPBytesWithOffset, OFFSET_VALUE);
+        assertEquals(14600, window);
+    }
+
+    @Test
+    public void extractTCPv4WindowScale_ByteArray_ReturnsTrue() {
+        int windowScale = TCPPacket.extractTCPv4WindowScale(TCPBytes);
+        assertEquals(7, windowScale);
+    }
+
+    @Test
+    public void extractTCPv4MSS_ByteArrayWithOffset_ReturnsTrue() {
+        int mss = TCPPacket.extractTCPv4MSS(TCPBytesWithOffset, OFFSET_VALUE);
+        assertEquals(1460, mss);
+    }
+
+    @Test
+    public void isSackPermitted_ByteArray_ReturnsTrue() {
+        boolean sackPermitted = TCPPacket.isSackPermitted(TCPBytes);
+        assertEquals(true, sackPermitted);
+    }
+
+    @Test
+    public void extractTCPv4Timestamp_ByteArray_ReturnsTrue() {
+        long timestamp = TCPPacket.extractTCPv4Timestamp(TCPBytes);
+        assertEquals(-1, timestamp);
+    }
+
     @Test
     public void calculateChecksum_ReturnsTrue() {
         fail("Not yet implemented");
@@ -0,0 +1,169 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.logging;
+
+import org.junit.Test;
+
+import edu.uci.calit2.antmonitor.lib.util.PacketBuffer;
+import edu.uci.calit2.antmonitor.lib.util.PacketBufferPool;
+import edu.uci.calit2.antmonitor.lib.util.PacketDumpInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PacketLogQueueTest {
+
+    private static final int CAPACITY = 8;
+
+    private static PacketDumpInfo[] dumps(int count) {
+        PacketDumpInfo[] dumps = new PacketDumpInfo[count];
+        for (int i = 0; i < count; i++)
+            dumps[i] = new PacketDumpInfo(new byte[20], new PacketAnnotation());
+        return dumps;
+    }
+
+    /** Gets the next dump without waiting for the timeout of {@link PacketLogQueue#get()} */
+    private static PacketDumpInfo take(PacketLogQueue queue) throws InterruptedException {
+        return queue.getSize() == 0 ? null : queue.get();
+    }
+
+    @Test
+    public void put_FullQueueDropNewest_KeepsFirstDumps() throws InterruptedException {
+        PacketLogQueue queue = new PacketLogQueue(CAPACITY);
+        PacketDumpInfo[] dumps = dumps(CAPACITY + 3);
+        for (int i = 0; i < dumps.length; i++)
+            assertEquals(i < CAPACITY, queue.put(dumps[i]));
+
+        assertEquals(3, queue.getDropCount());
+        for (int i = 0; i < CAPACITY; i++)
+            assertSame(dumps[i], take(queue));
+        assertNull(take(queue));
+    }
+
+    @Test
+    public void put_FullQueueDropOldest_KeepsLatestDumps() throws InterruptedException {
+        PacketLogQueue queue = new PacketLogQueue(CAPACITY);
+        queue.setOverflowPolicy(PacketLogQueue.OverflowPolicy.DROP_OLDEST);
+        PacketDumpInfo[] dumps = dumps(CAPACITY + 3);
+        for (PacketDumpInfo dump : dumps)
+            assertTrue(queue.put(dump));
+
+        assertEquals(3, queue.getDropCount());
+        assertEquals(CAPACITY, queue.getSize());
+        for (int i = 3; i < dumps.length; i++)
+            assertSame(dumps[i], take(queue));
+        assertNull(take(queue));
+    }
+
+    @Test
+    public void put_DropOldest_ReleasesDroppedBuffer() {
+        PacketBufferPool pool = new PacketBufferPool(1, 64);
+        PacketBuffer buffer = pool.acquire();
+        buffer.setLength(20);
+
+        PacketLogQueue queue = new PacketLogQueue(1);
+        queue.setOverflowPolicy(PacketLogQueue.OverflowPolicy.DROP_OLDEST);
+        queue.put(buffer, new PacketAnnotation());
+        buffer.release();
+        assertEquals(0, pool.getAvailable());
+
+        queue.put(dumps(1)[0]);
+        assertEquals(1, pool.getAvailable());
+    }
+
+    @Test
+    public void put_SampleUnderBackpressure_KeepsOneInSampleRate() {
+        PacketLogQueue queue = new PacketLogQueue(CAPACITY);
+        queue.setOverflowPolicy(PacketLogQueue.OverflowPolicy.SAMPLE);
+
+        // Backpressure starts at three quarters full
+        int high = CAPACITY * 3 / 4;
+        for (PacketDumpInfo dump : dumps(high))
+            assertTrue(queue.put(dump));
+        assertTrue(queue.isBackpressured());
+        assertEquals(0, queue.getDropCount());
+
+        int kept = 0;
+        for (PacketDumpInfo dump : dumps(PacketLogQueue.SAMPLE_RATE * 2)) {
+            if (queue.put(dump))
+                kept++;
+        }
+        assertEquals(2, kept);
+        assertEquals(high + 2, queue.getSize());
+        assertEquals(PacketLogQueue.SAMPLE_RATE * 2 - 2, queue.getDropCount());
+
+        // Once full, even the sampled dump is dropped
+        for (PacketDumpInfo dump : dumps(PacketLogQueue.SAMPLE_RATE))
+            assertFalse(queue.put(dump));
+        assertEquals(CAPACITY, queue.getSize());
+        assertEquals(PacketLogQueue.SAMPLE_RATE * 3 - 2, queue.getDropCount());
+    }
+
+    @Test
+    public void get_DownToHalfEmpty_EndsBackpressure() throws InterruptedException {
+        PacketLogQueue queue = new PacketLogQueue(CAPACITY);
+        for (PacketDumpInfo dump : dumps(CAPACITY * 3 / 4))
+            queue.put(dump);
+        assertTrue(queue.isBackpressured());
+
+        while (queue.getSize() > CAPACITY / 2 + 1)
+            take(queue);
+        assertTrue(queue.isBackpressured());
+        take(queue);
+        assertFalse(queue.isBackpressured());
+    }
+
+    @Test
+    public void getHighWaterMark_AfterDrain_KeepsMostQueued() throws InterruptedException {
+        PacketLogQueue queue = new PacketLogQueue(CAPACITY);
+        for (PacketDumpInfo dump : dumps(5))
+            queue.put(dump);
+        while (take(queue) != null) {
+            // Drain
+        }
+        for (PacketDumpInfo dump : dumps(3))
+            queue.put(dump);
+
+        assertEquals(5, queue.getHighWaterMark());
+
+        // Dropped dumps do not count
+        for (PacketDumpInfo dump : dumps(CAPACITY * 2))
+            queue.put(dump);
+        assertEquals(CAPACITY, queue.getHighWaterMark());
+    }
+
+    @Test
+    public void putAndGet_PastEndOfRing_KeepsOrder() throws InterruptedException {
+        PacketLogQueue queue = new PacketLogQueue(CAPACITY);
+        PacketDumpInfo[] dumps = dumps(CAPACITY * 3);
+        int next = 0;
+        for (int i = 0; i < dumps.length; i++) {
+            assertTrue(queue.put(dumps[i]));
+            // Keep a few dumps queued so that the head and tail wrap at different times
+            if (queue.getSize() > 3)
+                assertSame(dumps[next++], take(queue));
+        }
+        while (next < dumps.length)
+            assertSame(dumps[next++], take(queue));
+        assertNull(take(queue));
+        assertEquals(0, queue.getDropCount());
+    }
+}
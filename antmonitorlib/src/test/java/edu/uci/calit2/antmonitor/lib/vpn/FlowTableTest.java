@@ -0,0 +1,145 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FlowTableTest {
+
+    /** Number of slots of a table created for 8 flows */
+    private static final int CAPACITY = 16;
+
+    /** @return {@code count} keys whose home slot is {@code slot} */
+    private static List<Long> keysWithHome(int slot, int count) {
+        List<Long> keys = new ArrayList<>(count);
+        for (int ip = 1; keys.size() < count; ip++) {
+            long key = FlowTable.key(IpDatagram.UDP, ip, 53);
+            if ((FlowTable.hash(key) & (CAPACITY - 1)) == slot)
+                keys.add(key);
+        }
+        return keys;
+    }
+
+    @Test
+    public void remove_MiddleOfWrappedProbeChain_KeepsOtherFlows() {
+        // a, b and c probe from the last slot around to the start of the table, where d lives
+        List<Long> last = keysWithHome(CAPACITY - 1, 3);
+        long a = last.get(0), b = last.get(1), c = last.get(2);
+        long d = keysWithHome(0, 1).get(0);
+
+        FlowTable<String> table = new FlowTable<>(8);
+        table.put(a, "a");
+        table.put(b, "b");
+        table.put(c, "c");
+        table.put(d, "d");
+
+        assertEquals("b", table.remove(b));
+        assertNull(table.get(b));
+        assertEquals("a", table.get(a));
+        assertEquals("c", table.get(c));
+        assertEquals("d", table.get(d));
+        assertEquals(3, table.size());
+
+        assertEquals("a", table.remove(a));
+        assertEquals("c", table.get(c));
+        assertEquals("d", table.get(d));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void remove_OtherValue_KeepsFlow() {
+        FlowTable<String> table = new FlowTable<>(8);
+        long key = FlowTable.key(IpDatagram.TCP, 0, 1234);
+        table.put(key, "new");
+
+        assertEquals(false, table.remove(key, "old"));
+        assertEquals("new", table.get(key));
+        assertEquals(true, table.remove(key, "new"));
+        assertNull(table.get(key));
+    }
+
+    @Test
+    public void put_PastCapacity_ResizesAndKeepsFlows() {
+        FlowTable<Integer> table = new FlowTable<>(8);
+        for (int i = 0; i < 1000; i++)
+            table.put(FlowTable.key(IpDatagram.UDP, i, i), i);
+
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(Integer.valueOf(i), table.get(FlowTable.key(IpDatagram.UDP, i, i)));
+    }
+
+    @Test
+    public void putAndRemove_Random_MatchesHashMap() {
+        FlowTable<Long> table = new FlowTable<>(8);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        // Few distinct keys, so that removals often hit probe chains
+        for (int i = 0; i < 100000; i++) {
+            long key = FlowTable.key(IpDatagram.UDP, random.nextInt(64), random.nextInt(4));
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, key), table.put(key, key));
+            } else {
+                assertEquals(expected.remove(key), table.remove(key));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (Map.Entry<Long, Long> entry : expected.entrySet())
+            assertEquals(entry.getValue(), table.get(entry.getKey()));
+    }
+
+    @Test
+    public void evictIdle_AfterResize_KeepsRecentlyUsedFlows() {
+        FlowTable<Integer> table = new FlowTable<>(8);
+        for (int i = 0; i < 100; i++)
+            table.put(FlowTable.key(IpDatagram.UDP, i, i), i);
+
+        table.tick();
+        table.tick();
+        for (int i = 0; i < 100; i += 2)
+            table.get(FlowTable.key(IpDatagram.UDP, i, i));
+
+        final List<Integer> evicted = new ArrayList<>();
+        int count = table.evictIdle(1, new FlowTable.EvictionListener<Integer>() {
+            @Override
+            public void onEvicted(long key, Integer value) {
+                evicted.add(value);
+            }
+        });
+
+        assertEquals(50, count);
+        assertEquals(50, evicted.size());
+        assertEquals(50, table.size());
+        for (int i = 0; i < 100; i++) {
+            Integer value = table.get(FlowTable.key(IpDatagram.UDP, i, i));
+            assertEquals(i % 2 == 0 ? Integer.valueOf(i) : null, value);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TLSPipeTest {
+
+    /** Counts how many times an end was signaled */
+    private static class SignalCounter implements Runnable {
+        int mSignals;
+
+        @Override
+        public void run() {
+            mSignals++;
+        }
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (i * 31 + seed);
+        return bytes;
+    }
+
+    private static byte[] readAll(TLSPipe.End end, int length) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(length);
+        while (dst.hasRemaining()) {
+            if (end.read(dst) <= 0)
+                break;
+        }
+        assertEquals(0, dst.remaining());
+        return dst.array();
+    }
+
+    @Test
+    public void writeAndRead_PastEndOfBuffer_WrapsAround() throws IOException {
+        TLSPipe pipe = new TLSPipe();
+        int skip = TLSPipe.BUFFER_SIZE - 100;
+        pipe.mForwarderEnd.write(ByteBuffer.wrap(new byte[skip]));
+        readAll(pipe.mProxyEnd, skip);
+
+        // Both the write and the read are split at the end of the buffer
+        byte[] data = pattern(5000, 7);
+        assertEquals(data.length, pipe.mForwarderEnd.write(ByteBuffer.wrap(data)));
+        assertArrayEquals(data, readAll(pipe.mProxyEnd, data.length));
+        assertEquals(0, pipe.mProxyEnd.read(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    public void gatheringWrite_WrapsAround_KeepsOrder() throws IOException {
+        TLSPipe pipe = new TLSPipe();
+        int skip = TLSPipe.BUFFER_SIZE - 10;
+        pipe.mProxyEnd.write(ByteBuffer.wrap(new byte[skip]));
+        readAll(pipe.mForwarderEnd, skip);
+
+        byte[] first = pattern(8, 1);
+        byte[] second = pattern(8, 2);
+        assertEquals(16, pipe.mProxyEnd.write(
+                new ByteBuffer[] { ByteBuffer.wrap(first), ByteBuffer.wrap(second) }));
+
+        byte[] read = readAll(pipe.mForwarderEnd, 16);
+        byte[] expected = new byte[16];
+        System.arraycopy(first, 0, expected, 0, 8);
+        System.arraycopy(second, 0, expected, 8, 8);
+        assertArrayEquals(expected, read);
+    }
+
+    @Test
+    public void write_MoreThanBuffer_WritesWhatFits() throws IOException {
+        TLSPipe pipe = new TLSPipe();
+        ByteBuffer src = ByteBuffer.wrap(new byte[TLSPipe.BUFFER_SIZE + 10]);
+        assertEquals(TLSPipe.BUFFER_SIZE, pipe.mForwarderEnd.write(src));
+        assertEquals(10, src.remaining());
+        assertEquals(0, pipe.mForwarderEnd.write(src));
+        assertEquals(10, src.remaining());
+    }
+
+    @Test
+    public void read_FromFullBuffer_SignalsWriterOnce() throws IOException {
+        TLSPipe pipe = new TLSPipe();
+        SignalCounter writer = new SignalCounter();
+        pipe.mForwarderEnd.setListener(writer);
+        pipe.mForwarderEnd.write(ByteBuffer.wrap(new byte[TLSPipe.BUFFER_SIZE]));
+        assertEquals(0, writer.mSignals);
+
+        // Only the read that makes room in a full buffer signals the writer
+        assertEquals(10, pipe.mProxyEnd.read(ByteBuffer.allocate(10)));
+        assertEquals(1, writer.mSignals);
+        pipe.mForwarderEnd.clearSignal();
+        assertEquals(10, pipe.mProxyEnd.read(ByteBuffer.allocate(10)));
+        assertEquals(1, writer.mSignals);
+    }
+
+    @Test
+    public void write_BeforeClearSignal_SignalsReaderOnce() throws IOException {
+        TLSPipe pipe = new TLSPipe();
+        SignalCounter reader = new SignalCounter();
+        pipe.mProxyEnd.setListener(reader);
+
+        pipe.mForwarderEnd.write(ByteBuffer.wrap(new byte[10]));
+        pipe.mForwarderEnd.write(ByteBuffer.wrap(new byte[10]));
+        assertEquals(1, reader.mSignals);
+
+        pipe.mProxyEnd.clearSignal();
+        pipe.mForwarderEnd.write(ByteBuffer.wrap(new byte[10]));
+        assertEquals(2, reader.mSignals);
+
+        // Writing nothing does not signal
+        pipe.mProxyEnd.clearSignal();
+        pipe.mForwarderEnd.write(ByteBuffer.allocate(0));
+        assertEquals(2, reader.mSignals);
+    }
+
+    @Test
+    public void read_AfterShutdownOutput_ReturnsDataThenEndOfStream() throws IOException {
+        TLSPipe pipe = new TLSPipe();
+        byte[] data = pattern(100, 3);
+        pipe.mForwarderEnd.write(ByteBuffer.wrap(data));
+        pipe.mForwarderEnd.shutdownOutput();
+
+        assertArrayEquals(data, readAll(pipe.mProxyEnd, data.length));
+        assertEquals(-1, pipe.mProxyEnd.read(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    public void write_AfterPeerClosed_DropsData() throws IOException {
+        TLSPipe pipe = new TLSPipe();
+        pipe.mProxyEnd.close();
+        ByteBuffer src = ByteBuffer.wrap(new byte[TLSPipe.BUFFER_SIZE * 2]);
+        assertEquals(TLSPipe.BUFFER_SIZE * 2, pipe.mForwarderEnd.write(src));
+        assertEquals(0, src.remaining());
+        assertEquals(-1, pipe.mForwarderEnd.read(ByteBuffer.allocate(1)));
+    }
+}
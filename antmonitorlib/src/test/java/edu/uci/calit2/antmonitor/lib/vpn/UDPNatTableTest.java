@@ -0,0 +1,130 @@
+/*
+ *  This file is part of AntMonitor <https://athinagroup.eng.uci.edu/projects/antmonitor/>.
+ *  Copyright (C) 2018 Anastasia Shuba and the UCI Networking Group
+ *  <https://athinagroup.eng.uci.edu>, University of California, Irvine.
+ *
+ *  AntMonitor is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 2 of the License.
+ *
+ *  AntMonitor is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with AntMonitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.calit2.antmonitor.lib.vpn;
+
+import org.junit.Test;
+
+import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class UDPNatTableTest {
+
+    private static VPNUtils.UDPFlow flow(int port) {
+        return new VPNUtils.UDPFlow(FlowTable.key(IpDatagram.UDP, 0x08080808, port),
+                new VPNUtils.Tuple(0xC0A80002, new byte[] {(byte) 192, (byte) 168, 0, 2}, port),
+                null);
+    }
+
+    private static void tick(UDPNatTable table, int ticks) {
+        for (int i = 0; i < ticks; i++)
+            table.tick();
+    }
+
+    @Test
+    public void tick_IdleFlow_Expires() {
+        UDPNatTable table = new UDPNatTable(16);
+        VPNUtils.UDPFlow flow = flow(1000);
+        table.put(flow, 3 * UDPNatTable.TICK_INTERVAL);
+
+        tick(table, 2);
+        assertSame(flow, table.get(flow.mKey));
+
+        // Used in tick 2, so it lives until tick 5
+        tick(table, 2);
+        assertSame(flow, table.get(flow.mKey));
+        assertEquals(0, table.getExpiredCount());
+
+        tick(table, 3);
+        assertNull(table.get(flow.mKey));
+        assertEquals(1, table.getExpiredCount());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void tick_UsedFlow_IsRescheduled() {
+        UDPNatTable table = new UDPNatTable(16);
+        VPNUtils.UDPFlow flow = flow(1000);
+        table.put(flow, 3 * UDPNatTable.TICK_INTERVAL);
+
+        // Used in every tick: rescheduled each time its slot comes
+        for (int i = 0; i < 200; i++) {
+            table.tick();
+            assertSame(flow, table.get(flow.mKey));
+        }
+        assertEquals(0, table.getExpiredCount());
+
+        // Only its latest slot holds it, so it expires once
+        tick(table, 3);
+        assertNull(table.get(flow.mKey));
+        assertEquals(1, table.getExpiredCount());
+    }
+
+    @Test
+    public void put_LongTimeout_WrapsAroundWheel() {
+        UDPNatTable table = new UDPNatTable(16);
+        VPNUtils.UDPFlow flow = flow(1000);
+
+        // Longer than the wheel: capped to one turn of it
+        table.put(flow, 1000 * UDPNatTable.TICK_INTERVAL);
+        tick(table, 62);
+        assertSame(flow, table.get(flow.mKey));
+    }
+
+    @Test
+    public void put_FullTable_EvictsFlowClosestToExpiring() {
+        UDPNatTable table = new UDPNatTable(2);
+        VPNUtils.UDPFlow longLived = flow(1000);
+        VPNUtils.UDPFlow shortLived = flow(1001);
+        VPNUtils.UDPFlow added = flow(1002);
+
+        table.put(longLived, 30 * UDPNatTable.TICK_INTERVAL);
+        table.put(shortLived, 5 * UDPNatTable.TICK_INTERVAL);
+        table.put(added, 30 * UDPNatTable.TICK_INTERVAL);
+
+        assertEquals(2, table.size());
+        assertEquals(1, table.getEvictedCount());
+        assertNull(table.get(shortLived.mKey));
+        assertSame(longLived, table.get(longLived.mKey));
+        assertSame(added, table.get(added.mKey));
+
+        // The evicted flow left the wheel too
+        tick(table, 40);
+        assertEquals(2, table.getExpiredCount());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void put_SameKey_ReplacesFlow() {
+        UDPNatTable table = new UDPNatTable(2);
+        VPNUtils.UDPFlow first = flow(1000);
+        VPNUtils.UDPFlow second = flow(1000);
+
+        table.put(first, 3 * UDPNatTable.TICK_INTERVAL);
+        table.put(second, 10 * UDPNatTable.TICK_INTERVAL);
+        assertEquals(1, table.size());
+        assertSame(second, table.get(second.mKey));
+
+        // The replaced flow does not expire the new one
+        tick(table, 5);
+        assertSame(second, table.get(second.mKey));
+        assertEquals(0, table.getExpiredCount());
+    }
+}
@@ -22,7 +22,9 @@ import android.content.Context;
 import edu.uci.calit2.anteater.R;
 import edu.uci.calit2.anteater.client.android.util.OpenAppDetails;
 import edu.uci.calit2.anteater.client.android.util.PreferenceTags;
+import edu.uci.calit2.antmonitor.lib.logging.CapturePolicy;
 import edu.uci.calit2.antmonitor.lib.logging.ConnectionValue;
+import edu.uci.calit2.antmonitor.lib.logging.PacketAnnotation;
 import edu.uci.calit2.antmonitor.lib.logging.PacketConsumer;
 import edu.uci.calit2.antmonitor.lib.logging.PacketProcessor.TrafficType;
 import edu.uci.calit2.antmonitor.lib.util.IpDatagram;
@@ -52,37 +54,37 @@ public class AMPacketConsumer extends PacketConsumer {
     }
 
     @Override
-    protected void consumePacket(PacketDumpInfo packetDumpInfo) {
-        byte[] packet = packetDumpInfo.getDump();
-
-        //Keeping the default capture size as zero (because the default contribution level is set to low)
-        int captureSize = 0;
-
-        try {
-            switch (CONTRIBUTION_PREFS) {
-                case R.id.low_contribute:
-                    //returning from function as we do not want to log anything per user preferences
-                    return;
-                case R.id.med_contribute: // logging only headers
-                    captureSize = getHeadersSize(packet, IpDatagram.readProtocol(packet));
-                    break;
-                case R.id.high_contribute: // logging full packets
-                    int destPort;
-                    if (mTrafficType.equals(TrafficType.OUTGOING_PACKETS))
-                        destPort = IpDatagram.readDestinationPort(packet);
-                    else
-                        destPort = IpDatagram.readSourcePort(packet);
-
-                    captureSize = getFullPacketSize(packet, IpDatagram.readProtocol(packet),
-                            destPort);
-                    break;
+    protected CapturePolicy getCapturePolicy() {
+        // Decide what to keep before packets are queued, so that only headers are copied when
+        // only headers are logged
+        return new CapturePolicy(mTrafficType, CapturePolicy.SNAP_NONE) {
+            @Override
+            protected int getSnapLength(byte[] packet, PacketAnnotation annotation) {
+                switch (CONTRIBUTION_PREFS) {
+                    case R.id.med_contribute: // logging only headers
+                        return SNAP_HEADERS;
+                    case R.id.high_contribute: // logging full packets
+                        int destPort;
+                        if (mTrafficType.equals(TrafficType.OUTGOING_PACKETS))
+                            destPort = IpDatagram.readDestinationPort(packet);
+                        else
+                            destPort = IpDatagram.readSourcePort(packet);
+
+                        return getFullPacketSize(packet, IpDatagram.readProtocol(packet),
+                                destPort);
+                    default:
+                        // we do not want to log anything per user preferences
+                        return SNAP_NONE;
+                }
             }
-        } catch (IllegalArgumentException e) {
-            // Packet was of unknown protocol - can't log
-            return;
-        }
+        };
+    }
 
-        packetDumpInfo.setCaptureLength(captureSize);
+    @Override
+    protected void consumePacket(PacketDumpInfo packetDumpInfo) {
+        // The capture length was set per user preferences when the packet was queued
+        if (CONTRIBUTION_PREFS == R.id.low_contribute)
+            return;
 
         ConnectionValue cv = mapPacketToApp(packetDumpInfo);
         if (!(cv.getAppName().startsWith(ConnectionValue.MappingErrors.PREFIX))) {